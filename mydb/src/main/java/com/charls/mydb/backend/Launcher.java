@@ -5,6 +5,8 @@ import com.charls.mydb.backend.server.Server;
 import com.charls.mydb.backend.tbm.TableManager;
 import com.charls.mydb.backend.tm.TransactionManager;
 import com.charls.mydb.backend.utils.Panic;
+import com.charls.mydb.backend.vm.LockTable;
+import com.charls.mydb.backend.vm.Transaction;
 import com.charls.mydb.backend.vm.VersionManager;
 import com.charls.mydb.backend.vm.VersionManagerImpl;
 import com.charls.mydb.common.Error;
@@ -28,12 +30,18 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("durability", true, "-durability sync|group|async");
+        options.addOption("flush", true, "-flush 200 (ms)");
+        options.addOption("lockpolicy", true, "-lockpolicy detect|wait-die|wound-wait");
+        options.addOption("locktimeout", true, "-locktimeout 0 (ms, 0 means no timeout)");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
         // Launcher 根据两个参数，来决定是创建数据库文件，还是启动一个已有的数据库。
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")),
+                    parseDurability(cmd.getOptionValue("durability")), parseFlushInterval(cmd.getOptionValue("flush")),
+                    parseLockPolicy(cmd.getOptionValue("lockpolicy")), parseLockTimeout(cmd.getOptionValue("locktimeout")));
             return;
         }
         if(cmd.hasOption("create")) {
@@ -60,15 +68,93 @@ public class Launcher {
      * 开启数据库文件
      * @param path
      * @param mem
+     * @param durability 默认的持久性模式
+     * @param flushInterval 后台刷盘间隔
+     * @param lockPolicy 行锁的死锁处理策略
+     * @param lockTimeout 行锁等待超时
      */
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, int durability, long flushInterval, int lockPolicy, long lockTimeout) {
         TransactionManager tm = TransactionManager.open(path);      // 打开tm
         DataManager dm = DataManager.open(path, mem, tm);           // 打开dm
-        VersionManager vm = new VersionManagerImpl(tm, dm);         // 打开vm
+        VersionManager vm = VersionManager.newVersionManager(tm, dm, durability, flushInterval, lockPolicy, lockTimeout); // 打开vm
         TableManager tbm = TableManager.open(path, vm, dm);         // 打开tbm
         new Server(port, tbm).start();                              // 打开sql服务器
     }
 
+    /**
+     * 解析默认的持久性模式
+     * @param durabilityStr
+     * @return
+     */
+    private static int parseDurability(String durabilityStr) {
+        if (durabilityStr==null||"".equals(durabilityStr)){
+            return Transaction.DURABILITY_SYNC;
+        }
+        int durability = Transaction.parseDurability(durabilityStr);
+        if (durability<0){
+            Panic.panic(Error.InvalidDurabilityException);
+        }
+        return durability;
+    }
+
+    /**
+     * 解析后台刷盘间隔，单位毫秒
+     * @param intervalStr
+     * @return
+     */
+    private static long parseFlushInterval(String intervalStr) {
+        if (intervalStr==null||"".equals(intervalStr)){
+            return VersionManagerImpl.DEFAULT_FLUSH_INTERVAL;
+        }
+        long interval = 0;
+        try {
+            interval = Long.parseLong(intervalStr);
+        } catch (NumberFormatException e) {
+            Panic.panic(Error.InvalidFlushIntervalException);
+        }
+        if (interval<=0){
+            Panic.panic(Error.InvalidFlushIntervalException);
+        }
+        return interval;
+    }
+
+    /**
+     * 解析行锁的死锁处理策略
+     * @param policyStr
+     * @return
+     */
+    private static int parseLockPolicy(String policyStr) {
+        if (policyStr==null||"".equals(policyStr)){
+            return LockTable.POLICY_DETECT;
+        }
+        int policy = LockTable.parsePolicy(policyStr);
+        if (policy<0){
+            Panic.panic(Error.InvalidLockPolicyException);
+        }
+        return policy;
+    }
+
+    /**
+     * 解析行锁等待超时，单位毫秒，0 表示一直等待
+     * @param timeoutStr
+     * @return
+     */
+    private static long parseLockTimeout(String timeoutStr) {
+        if (timeoutStr==null||"".equals(timeoutStr)){
+            return 0;
+        }
+        long timeout = 0;
+        try {
+            timeout = Long.parseLong(timeoutStr);
+        } catch (NumberFormatException e) {
+            Panic.panic(Error.InvalidLockTimeoutException);
+        }
+        if (timeout<0){
+            Panic.panic(Error.InvalidLockTimeoutException);
+        }
+        return timeout;
+    }
+
     /**
      * 解析内存大小
      * @param memStr
@@ -3,6 +3,7 @@ package com.charls.mydb.backend.common;
 import com.charls.mydb.common.Error;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -151,18 +152,27 @@ public abstract class AbstractCache<T> {
         }
     }
 
+    /**
+     * 缓存的最大缓存资源数，0 表示不限制
+     */
+    protected int getMaxResource() {
+        return maxResource;
+    }
+
     /**
      * 关闭缓存，写回所有资源。其实就是将所有缓存释放掉
      */
     protected void close(){
         lock.lock();
         try {
-            Set<Long> keys = cache.keySet();
+            // 遍历的同时要删除，先复制一份 key
+            Set<Long> keys = new HashSet<>(cache.keySet());
             for (long key:keys){
                 T obj = cache.get(key);
                 releaseForCache(obj);     // 调用缓存释放方法
                 references.remove(key);
                 cache.remove(key);
+                count--;
             }
         }finally {
             lock.unlock();
@@ -15,6 +15,9 @@ import com.charls.mydb.backend.tm.TransactionManager;
 public interface DataManager {
     DataItem read(long uid) throws Exception;                   // 读取数据
     long insert(long xid, byte[] data) throws Exception;        // 插入数据
+    long insertWithoutLog(long xid, byte[] data) throws Exception; // 插入数据但不写插入日志，调用方需随后写入能重建该数据的逻辑日志
+    void flushLog();                                            // 等待已经写入的日志全部落盘
+    int getMaxPages();                                          // 页面缓存最多能同时持有的页面数，长期持有数据项的调用方据此控制用量
     void close();                                               // 关闭数据管理器
 
     /**
@@ -25,6 +28,7 @@ public interface DataManager {
         Logger lg = Logger.create(path);                        // 新建日志
 
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);   // 新建数据管理器
+        pc.setLogger(lg);                                       // 页面写回前先让日志落盘
         dm.initPageOne();                                       // 初始化校验页面1
         return dm;
     }
@@ -40,6 +44,7 @@ public interface DataManager {
             // 校验页面1错误，说明数据库非正常关闭，需要进行崩溃恢复
             Recover.recover(tm, lg, pc);
         }
+        pc.setLogger(lg);                                       // 恢复完成后，页面写回前先让日志落盘
         dm.fillPageIndex();                                     // 重新填写页面索引
         PageOne.setVcOpen(dm.pageOne);                          // 重新填写 校验页面1
         dm.pc.flushPage(dm.pageOne);                            // 将校验页面1 强行写入数据源
@@ -34,6 +34,8 @@ import com.charls.mydb.common.Error;
  *      3、插入数据 insert(long xid, byte[] data)
  *      4、实现DataItem缓存 重写的两个方法： getForCache(long uid)；releaseForCache(DataItem di)
  *      5、为DataItemImpl.after()提供的记录更新日志方法：logDataItem(long xid, DataItem di)
+ *         为DataItemImpl.afterLogical()提供的记录逻辑日志方法：logLogical(DataItem di, byte[] log)
+ *         记录日志的同时更新页面的 LSN，页面写回前由页面缓存先让日志落盘到这里（WAL）
  *      6、为DataItemImpl.release()提供的释放DataItem缓存方法：releaseDataItem(DataItem di)
  *      7、初始化页面索引：fillPageIndex()
  *      8、关闭DM
@@ -87,6 +89,25 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, data, true);
+    }
+
+    /**
+     * 插入数据，但不写插入日志
+     *
+     * 用于 IM 分裂节点时创建新节点：新节点的内容由随后写入的逻辑日志（见 Recover.nodeInsertLog）负责重建，
+     * 不必再把整个节点镜像写一遍日志
+     * @param xid 事务id
+     * @param data 数据内容
+     * @return UID
+     * @throws Exception
+     */
+    @Override
+    public long insertWithoutLog(long xid, byte[] data) throws Exception {
+        return insert(xid, data, false);
+    }
+
+    private long insert(long xid, byte[] data, boolean logged) throws Exception {
         // 将数据打包为DataItem格式
         byte[] raw = DataItem.wrapDataItemRaw(data);
         if(raw.length > PageX.MAX_FREE_SPACE) {
@@ -117,8 +138,10 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             // 获取插入页号
             pg = pc.getPage(pi.pgno);
             // 先写入插入日志
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
+            if(logged) {
+                byte[] log = Recover.insertLog(xid, pg, raw);
+                pg.setLsn(logger.append(log));
+            }
 
             // 完成页面数据插入，返回在此页面中的插入位置偏移量
             short offset = PageX.insert(pg, raw);
@@ -138,6 +161,22 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         }
     }
 
+    /**
+     * 等待已经写入的日志全部落盘
+     *
+     * DM 写日志时只追加不刷盘，日志的持久性由提交时（或后台刷盘时）调用这个方法保证。
+     * 日志总是按顺序落盘的，丢失的只会是最后的一段日志，对应的事务要么没有提交，要么提交状态也没有落盘，恢复时会被回滚。
+     */
+    @Override
+    public void flushLog() {
+        logger.flush();
+    }
+
+    @Override
+    public int getMaxPages() {
+        return pc.getMaxPages();
+    }
+
     /**
      * 关闭DM
      */
@@ -158,7 +197,16 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     public void logDataItem(long xid, DataItem di) {
         byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        di.page().setLsn(logger.append(log));
+    }
+
+    /**
+     * 写入调用方构造好的逻辑日志，DataItemImpl.afterLogical() 依赖的方法
+     * @param di 被修改的 DataItem
+     * @param log
+     */
+    public void logLogical(DataItem di, byte[] log) {
+        di.page().setLsn(logger.append(log));
     }
 
     /**
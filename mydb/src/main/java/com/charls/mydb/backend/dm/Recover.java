@@ -6,9 +6,11 @@ import com.charls.mydb.backend.dm.dataItem.DataItem;
 import com.charls.mydb.backend.dm.logger.Logger;
 import com.charls.mydb.backend.dm.page.Page;
 import com.charls.mydb.backend.dm.page.PageX;
+import com.charls.mydb.backend.im.Node;
 import com.charls.mydb.backend.tm.TransactionManager;
 import com.charls.mydb.backend.utils.Panic;
 import com.charls.mydb.backend.utils.Parser;
+import com.charls.mydb.backend.utils.Types;
 import com.google.common.primitives.Bytes;
 
 import java.util.*;
@@ -20,12 +22,16 @@ import java.util.*;
  *      [LogType] [XID] [UID] [OldRaw] [NewRaw]
  *      insertLog:
  *      [LogType] [XID] [Pgno] [Offset] [Raw]
+ *      nodeInsertLog（B+树节点的逻辑日志，不记录整个节点的前后镜像）:
+ *      [LogType] [XID] [UID] [Kth] [Son] [SplitUid] [SplitPos] [Key]
  */
 public class Recover {
 
-    // 日志类型 insert=0 | update=1
+    // 日志类型 insert=0 | update=1 | nodeInsert=2 | nodeRemove=3
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_NODE_INSERT = 2;
+    private static final byte LOG_TYPE_NODE_REMOVE = 3;
 
     // REDO 正序扫描，重做日志记录的操作    UNDO 倒序扫描，撤销日志记录的操作
     private static final int REDO = 0;
@@ -46,6 +52,18 @@ public class Recover {
         byte[] newRaw;
     }
 
+    static class NodeInsertLogInfo {
+        long xid;
+        int pgno;
+        short offset;
+        int kth;
+        byte[] key;
+        long son;
+        int splitPgno;
+        short splitOffset;
+        int splitPos;
+    }
+
     /**
      * recover 例程主要也是两步：重做所有已完成事务 redo，撤销所有未完成事务undo
      * @param tm
@@ -70,6 +88,11 @@ public class Recover {
             if(isInsertLog(log)) {
                 InsertLogInfo li = parseInsertLog(log);
                 pgno = li.pgno;
+            } else if(isNodeInsertLog(log)) {
+                NodeInsertLogInfo li = parseNodeInsertLog(log);
+                pgno = Math.max(li.pgno, li.splitPgno);
+            } else if(isNodeRemoveLog(log)) {
+                pgno = parseNodeRemoveLog(log).pgno;
             } else {
                 UpdateLogInfo li = parseUpdateLog(log);
                 pgno = li.pgno;
@@ -112,22 +135,9 @@ public class Recover {
             if (log==null){
                 break;
             }
-            if (isInsertLog(log)){
-                // 如果是一条插入日志，则进行doInsertLog的重做操作
-                InsertLogInfo li=parseInsertLog(log);
-                long xid = li.xid;
-                if (!tm.isActive(xid)){
-                    // 此事务在数据库崩溃的时候必须是非活跃状态，也就是已提交状态才能进行重做
-                    doInsertLog(pc,log,REDO);
-                }
-            }else {
-                // 如果是一条更新日志，则进行doUpdateLog的重做操作
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(!tm.isActive(xid)) {
-                    // 此事务在数据库崩溃的时候必须是非活跃状态，也就是已提交状态才能进行重做
-                    doUpdateLog(pc, log, REDO);
-                }
+            // 此事务在数据库崩溃的时候必须是非活跃状态，也就是已提交状态才能进行重做
+            if (!tm.isActive(parseXid(log))){
+                doLog(pc, log, REDO);
             }
         }
     }
@@ -150,25 +160,13 @@ public class Recover {
             if(log == null) {
                 break;
             }
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);        // 解析为InsertLog格式
-                long xid = li.xid;
-                if(tm.isActive(xid)) {
-                    // 事务处于为提交状态，才能进行撤销
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);                 // 使用一个日志缓存Map记录此事务需要撤销的日志数据
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
+            long xid = parseXid(log);
+            if(tm.isActive(xid)) {
+                // 事务处于为提交状态，才能进行撤销
+                if(!logCache.containsKey(xid)) {
+                    logCache.put(xid, new ArrayList<>());
                 }
+                logCache.get(xid).add(log);                 // 使用一个日志缓存Map记录此事务需要撤销的日志数据
             }
         }
 
@@ -178,12 +176,7 @@ public class Recover {
             List<byte[]> logs = entry.getValue();
             // 倒序进行撤销操作
             for (int i = logs.size()-1; i >= 0; i --) {
-                byte[] log = logs.get(i);
-                if(isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
-                } else {
-                    doUpdateLog(pc, log, UNDO);
-                }
+                doLog(pc, logs.get(i), UNDO);
             }
             // 将此事务标记为 abort状态
             tm.abort(entry.getKey());
@@ -202,6 +195,29 @@ public class Recover {
         return log[0]==LOG_TYPE_INSERT;
     }
 
+    private static boolean isNodeInsertLog(byte[] log) {
+        return log[0]==LOG_TYPE_NODE_INSERT;
+    }
+
+    private static boolean isNodeRemoveLog(byte[] log) {
+        return log[0]==LOG_TYPE_NODE_REMOVE;
+    }
+
+    /**
+     * 按日志类型重做或撤销一条日志
+     */
+    private static void doLog(PageCache pc, byte[] log, int flag) {
+        if(isInsertLog(log)) {
+            doInsertLog(pc, log, flag);
+        } else if(isNodeInsertLog(log)) {
+            doNodeInsertLog(pc, log, flag);
+        } else if(isNodeRemoveLog(log)) {
+            doNodeRemoveLog(pc, log, flag);
+        } else {
+            doUpdateLog(pc, log, flag);
+        }
+    }
+
     /**
      * updateLog:
      * [LogType] [XID] [UID] [OldRaw] [NewRaw]
@@ -212,6 +228,13 @@ public class Recover {
     private static final int OF_UPDATE_UID = OF_XID+8;          // 日志旧数据的偏移位置
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID+8;   // 日志更新内容的偏移位置
 
+    /**
+     * 所有类型的日志，XID 都紧跟在 LogType 之后
+     */
+    private static long parseXid(byte[] log) {
+        return Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_XID+8));
+    }
+
     /**
      * 更新日志（ 将原始的 update 操作数据格式化，返回一条 update 日志数据）
      * @param xid 事务ID
@@ -323,4 +346,146 @@ public class Recover {
             pg.release();
         }
     }
+
+    /**
+     * nodeInsertLog:
+     *      [LogType] [XID] [UID] [Kth] [Son] [SplitUid] [SplitPos] [Key]
+     *        1字节    8字节 8字节 2字节 8字节   8字节      2字节    变长
+     * 表示“在节点 UID 的第 Kth 个位置插入 Key/Son”，SplitUid 不为 0 时表示随后在 SplitPos 处分裂出了节点 SplitUid。
+     * key 是变长的，放在日志末尾，长度由日志的长度得到。
+     * 一条日志只有几十个字节，取代了原先整个节点（两千多字节）的前后镜像。
+     * 节点的历史总是从一条 insertLog（新建根节点）或一条带分裂的 nodeInsertLog 开始，
+     * 重做从日志开头按顺序进行，所以逻辑日志总是作用在与运行时一致的节点状态上。
+     */
+    private static final int OF_NODE_UID = OF_XID+8;
+    private static final int OF_NODE_KTH = OF_NODE_UID+8;
+    private static final int OF_NODE_SON = OF_NODE_KTH+2;
+    private static final int OF_NODE_SPLIT_UID = OF_NODE_SON+8;
+    private static final int OF_NODE_SPLIT_POS = OF_NODE_SPLIT_UID+8;
+    private static final int OF_NODE_INSERT_KEY = OF_NODE_SPLIT_POS+2;
+    private static final int OF_NODE_REMOVE_KEY = OF_NODE_SON+8;
+
+    /**
+     * B+树节点插入日志
+     * @param xid 事务ID
+     * @param uid 被修改节点的 UID
+     * @param kth 插入位置
+     * @param key 插入的 key
+     * @param son 插入的 son
+     * @param splitUid 分裂出的新节点 UID，没有分裂时为 0
+     * @param splitPos 分裂位置
+     * @return
+     */
+    public static byte[] nodeInsertLog(long xid, long uid, int kth, byte[] key, long son, long splitUid, short splitPos) {
+        byte[] logTypeRaw = {LOG_TYPE_NODE_INSERT};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] uidRaw = Parser.long2Byte(uid);
+        byte[] kthRaw = Parser.short2Byte((short)kth);
+        byte[] sonRaw = Parser.long2Byte(son);
+        byte[] splitUidRaw = Parser.long2Byte(splitUid);
+        byte[] splitPosRaw = Parser.short2Byte(splitPos);
+        return Bytes.concat(logTypeRaw, xidRaw, uidRaw, kthRaw, sonRaw, splitUidRaw, splitPosRaw, key);
+    }
+
+    private static NodeInsertLogInfo parseNodeInsertLog(byte[] log) {
+        NodeInsertLogInfo li = new NodeInsertLogInfo();
+        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_NODE_UID));
+        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_NODE_UID, OF_NODE_KTH));
+        li.offset = (short)(uid & ((1L << 16) - 1));
+        li.pgno = (int)(uid >>> 32);
+        li.kth = Parser.parseShort(Arrays.copyOfRange(log, OF_NODE_KTH, OF_NODE_SON));
+        li.son = Parser.parseLong(Arrays.copyOfRange(log, OF_NODE_SON, OF_NODE_SPLIT_UID));
+        long splitUid = Parser.parseLong(Arrays.copyOfRange(log, OF_NODE_SPLIT_UID, OF_NODE_SPLIT_POS));
+        li.splitOffset = (short)(splitUid & ((1L << 16) - 1));
+        li.splitPgno = (int)(splitUid >>> 32);
+        li.splitPos = Parser.parseShort(Arrays.copyOfRange(log, OF_NODE_SPLIT_POS, OF_NODE_INSERT_KEY));
+        li.key = Arrays.copyOfRange(log, OF_NODE_INSERT_KEY, log.length);
+        return li;
+    }
+
+    private static void doNodeInsertLog(PageCache pc, byte[] log, int flag) {
+        NodeInsertLogInfo li = parseNodeInsertLog(log);
+        Page pg = null, splitPg = null;
+        try {
+            pg = pc.getPage(li.pgno);
+            if(li.splitPgno != 0) {
+                splitPg = pc.getPage(li.splitPgno);
+            }
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            pg.setDirty(true);
+            SubArray node = DataItem.parseDataItemData(pg, li.offset);
+            if(flag == REDO) {
+                Node.insertRawKth(node, li.kth, li.key, li.son);
+                if(splitPg != null) {
+                    byte[] splitRaw = Node.splitRaw(node, li.splitPos);
+                    Node.truncateRaw(node, li.splitPos, Types.addressToUid(li.splitPgno, li.splitOffset));
+                    PageX.recoverInsert(splitPg, DataItem.wrapDataItemRaw(splitRaw), li.splitOffset);
+                }
+            } else {
+                if(splitPg != null) {
+                    Node.untruncateRaw(node, DataItem.parseDataItemData(splitPg, li.splitOffset));
+                    splitPg.setDirty(true);
+                    DataItem.setDataItemRawInvalid(splitPg.getData(), li.splitOffset);
+                }
+                Node.removeRawKth(node, li.kth);
+            }
+        } finally {
+            pg.release();
+            if(splitPg != null) {
+                splitPg.release();
+            }
+        }
+    }
+
+    /**
+     * nodeRemoveLog:
+     *      [LogType] [XID] [UID] [Kth] [Son] [Key]
+     *        1字节    8字节 8字节 2字节 8字节  变长
+     * 表示“删除叶子节点 UID 的第 Kth 个分支 Key/Son”，与 nodeInsertLog 共用前面的偏移量。
+     * 合并和借用分支等涉及多个节点的修改仍然记录整个节点的前后镜像。
+     */
+    public static byte[] nodeRemoveLog(long xid, long uid, int kth, byte[] key, long son) {
+        byte[] logTypeRaw = {LOG_TYPE_NODE_REMOVE};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] uidRaw = Parser.long2Byte(uid);
+        byte[] kthRaw = Parser.short2Byte((short)kth);
+        byte[] sonRaw = Parser.long2Byte(son);
+        return Bytes.concat(logTypeRaw, xidRaw, uidRaw, kthRaw, sonRaw, key);
+    }
+
+    private static NodeInsertLogInfo parseNodeRemoveLog(byte[] log) {
+        NodeInsertLogInfo li = new NodeInsertLogInfo();
+        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_NODE_UID));
+        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_NODE_UID, OF_NODE_KTH));
+        li.offset = (short)(uid & ((1L << 16) - 1));
+        li.pgno = (int)(uid >>> 32);
+        li.kth = Parser.parseShort(Arrays.copyOfRange(log, OF_NODE_KTH, OF_NODE_SON));
+        li.son = Parser.parseLong(Arrays.copyOfRange(log, OF_NODE_SON, OF_NODE_REMOVE_KEY));
+        li.key = Arrays.copyOfRange(log, OF_NODE_REMOVE_KEY, log.length);
+        return li;
+    }
+
+    private static void doNodeRemoveLog(PageCache pc, byte[] log, int flag) {
+        NodeInsertLogInfo li = parseNodeRemoveLog(log);
+        Page pg = null;
+        try {
+            pg = pc.getPage(li.pgno);
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            pg.setDirty(true);
+            SubArray node = DataItem.parseDataItemData(pg, li.offset);
+            if(flag == REDO) {
+                Node.removeRawKth(node, li.kth);
+            } else {
+                Node.insertRawKth(node, li.kth, li.key, li.son);
+            }
+        } finally {
+            pg.release();
+        }
+    }
 }
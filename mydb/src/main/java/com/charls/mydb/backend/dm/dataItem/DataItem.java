@@ -26,12 +26,15 @@ public interface DataItem {
     void before();          // 修改数据前的方法，打开写锁
     void unBefore();        // 撤销修改，
     void after(long xid);   // 修改数据完成后的方法，记录此事务的修改操作到日志，关闭写锁
+    void afterLogical(byte[] log);  // 修改数据完成后的方法，记录调用方构造的逻辑日志（代替前后镜像），关闭写锁
     void release();         // 释放 DataItem 缓存
 
     void lock();            // 打开写锁
     void unlock();          // 关闭写锁
     void rLock();           // 打开读锁
     void rUnLock();         // 关闭读锁
+    long optimisticRead();          // 乐观读，不加锁，返回当前的版本戳，正在被修改时返回 0
+    boolean validate(long stamp);   // 乐观读结束后校验，期间没有修改时返回 true
 
     Page page();            // 获取此 DataItem 所在的数据页
     long getUid();          // 获取 DataItem 的key
@@ -71,12 +74,33 @@ public interface DataItem {
         return new DataItemImpl(new SubArray(raw, offset, offset+length), new byte[length], pg, uid, dm);
     }
 
+    /**
+     * 从页面的offset处解析出DataItem的Data部分，不经过缓存，恢复例程使用
+     * @param pg
+     * @param offset
+     * @return
+     */
+    public static SubArray parseDataItemData(Page pg, short offset) {
+        byte[] raw = pg.getData();
+        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
+        return new SubArray(raw, offset+DataItemImpl.OF_DATA, offset+DataItemImpl.OF_DATA+size);
+    }
+
     /**
      * 设置 DataItem 的有效性 更改 ValidFlag
      * ValidFlag 占用 1 字节，标识了该 DataItem 是否有效。删除一个 DataItem，只需要简单地将其有效位设置为 0。
      * @param raw
      */
     public static void setDataItemRawInvalid(byte[] raw) {
-        raw[DataItemImpl.OF_VALID] = (byte)1;
+        setDataItemRawInvalid(raw, 0);
+    }
+
+    /**
+     * 设置 raw 中 offset 处的 DataItem 为非法
+     * @param raw
+     * @param offset DataItem 在 raw 中的起始位置
+     */
+    public static void setDataItemRawInvalid(byte[] raw, int offset) {
+        raw[offset+DataItemImpl.OF_VALID] = (byte)1;
     }
 }
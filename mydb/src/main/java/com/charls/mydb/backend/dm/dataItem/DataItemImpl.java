@@ -5,8 +5,8 @@ import com.charls.mydb.backend.dm.DataManagerImpl;
 import com.charls.mydb.backend.dm.page.Page;
 
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * dataItem 是 页面中指定数据的打包结构，也是具体操作数据的结构
@@ -16,6 +16,9 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * DataSize  2字节，标识Data的长度
  *
  * ValidFlag 占用 1 字节，标识了该 DataItem 是否有效。删除一个 DataItem，只需要简单地将其有效位设置为 0。DataSize 占用 2 字节，标识了后面 Data 的长度。
+ *
+ * 除了读写锁，DataItem 还维护一个版本戳（StampedLock），持有写锁期间版本戳处于写状态：
+ * 乐观读的一方不加锁直接读取，读完后校验版本戳，期间有修改就放弃结果重读，不会阻塞修改的一方。
  */
 public class DataItemImpl implements DataItem{
 
@@ -25,8 +28,11 @@ public class DataItemImpl implements DataItem{
 
     private SubArray raw;           // 子区间数据，共享内存
     private byte[] oldRaw;          // 暂存需要修改的数据内容
+    private ReentrantReadWriteLock lock;
     private Lock rLock;             // 读锁
     private Lock wLock;             // 写锁
+    private StampedLock version;    // 版本戳，只在写锁的最外层获取和释放
+    private long stamp;             // 写锁持有者的版本戳
 
     // 保存了一个 dm 的引用是为了释放 依赖 dm 的缓存（dm 同时实现了缓存接口，用于缓存 DataItem），以及修改数据时记录日志
     private DataManagerImpl dm;
@@ -40,9 +46,10 @@ public class DataItemImpl implements DataItem{
         this.raw = raw;
         this.oldRaw = oldRaw;
 
-        ReadWriteLock lock = new ReentrantReadWriteLock();
+        lock = new ReentrantReadWriteLock();
         rLock = lock.readLock();
         wLock = lock.writeLock();
+        version = new StampedLock();
 
         this.dm = dm;
         this.uid = uid;
@@ -72,7 +79,7 @@ public class DataItemImpl implements DataItem{
      */
     @Override
     public void before() {
-        wLock.lock();
+        writeLock();
         pg.setDirty(true);
         // 浅拷贝
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
@@ -85,7 +92,7 @@ public class DataItemImpl implements DataItem{
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
-        wLock.unlock();
+        writeUnlock();
     }
 
     /**
@@ -96,9 +103,47 @@ public class DataItemImpl implements DataItem{
     @Override
     public void after(long xid) {
         dm.logDataItem(xid, this);
+        writeUnlock();
+    }
+
+    /**
+     * 修改数据完成后的操作
+     * 记录调用方构造的逻辑日志（不记录前后镜像），关闭写锁
+     * @param log 完整的日志数据，由 Recover 构造
+     */
+    @Override
+    public void afterLogical(byte[] log) {
+        dm.logLogical(this, log);
+        writeUnlock();
+    }
+
+    /**
+     * 获取写锁，第一次进入时让版本戳进入写状态，正在进行的乐观读都会校验失败
+     */
+    private void writeLock() {
+        wLock.lock();
+        if(lock.getWriteHoldCount() == 1) {
+            stamp = version.writeLock();
+        }
+    }
+
+    private void writeUnlock() {
+        if(lock.getWriteHoldCount() == 1) {
+            version.unlockWrite(stamp);
+        }
         wLock.unlock();
     }
 
+    @Override
+    public long optimisticRead() {
+        return version.tryOptimisticRead();
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return version.validate(stamp);
+    }
+
     /**
      * 释放这个DataItem的缓存
      */
@@ -112,7 +157,7 @@ public class DataItemImpl implements DataItem{
      */
     @Override
     public void lock() {
-        wLock.lock();
+        writeLock();
     }
 
     /**
@@ -120,7 +165,7 @@ public class DataItemImpl implements DataItem{
      */
     @Override
     public void unlock() {
-        wLock.unlock();
+        writeUnlock();
     }
 
     /**
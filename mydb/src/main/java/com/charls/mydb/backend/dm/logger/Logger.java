@@ -1,7 +1,6 @@
 package com.charls.mydb.backend.dm.logger;
 
 import com.charls.mydb.backend.utils.Panic;
-import com.charls.mydb.backend.utils.Parser;
 import com.charls.mydb.common.Error;
 
 import java.io.File;
@@ -18,7 +17,10 @@ import java.nio.channels.FileChannel;
  *     open(String path):打开日志文件和打开日志功能
  */
 public interface Logger {
-    void log(byte[] data);                  // 写入一条日志记录
+    void log(byte[] data);                  // 写入一条日志记录，返回时日志已经落盘
+    long append(byte[] data);               // 追加一条日志记录但不等待落盘，返回日志末尾的位置（LSN）
+    void flush(long lsn);                   // 等待 lsn 之前的日志全部落盘
+    void flush();                           // 等待已经追加的日志全部落盘
     void truncate(long x) throws Exception; // 删除日志文件中x指针后面的文件数据
     byte[] next();                          // logger设计为一个迭代器，next()获取下一条日志，返回的是日志中的DATA数据
     void rewind();                          // 将文件指针指向第一条日志
@@ -51,7 +53,7 @@ public interface Logger {
             Panic.panic(e);
         }
 
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
+        ByteBuffer buf = ByteBuffer.wrap(LoggerImpl.header(0, LoggerImpl.HEADER_SIZE));
         try {
             fc.position(0);
             fc.write(buf);
@@ -77,6 +79,8 @@ public interface Logger {
         if(!f.canRead() || !f.canWrite()) {
             Panic.panic(Error.FileCannotRWException);
         }
+        // 旧版本的文件头没有 DurableEnd，先转换格式
+        LoggerImpl.upgrade(f);
 
         FileChannel fc = null;
         RandomAccessFile raf = null;
@@ -5,11 +5,16 @@ import com.charls.mydb.backend.utils.Parser;
 import com.charls.mydb.common.Error;
 import com.google.common.primitives.Bytes;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -17,15 +22,25 @@ import java.util.concurrent.locks.ReentrantLock;
  * 日志文件读写
  *
  * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 4字节int，为后续所有日志计算的Checksum
+ * [XChecksum] [DurableEnd] [Log1] [Log2] ... [LogN] [BadTail]
+ * XChecksum 4字节int，为 DurableEnd 之前所有日志计算的Checksum
+ * DurableEnd 8字节long，已经落盘的日志末尾位置（durable LSN），与 XChecksum 在同一次写入中更新
  * Log1 ~ LogN 是常规的日志数据
  * BadTail 是在数据库崩溃时，没有来得及写完的日志数据，这个 BadTail 不一定存在。
+ * 旧版本的文件头只有 XChecksum，打开时先转换为当前格式（见 upgrade()）。
  *
  * 每条正确日志的格式为：
  * [Size] [Checksum] [Data]
  * Size 4字节int 标识Data长度
  * Checksum 4字节int，单条记录的校验和
+ *
+ * 追加日志不加锁：追加者通过对 tail 的原子 getAndAdd 预留出自己的写入位置，随后各自并行地按位置写入文件。
+ * 落盘由 flush(lsn) 完成，同一时刻只有一个线程在刷盘：它按位置顺序把已经写完的日志折算进总校验和，
+ * 写回 XChecksum 和 DurableEnd 并 force，然后推进已落盘位置 flushed（durable LSN）。
+ * 刷盘时会顺带把其它线程已经写完的日志一起落盘，等待中的线程发现 flushed 已经越过自己的日志，就直接返回。
+ *
+ * 总校验和可以按顺序折算，是因为 calChecksum(x, log) == x * SEED^len + calChecksum(0, log)，
+ * 所以每条日志只需要在追加时算好 SEED^len 和自身的校验和。
  */
 public class LoggerImpl implements Logger{
 
@@ -35,15 +50,34 @@ public class LoggerImpl implements Logger{
     private static final int OF_CHECKSUM = OF_SIZE + 4; // 每条记录CheckSum的偏移量（Size占用4字节，所以偏移量+4，也就是日志 Checksum 的所在位置）
     private static final int OF_DATA = OF_CHECKSUM + 4; // 每条记录Data的偏移量（CheckSum占用4字节，所以偏移量+4，也就是日志 data[] 数据所在位置）
 
+    static final int OF_DURABLE_END = 4;                // 文件头中 DurableEnd 的偏移量
+    static final int OLD_HEADER_SIZE = OF_DURABLE_END;  // 旧格式的文件头大小，只有 XChecksum
+    static final int HEADER_SIZE = OF_DURABLE_END + 8;  // 文件头大小，第一条日志的起始位置
+
     public static final String LOG_SUFFIX = ".log";     // 日志文件的后缀
 
     private RandomAccessFile file;                      // 支持“随机访问”的方式，程序快可以直接跳转到文件的任意地方来读写数据。
     private FileChannel fc;                             // 直接连接输入输出流的文件通道，将数据直接写入到目标文件中去。
-    private Lock lock;
+    private Lock lock;                                  // 迭代读取日志时使用的锁
+    private Lock flushLock;                             // 刷盘锁，同一时刻只有一个线程在折算校验和并刷盘
 
     private long position;                              // 当前日志指针的位置
     private long fileSize;                              // 日志文件的大小，初始化时记录，log操作不更新
-    private int xChecksum;                              // 日志文件的总 校验和
+    private int xChecksum;                              // 日志文件的总 校验和，只覆盖 folded 之前的日志
+
+    private AtomicLong tail;                            // 下一条日志的写入位置，追加者原子地在这里预留空间
+    private long folded;                                // 已经折算进总校验和的日志末尾位置，只在 flushLock 内访问
+    private volatile long flushed;                      // 已经落盘的日志末尾位置
+    private ConcurrentHashMap<Long, LogSlot> written;   // 已经写入文件、还没有折算进总校验和的日志，key 为日志的起始位置
+
+    /**
+     * 一条已经写入文件的日志，记录折算总校验和需要的信息
+     */
+    private static class LogSlot {
+        long end;           // 日志末尾的位置
+        int pow;            // SEED^日志长度
+        int checksum;       // calChecksum(0, log)
+    }
 
     /**
      * 构造函数
@@ -54,6 +88,8 @@ public class LoggerImpl implements Logger{
         this.file = raf;
         this.fc = fc;
         lock = new ReentrantLock();
+        flushLock = new ReentrantLock();
+        written = new ConcurrentHashMap<>();
     }
 
     /**
@@ -67,6 +103,19 @@ public class LoggerImpl implements Logger{
         this.fc = fc;
         this.xChecksum = xChecksum;                    // 和上一个构造函数相比  多了一个总校验和
         lock = new ReentrantLock();
+        flushLock = new ReentrantLock();
+        written = new ConcurrentHashMap<>();
+        initTail(HEADER_SIZE);
+    }
+
+    /**
+     * 设置日志的追加位置，此位置之前的日志都已经落盘
+     * @param end
+     */
+    private void initTail(long end) {
+        this.tail = new AtomicLong(end);
+        this.folded = end;
+        this.flushed = end;
     }
 
     /**
@@ -80,12 +129,12 @@ public class LoggerImpl implements Logger{
         }catch (IOException e){
             Panic.panic(e);
         }
-        if (size<4){
+        if (size<HEADER_SIZE){
             Panic.panic(Error.BadLogFileException);
         }
 
-        // 2.读取日志文件的大小 和 总校验xChecksum
-        ByteBuffer raw = ByteBuffer.allocate(4);
+        // 2.读取日志文件的大小、总校验xChecksum 和已经落盘的日志末尾位置
+        ByteBuffer raw = ByteBuffer.allocate(HEADER_SIZE);
         try {
             fc.position(0);
             fc.read(raw);
@@ -93,22 +142,31 @@ public class LoggerImpl implements Logger{
             Panic.panic(e);
         }
         int xChecksum = Parser.parseInt(raw.array());
+        long durableEnd = Parser.parseLong(raw.array(), OF_DURABLE_END);
         this.fileSize=size;  // 文件长度
         this.xChecksum=xChecksum;
 
         // 3.检查并移除可能存在的 badTail
-        checkAndRemoveTail();
+        checkAndRemoveTail(durableEnd);
     }
 
     /**
      * 检查并移除 badTail
+     * 并发追加时，总校验和只覆盖已经落盘的日志，其后可能还有已经写入但没有确认落盘的日志，
+     * 这些日志的追加者还没有返回，同样视作 badTail 截掉。
+     * 截断位置就是文件头记录的 durableEnd，校验和只用来确认 durableEnd 之前的日志完整，
+     * 不用“校验和第一次相等”来推断末尾，否则前面某段日志的校验和碰巧相等时会截掉已经落盘的日志。
+     * @param durableEnd 已经落盘的日志末尾位置
      */
-    private void checkAndRemoveTail(){
+    private void checkAndRemoveTail(long durableEnd){
+        if(durableEnd < HEADER_SIZE || durableEnd > fileSize) {
+            Panic.panic(Error.BadLogFileException);
+        }
         // 将指针指向第一条日志记录
         rewind();
 
         int xCheck = 0;
-        while(true) {
+        while(position < durableEnd) {
             // 循环遍历获取每一条日志记录
             byte[] log = internNext();
             if(log == null) {
@@ -117,22 +175,25 @@ public class LoggerImpl implements Logger{
             // 对每条记录都进行计算校验和累加值，就是xChecksum
             xCheck = calChecksum(xCheck, log);
         }
-        // 校验和不相等
-        if(xCheck != xChecksum) {
+        // durableEnd 不在日志边界上，或者之前的日志被破坏
+        if(position != durableEnd || xCheck != xChecksum) {
             Panic.panic(Error.BadLogFileException);
         }
+        long validEnd = durableEnd;
 
         // 校验和相等
         try {
-            truncate(position);// 截断文件到正常日志的末尾，因为前面计算校验和移动了指针，此时的position指向的就是badTail的起始位置
+            truncate(validEnd);// 截断文件到正常日志的末尾，validEnd 之后就是 badTail
         } catch (Exception e) {
             Panic.panic(e);
         }
         try {
-            file.seek(position);
+            file.seek(validEnd);
         } catch (IOException e) {
             Panic.panic(e);
         }
+        this.fileSize = validEnd;
+        initTail(validEnd);
         // 将position指针指向第一条日志记录，还原指针操作
         rewind();
     }
@@ -144,47 +205,175 @@ public class LoggerImpl implements Logger{
      * @param log 需要计算校验和的单条日志文件
      * @return 单条日志的校验和
      */
-    private int calChecksum(int xCheck,byte[]log){
+    static int calChecksum(int xCheck,byte[]log){
         for (byte b:log){
             xCheck=xCheck*SEED+b;
         }
         return xCheck;
     }
 
+    /**
+     * SEED 的 length 次方，用于把单条日志的校验和折算进总校验和
+     */
+    private int calPow(int length) {
+        int pow = 1;
+        for (int i = 0; i < length; i++) {
+            pow *= SEED;
+        }
+        return pow;
+    }
+
     /**
      * 写入一条日志记录
      *
-     * 将数据包裹成日志格式，写入文件后，再更新文件的校验和，更新校验和时，会刷新缓冲区，保证内容写入磁盘
+     * 追加日志后等待其落盘
      * @param data 日志数据
      */
     @Override
     public void log(byte[] data) {
+        flush(append(data));
+    }
+
+    /**
+     * 追加一条日志记录，不等待落盘
+     *
+     * 将数据包裹成日志格式，原子地预留写入位置后直接按位置写入文件，不需要加锁，也不需要查询文件大小
+     * @param data 日志数据
+     * @return 日志末尾的位置，传给 flush() 等待其落盘
+     */
+    @Override
+    public long append(byte[] data) {
         byte[] log = wrapLog(data); // 将数据打包成正确的日志格式
+        long start = tail.getAndAdd(log.length);
         ByteBuffer buf = ByteBuffer.wrap(log);
-        lock.lock();
         try {
-            fc.position(fc.size());// 指针移动到文件末尾
-            fc.write(buf);         // 将记录写入文件
+            while(buf.hasRemaining()) {
+                fc.write(buf, start + buf.position());
+            }
         } catch(IOException e) {
             Panic.panic(e);
-        } finally {
-            lock.unlock();
         }
-        updateXChecksum(log);      // 更新总校验和
+        LogSlot slot = new LogSlot();
+        slot.end = start + log.length;
+        slot.pow = calPow(log.length);
+        slot.checksum = calChecksum(0, log);
+        written.put(start, slot);
+        return slot.end;
+    }
+
+    /**
+     * 等待已经追加的日志全部落盘
+     */
+    @Override
+    public void flush() {
+        flush(tail.get());
     }
 
     /**
-     * 更新日志文件的总校验和
-     * @param log
+     * 等待 lsn 之前的日志全部落盘
+     *
+     * 按位置顺序把已经写完的日志折算进总校验和，写回 XChecksum 并刷盘。
+     * 在 lsn 之前预留了位置的日志一定会被写完，只需要等待；lsn 之后已经写完的日志也一起落盘。
+     * @param lsn 日志末尾的位置
      */
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    @Override
+    public void flush(long lsn) {
+        if(flushed >= lsn) {
+            return;
+        }
+        flushLock.lock();
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
+            if(flushed >= lsn) {
+                return;
+            }
+            while(true) {
+                LogSlot slot = written.remove(folded);
+                if(slot == null) {
+                    if(folded >= lsn) {
+                        break;
+                    }
+                    // 前面预留了位置的追加者还没有写完
+                    Thread.yield();
+                    continue;
+                }
+                xChecksum = xChecksum * slot.pow + slot.checksum;
+                folded = slot.end;
+            }
+            fc.write(ByteBuffer.wrap(header(xChecksum, folded)), 0);
             fc.force(false);
+            flushed = folded;
         } catch(IOException e) {
             Panic.panic(e);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 文件头：[XChecksum] [DurableEnd]，两者在同一次写入中更新
+     */
+    static byte[] header(int xChecksum, long durableEnd) {
+        return Bytes.concat(Parser.int2Byte(xChecksum), Parser.long2Byte(durableEnd));
+    }
+
+    /**
+     * 把旧格式的日志文件转换为当前格式，当前格式的文件不做修改
+     * 旧的文件头只有 XChecksum，日志从第 4 个字节开始。日志的 Size 不会是 0，所以旧文件中 XChecksum 之后的 8 个字节
+     * 按 DurableEnd 读出来不小于 2^32，超过文件长度；不到 12 个字节的文件也只能是旧格式，据此识别。
+     * 按旧的规则校验并去掉 BadTail，再把日志写到临时文件中新的文件头之后，刷盘后替换原文件，中途崩溃时原文件不变
+     * @param f 日志文件
+     */
+    static void upgrade(File f) {
+        File tmp = new File(f.getPath() + ".tmp");
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+                long size = raf.length();
+                if(size >= HEADER_SIZE) {
+                    raf.seek(OF_DURABLE_END);
+                    if(raf.readLong() <= size) {
+                        return;
+                    }
+                } else if(size < OLD_HEADER_SIZE) {
+                    // 长度不合法，交给 init() 报错
+                    return;
+                }
+                raf.seek(0);
+                int xChecksum = raf.readInt();
+                long end = OLD_HEADER_SIZE;
+                int xCheck = 0;
+                while(end + OF_DATA < size) {
+                    raf.seek(end);
+                    int len = raf.readInt();
+                    if(len <= 0 || end + OF_DATA + len > size) {
+                        break;
+                    }
+                    byte[] log = new byte[OF_DATA + len];
+                    raf.seek(end);
+                    raf.readFully(log);
+                    if(calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length)) != Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA))) {
+                        break;
+                    }
+                    xCheck = calChecksum(xCheck, log);
+                    end += log.length;
+                }
+                if(xCheck != xChecksum) {
+                    Panic.panic(Error.BadLogFileException);
+                }
+
+                try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+                    FileChannel tfc = out.getChannel();
+                    tfc.truncate(0);
+                    tfc.write(ByteBuffer.wrap(header(xChecksum, end - OLD_HEADER_SIZE + HEADER_SIZE)));
+                    FileChannel fc = raf.getChannel();
+                    for(long pos = OLD_HEADER_SIZE; pos < end; ) {
+                        pos += fc.transferTo(pos, end - pos, tfc);
+                    }
+                    tfc.force(true);
+                }
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
         }
     }
 
@@ -254,6 +443,10 @@ public class LoggerImpl implements Logger{
             Panic.panic(e);
         }
         int size = Parser.parseInt(tmp.array());
+        // 空日志不会被写入，size 为 0 说明这里是预留了位置却没有写完的空洞
+        if (size<=0){
+            return null;
+        }
         // 判断position是否已经读到了文件末尾
         if (position+size+OF_DATA>fileSize){
             return null;
@@ -288,7 +481,7 @@ public class LoggerImpl implements Logger{
      */
     @Override
     public void rewind() {
-        position=4;
+        position=HEADER_SIZE;
     }
 
     /**
@@ -296,6 +489,7 @@ public class LoggerImpl implements Logger{
      */
     @Override
     public void close() {
+        flush();
         try {
             fc.close();
             file.close();
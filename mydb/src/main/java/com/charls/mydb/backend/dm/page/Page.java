@@ -11,4 +11,6 @@ public interface Page {
     boolean isDirty();              // 判断页面是否为脏页面
     int getPageNumber();            // 获取页号
     byte[] getData();               // 获取数据页的数据
+    void setLsn(long lsn);          // 记录修改了这个页面的日志的末尾位置，保留最大的一个
+    long getLsn();                  // 页面写回之前，这个位置之前的日志必须已经落盘（WAL）
 }
@@ -3,6 +3,7 @@ package com.charls.mydb.backend.dm.page;
 
 import com.charls.mydb.backend.dm.pageCache.PageCache;
 
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -17,6 +18,7 @@ public class PageImpl implements Page{
     private int pageNumber; // 页面的页号，从1开始
     private byte[] data;    // 这个页实际包含的字节数据
     private boolean dirty;  // 标志这个页面是否是脏页面，缓存驱逐的时候，脏页面需要被写回磁盘
+    private AtomicLong lsn; // 最后一条修改这个页面的日志的末尾位置，写回前先让日志落盘到这里
 
     private Lock lock;
 
@@ -33,6 +35,7 @@ public class PageImpl implements Page{
         this.data = data;
         this.pc=pc;
         lock=new ReentrantLock();
+        lsn=new AtomicLong();
     }
 
     @Override
@@ -69,4 +72,14 @@ public class PageImpl implements Page{
     public byte[] getData() {
         return data;
     }
+
+    @Override
+    public void setLsn(long lsn) {
+        this.lsn.accumulateAndGet(lsn, Math::max);
+    }
+
+    @Override
+    public long getLsn() {
+        return lsn.get();
+    }
 }
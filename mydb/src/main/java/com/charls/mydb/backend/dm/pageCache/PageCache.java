@@ -1,5 +1,6 @@
 package com.charls.mydb.backend.dm.pageCache;
 
+import com.charls.mydb.backend.dm.logger.Logger;
 import com.charls.mydb.backend.dm.page.Page;
 import com.charls.mydb.backend.utils.Panic;
 import com.charls.mydb.common.Error;
@@ -27,6 +28,8 @@ public interface PageCache {
     void truncateByBgno(int maxPgno);           // 删除maxPgno后面的数据页
     int getPageNumber();                        // 获取当前数据库文件的页面总数
     void flushPage(Page pg);                    // 将数据页写入数据源中
+    int getMaxPages();                          // 缓存最多能同时持有的页面数
+    void setLogger(Logger lg);                  // 写回页面前用来让日志落盘，保证 WAL
 
     /**
      * 新建一个数据库文件和数据页面缓存器
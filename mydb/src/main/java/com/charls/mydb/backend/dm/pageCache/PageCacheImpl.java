@@ -1,6 +1,7 @@
 package com.charls.mydb.backend.dm.pageCache;
 
 import com.charls.mydb.backend.common.AbstractCache;
+import com.charls.mydb.backend.dm.logger.Logger;
 import com.charls.mydb.backend.dm.page.Page;
 import com.charls.mydb.backend.dm.page.PageImpl;
 import com.charls.mydb.backend.utils.Panic;
@@ -27,6 +28,7 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     private RandomAccessFile file;                  // 支持“随机访问”的方式，程序快可以直接跳转到文件的任意地方来读写数据。
     private FileChannel fc;                         // 直接连接输入输出流的文件通道，将数据直接写入到目标文件中去。
     private Lock fileLock;
+    private volatile Logger logger;                 // 写回页面前让日志落盘，没有设置时（恢复期间）直接写回
 
     private AtomicInteger pageNumbers;              // 记录当前打开的数据库文件有多少页面
 
@@ -182,13 +184,29 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         flush(pg);
     }
 
+    @Override
+    public int getMaxPages() {
+        return getMaxResource();
+    }
+
+    @Override
+    public void setLogger(Logger lg) {
+        this.logger = lg;
+    }
+
     /**
      * 将数据页中的数据写回到数据源文件的规定位置中
+     * 先让修改过这个页面的日志落盘（WAL），否则崩溃后磁盘上的页面可能包含日志中不存在的修改，
+     * 比如指向一个插入日志没有落盘的节点，恢复时无法撤销或重做
      * @param pg 数据页
      */
     private void flush(Page pg) {
         int pgno = pg.getPageNumber();                      // 获取页号
         long offset = pageOffset(pgno);                     // 获取该页面在文件中的偏移量
+        Logger lg = logger;
+        if(lg != null) {
+            lg.flush(pg.getLsn());
+        }
 
         // 将数据页中的数据写回数据源文件的指定位置
         fileLock.lock();
@@ -5,22 +5,51 @@ import com.charls.mydb.backend.dm.DataManager;
 import com.charls.mydb.backend.dm.dataItem.DataItem;
 import com.charls.mydb.backend.tm.TransactionManagerImpl;
 import com.charls.mydb.backend.utils.Parser;
+import com.charls.mydb.common.Error;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * B+ 树索引
- * IM 对上层模块主要提供两种能力：插入索引  和  搜索节点
+ * IM 对上层模块主要提供三种能力：插入索引、删除索引  和  搜索节点
+ *
+ * 查找、插入和删除都持有结构锁的读锁，节点之间靠兄弟指针向右追赶并发的分裂；范围扫描的游标只在下降时持有读锁（见 Cursor）。
+ * 删除后节点分支数过少时只锁住父节点和两个相邻的孩子合并或借用，分支只从左边的节点移到右边，
+ * 并发的访问同样靠兄弟指针找到移走的分支。结构锁的写锁只用于降低树高、批量构建和关闭。
+ *
+ * 根节点的 uid 缓存在 rootUid 中，只在 bootDataItem 修改时更新，查找不需要解析 bootDataItem；
+ * 靠近根节点的 PINNED_LEVELS 层内部节点第一次访问后常驻内存（见 loadNode()），之后的访问不再经过 DM 的缓存和引用计数，
+ * 点查询只有叶子节点需要从缓存中获取。常驻的节点只在持有结构锁的写锁时（降低树高、批量构建）释放；
+ * 合并清空的节点立即移出 pinned，不再占用名额，数据项等到下一次持有写锁时释放（见 retire()）。
+ *
+ * 单调递增的 key 总是插入到最右边的叶子节点：rightmostLeaf 记录这个叶子，追加不引起分裂时直接在它的末尾插入，
+ * 不从根节点查找；需要分裂时仍然从根节点插入，在靠右的位置分裂（见 Node.insertAndSplit()）。
+ *
+ * key 是变长的字节串，按无符号字节的字典序比较（见 Keys），长度不超过 Node.MAX_KEY_SIZE；
+ * 范围查找的区间是左闭右开的 [leftKey, rightKey)，rightKey 为 null 表示没有上界。
+ * 以 long 为 key 的方法把 key 编码为 Keys.of(long)，范围 [leftKey, rightKey] 两端都包含。
  */
 public class BPlusTree {
+    static final int PINNED_LEVELS = 2;     // 从根节点开始常驻内存的层数
+    static final int MAX_PINNED = 1024;     // 常驻内存的节点数上限
+
     DataManager dm;
     long bootUid;
-    Lock bootLock;
+    volatile long rootUid;  // 根节点的 uid，与 bootDataItem 中的内容一致
+    Lock bootLock;          // 保护 bootDataItem 的修改
+    ReentrantReadWriteLock structLock;  // 结构锁，降低树高和批量构建时独占
     DataItem bootDataItem; // 由于 B+ 树在插入删除时，会动态调整，根节点不是固定节点，于是设置一个 bootDataItem，该 DataItem 中存储了根节点的 UID。
+    ConcurrentHashMap<Long, Node> pinned;   // 常驻内存的节点
+    ConcurrentLinkedQueue<Node> retired;    // 已经移出 pinned、还没有释放数据项的节点
+    int maxPinned;
+    volatile long rightmostLeaf;            // 最右边的叶子节点，可能已经过时，由 Node.leafAppend() 检查
 
     public static long create(DataManager dm) throws Exception {
         byte[] rawRoot = Node.newNilRootRaw();
@@ -35,59 +64,129 @@ public class BPlusTree {
         t.bootUid = bootUid;
         t.dm = dm;
         t.bootDataItem = bootDataItem;
+        SubArray sa = bootDataItem.data();
+        t.rootUid = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
         t.bootLock = new ReentrantLock();
+        t.structLock = new ReentrantReadWriteLock();
+        t.pinned = new ConcurrentHashMap<>();
+        t.retired = new ConcurrentLinkedQueue<>();
+        // 每个常驻的节点最多占住一个页面，不能挤占太多页面缓存
+        t.maxPinned = Math.min(MAX_PINNED, dm.getMaxPages() / 4);
         return t;
     }
 
     private long rootUid() {
-        bootLock.lock();
-        try {
-            SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
-        } finally {
-            bootLock.unlock();
+        return rootUid;
+    }
+
+    /**
+     * 让 bootDataItem 指向新的根节点，调用方持有 bootLock
+     */
+    private void setRootUid(long rootUid) {
+        bootDataItem.before();
+        SubArray diRaw = bootDataItem.data();
+        System.arraycopy(Parser.long2Byte(rootUid), 0, diRaw.raw, diRaw.start, 8);
+        bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+        this.rootUid = rootUid;
+    }
+
+    /**
+     * 获取第 level 层（根节点为第 0 层）的节点
+     * 常驻内存的节点直接返回，它的 release() 不释放数据项；
+     * 前 PINNED_LEVELS 层的内部节点第一次加载后常驻内存，树长高后它们所在的层变低，仍然常驻，总数不超过 maxPinned
+     */
+    private Node loadNode(long uid, int level) throws Exception {
+        Node node = pinned.get(uid);
+        if(node != null) {
+            return node;
+        }
+        node = Node.loadNode(this, uid);
+        // 合并清空的节点不会再被使用，不常驻
+        if(level < PINNED_LEVELS && pinned.size() < maxPinned && !node.isLeaf() && node.getNoKeys() > 0) {
+            node.pinned = true;
+            Node prev = pinned.putIfAbsent(uid, node);
+            if(prev != null) {
+                // 其他线程已经放入
+                node.pinned = false;
+                node.release();
+                return prev;
+            }
+            if(node.getNoKeys() == 0) {
+                // 放入之前已经被合并清空，retire() 没有看到它
+                retire(uid);
+            }
         }
+        return node;
     }
 
-    private void updateRootUid(long left, long right, long rightKey) throws Exception {
-        bootLock.lock();
-        try {
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
-            long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
-            bootDataItem.before();
-            SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
-            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
-        } finally {
-            bootLock.unlock();
+    /**
+     * 节点不再常驻内存，调用方持有结构锁的写锁
+     */
+    private void unpin(long uid) {
+        Node node = pinned.remove(uid);
+        if(node != null) {
+            node.pinned = false;
+            node.release();
         }
     }
 
-    private long searchLeaf(long nodeUid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
+    private void unpinAll() {
+        for(Long uid : pinned.keySet()) {
+            unpin(uid);
+        }
+        releaseRetired();
+    }
 
-        if(isLeaf) {
-            return nodeUid;
-        } else {
-            long next = searchNext(nodeUid, key);
-            return searchLeaf(next, key);
+    /**
+     * 合并清空的节点不再常驻内存，只持有结构锁的读锁
+     * 立即移出 pinned，让出 maxPinned 的名额；其他持有读锁的线程可能还在使用它，它的 release() 仍然不释放数据项，
+     * 数据项由 releaseRetired() 在持有写锁、没有其他线程使用时释放
+     */
+    private void retire(long uid) {
+        Node node = pinned.remove(uid);
+        if(node != null) {
+            retired.add(node);
+        }
+    }
+
+    /**
+     * 释放 retire() 移出的节点的数据项，调用方持有结构锁的写锁
+     */
+    private void releaseRetired() {
+        Node node;
+        while((node = retired.poll()) != null) {
+            node.pinned = false;
+            node.release();
+        }
+    }
+
+    private long searchLeaf(long nodeUid, byte[] key) throws Exception {
+        for(int level = 0; ; level ++) {
+            Node node = loadNode(nodeUid, level);
+            boolean isLeaf = node.isLeaf();
+            node.release();
+            if(isLeaf) {
+                return nodeUid;
+            }
+            nodeUid = searchNext(nodeUid, level, key);
         }
     }
 
     /**
      * serchNext()方法是在索引树上寻找下一个孩子结点，无限循环直到走到叶子结点为止；这个结点没有符合要求的就去下一个兄弟结点找
      */
-    private long searchNext(long nodeUid, long key) throws Exception {
+    private long searchNext(long nodeUid, int level, byte[] key) throws Exception {
         while(true) {
-            Node node = Node.loadNode(this, nodeUid);
-            Node.SearchNextRes res = node.searchNext(key);
-            node.release(); // 释放缓存
-            if(res.uid != 0) {
-                return res.uid;
+            Node node = loadNode(nodeUid, level);
+            try {
+                long son = node.searchNext(key);
+                if(son != 0) {
+                    return son;
+                }
+                nodeUid = node.getSibling();
+            } finally {
+                node.release(); // 释放缓存
             }
-            nodeUid = res.siblingUid;
         }
     }
 
@@ -95,35 +194,292 @@ public class BPlusTree {
         return searchRange(key, key);
     }
 
+    public List<Long> search(byte[] key) throws Exception {
+        return searchRange(key, Keys.successor(key));
+    }
+
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-        long rootUid = rootUid();
-        long leafUid = searchLeaf(rootUid, leftKey);
+        return searchRange(Keys.of(leftKey), Keys.successor(Keys.of(rightKey)));
+    }
+
+    public List<Long> searchRange(byte[] leftKey, byte[] rightKey) throws Exception {
         List<Long> uids = new ArrayList<>();
-        while(true) {
-            Node leaf = Node.loadNode(this, leafUid);
-            Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
-            leaf.release();
-            uids.addAll(res.uids);
-            if(res.siblingUid == 0) {
-                break;
-            } else {
-                leafUid = res.siblingUid;
+        try(Cursor c = scan(leftKey, rightKey)) {
+            while(c.hasNext()) {
+                uids.add(c.next());
             }
         }
         return uids;
     }
 
+    public Cursor scan(long leftKey, long rightKey) throws Exception {
+        return scan(Keys.of(leftKey), Keys.successor(Keys.of(rightKey)));
+    }
+
+    /**
+     * 打开 [leftKey, rightKey) 上的游标，逐个叶子读出 uid，用完之后需要关闭
+     * 只在查找第一个叶子时持有结构锁的读锁，扫描期间不持有
+     * @param rightKey null 表示没有上界
+     */
+    public Cursor scan(byte[] leftKey, byte[] rightKey) throws Exception {
+        long leafUid;
+        structLock.readLock().lock();
+        try {
+            leafUid = searchLeaf(rootUid(), leftKey);
+        } finally {
+            structLock.readLock().unlock();
+        }
+        return new Cursor(this, leafUid, leftKey, rightKey);
+    }
+
     public void insert(long key, long uid) throws Exception {
-        long rootUid = rootUid();
-        InsertRes res = insert(rootUid, uid, key);
-        assert res != null;
-        if(res.newNode != 0) {
-            updateRootUid(rootUid, res.newNode, res.newKey);
+        insert(Keys.of(key), uid);
+    }
+
+    public void insert(byte[] key, long uid) throws Exception {
+        if(key.length > Node.MAX_KEY_SIZE) {
+            throw Error.KeyTooLongException;
+        }
+        structLock.readLock().lock();
+        try {
+            if(appendRightmost(key, uid)) {
+                return;
+            }
+            InsertRes res = insert(rootUid(), 0, uid, key);
+            assert res != null;
+            while(res.newNode != 0) {
+                res = insertParent(res);
+            }
+        } finally {
+            structLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 把第 res.height 层（叶子为第 0 层）的节点 res.splitNode 分裂出的 res.newNode 插入到上一层
+     * 分裂的是根节点时生成新的根节点。否则根节点已经被其他线程分裂并替换，从当前的根节点下降到上一层，
+     * 在 splitNode 之后插入；其他线程分裂了同一层的根节点但还没有生成新的根节点时，上一层还不存在，等待它生成
+     * @return 上一层插入后的分裂结果
+     */
+    private InsertRes insertParent(InsertRes res) throws Exception {
+        while(true) {
+            long rootUid;
+            bootLock.lock();
+            try {
+                rootUid = rootUid();
+                if(rootUid == res.splitNode) {
+                    byte[] rootRaw = Node.newRootRaw(res.splitNode, res.newNode, res.newKey);
+                    setRootUid(dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw));
+                    return new InsertRes();
+                }
+            } finally {
+                bootLock.unlock();
+            }
+            // 下降到叶子得到树高，path 中第 i 个节点在第 i 层（根节点为第 0 层）
+            List<Long> path = new ArrayList<>();
+            long nodeUid = rootUid;
+            while(true) {
+                int level = path.size();
+                path.add(nodeUid);
+                Node node = loadNode(nodeUid, level);
+                boolean isLeaf = node.isLeaf();
+                node.release();
+                if(isLeaf) {
+                    break;
+                }
+                nodeUid = searchNext(nodeUid, level, res.newKey);
+            }
+            int level = path.size() - 2 - res.height;
+            if(level >= 0) {
+                InsertRes parent = insertAndSplit(path.get(level), level, res.newNode, res.newKey, res.splitNode);
+                parent.height = res.height + 1;
+                return parent;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 尝试在最右边的叶子节点末尾追加 (key, uid)
+     */
+    private boolean appendRightmost(byte[] key, long uid) throws Exception {
+        long leafUid = rightmostLeaf;
+        if(leafUid == 0) {
+            return false;
+        }
+        Node leaf = Node.loadNode(this, leafUid);
+        try {
+            return leaf.leafAppend(uid, key);
+        } finally {
+            leaf.release();
+        }
+    }
+
+    /**
+     * 用 loader 中的索引项自底向上构建一棵新树，替换这棵树原来的内容
+     * 新树的节点全部写入之后，才在结构锁的写锁下让 bootDataItem 指向新的根节点，替换是原子的；
+     * 原来的节点不再被引用。构建期间对原来的树的修改不会出现在新树中，调用方需要保证没有并发修改。
+     */
+    public void bulkLoad(BulkLoader loader) throws Exception {
+        long newRootUid = loader.build();
+        // 新树所有节点的插入日志落盘之后才修改 bootDataItem，崩溃后根节点不会指向没有恢复的节点
+        dm.flushLog();
+        structLock.writeLock().lock();
+        bootLock.lock();
+        try {
+            setRootUid(newRootUid);
+            unpinAll();
+            rightmostLeaf = 0;
+        } finally {
+            bootLock.unlock();
+            structLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 删除索引项 (key, uid)，持有结构锁的读锁
+     * 下降时记录经过的节点，从叶子节点删除后使用的空间过少时，在父节点中和相邻的兄弟合并或借用（见 Node.rebalanceSon()），
+     * 父节点因合并而过少时继续向上调整，每一步只锁住父节点和两个孩子。
+     * 根节点只剩一个孩子时降低树高，这很少发生，释放读锁后短暂地持有写锁
+     * @return 是否找到并删除
+     */
+    public boolean delete(long key, long uid) throws Exception {
+        return delete(Keys.of(key), uid);
+    }
+
+    public boolean delete(byte[] key, long uid) throws Exception {
+        boolean collapse;
+        structLock.readLock().lock();
+        try {
+            long[] path = new long[8];
+            int depth = 0;
+            long nodeUid = rootUid();
+            for(int level = 0; ; level ++) {
+                if(depth == path.length) {
+                    path = Arrays.copyOf(path, depth * 2);
+                }
+                path[depth ++] = nodeUid;
+                Node node = loadNode(nodeUid, level);
+                boolean isLeaf = node.isLeaf();
+                node.release();
+                if(isLeaf) {
+                    break;
+                }
+                nodeUid = searchNext(nodeUid, level, key);
+            }
+            // 重复的 key 可能跨越多个叶子，不在查找到的叶子中时沿兄弟指针向右找
+            int left;
+            while(true) {
+                Node leaf = Node.loadNode(this, nodeUid);
+                long siblingUid;
+                try {
+                    left = leaf.leafRemove(key, uid);
+                    siblingUid = leaf.getSibling();
+                } finally {
+                    leaf.release();
+                }
+                if(left >= 0) {
+                    break;
+                }
+                if(left == Node.NOT_FOUND || siblingUid == 0) {
+                    return false;
+                }
+                nodeUid = siblingUid;
+            }
+            // 根节点是叶子时没有下限
+            collapse = left < Node.MIN_FILL && depth > 1 && rebalance(path, depth - 1, nodeUid, key);
+        } finally {
+            structLock.readLock().unlock();
+        }
+
+        if(collapse) {
+            structLock.writeLock().lock();
+            try {
+                collapseRoot(rootUid());
+                releaseRetired();
+            } finally {
+                structLock.writeLock().unlock();
+            }
+        } else if(!retired.isEmpty() && structLock.writeLock().tryLock()) {
+            // 不等待写锁，这次拿不到时留给之后的删除
+            try {
+                releaseRetired();
+            } finally {
+                structLock.writeLock().unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 第 level 层的节点 son 使用的空间过少，在父节点中调整；父节点因合并而过少时继续向上调整
+     * 父节点取下降时经过的节点，son 不在其中（并发的分裂把它移到了右边）时沿父节点的兄弟指针向右找
+     * @param key son 中的一个 key
+     * @return 根节点是否只剩一个孩子，需要降低树高
+     */
+    private boolean rebalance(long[] path, int level, long son, byte[] key) throws Exception {
+        for(; level > 0; level --) {
+            long parentUid = path[level - 1];
+            Node.RebalanceRes res;
+            while(true) {
+                Node parent = loadNode(parentUid, level - 1);
+                try {
+                    res = parent.rebalanceSon(son, key);
+                } finally {
+                    parent.release();
+                }
+                if(res.noKeys >= 0 || res.siblingUid == 0) {
+                    break;
+                }
+                parentUid = res.siblingUid;
+            }
+            if(!res.merged) {
+                return false;
+            }
+            retire(res.mergedUid);
+            if(level == 1) {
+                return parentUid == rootUid() && res.noKeys == 1;
+            }
+            if(!res.underflow) {
+                return false;
+            }
+            son = parentUid;
+        }
+        return false;
+    }
+
+    /**
+     * 根节点是只有一个孩子的内部节点时，让这个孩子成为新的根节点
+     */
+    private void collapseRoot(long rootUid) throws Exception {
+        long newRootUid = rootUid;
+        while(true) {
+            Node root = Node.loadNode(this, newRootUid);
+            try {
+                if(root.isLeaf() || root.getNoKeys() != 1) {
+                    break;
+                }
+                unpin(newRootUid);
+                newRootUid = root.getKthSon(0);
+            } finally {
+                root.release();
+            }
+        }
+        if(newRootUid != rootUid) {
+            bootLock.lock();
+            try {
+                setRootUid(newRootUid);
+            } finally {
+                bootLock.unlock();
+            }
         }
     }
 
     class InsertRes {
-        long newNode, newKey;
+        long newNode;
+        byte[] newKey;
+        long splitNode;     // 分裂出 newNode 的节点，向右追赶时可能不是下降时经过的节点
+        int height;         // splitNode 所在的层，叶子为第 0 层
     }
 
     /**
@@ -131,19 +487,20 @@ public class BPlusTree {
      * 先找到插入位置，也就是要递归到叶子结点为止才会真正插入
      * 期间一直在B+树上面靠serchNext()往下走索引树，serchNext()方法就是寻找下一个孩子结点的uid
      */
-    private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
+    private InsertRes insert(long nodeUid, int level, long uid, byte[] key) throws Exception {
+        Node node = loadNode(nodeUid, level);
         boolean isLeaf = node.isLeaf();
         node.release();
 
         InsertRes res = null;
         if(isLeaf) {
-            res = insertAndSplit(nodeUid, uid, key);
+            res = insertAndSplit(nodeUid, level, uid, key, 0);
         } else {
-            long next = searchNext(nodeUid, key);
-            InsertRes ir = insert(next, uid, key);
+            long next = searchNext(nodeUid, level, key);
+            InsertRes ir = insert(next, level + 1, uid, key);
             if(ir.newNode != 0) {
-                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
+                res = insertAndSplit(nodeUid, level, ir.newNode, ir.newKey, ir.splitNode);
+                res.height = ir.height + 1;
             } else {
                 res = new InsertRes();
             }
@@ -151,23 +508,43 @@ public class BPlusTree {
         return res;
     }
 
-    private InsertRes insertAndSplit(long nodeUid, long uid, long key) throws Exception {
+    private InsertRes insertAndSplit(long nodeUid, int level, long uid, byte[] key, long leftSon) throws Exception {
+        long first = nodeUid, son = leftSon;
         while(true) {
-            Node node = Node.loadNode(this, nodeUid);
-            Node.InsertAndSplitRes iasr = node.insertAndSplit(uid, key);
+            Node node = loadNode(nodeUid, level);
+            Node.InsertAndSplitRes iasr = node.insertAndSplit(uid, key, son);
             node.release();
-            if(iasr.siblingUid != 0) {
+            if(iasr.missing) {
+                // leftSon 是向右追赶到的、刚被其他线程分裂出来的节点，等那个线程把它插入这一层后从头重试，不能丢掉这个分界
+                Thread.yield();
+                nodeUid = first;
+                son = leftSon;
+            } else if(iasr.siblingUid != 0) {
+                if(iasr.pastLeftSon) {
+                    // 已经越过了 leftSon，兄弟节点中按 key 插入
+                    son = 0;
+                }
                 nodeUid = iasr.siblingUid;
             } else {
+                if(leftSon == 0 && iasr.rightmost) {
+                    rightmostLeaf = iasr.newSon != 0 ? iasr.newSon : nodeUid;
+                }
                 InsertRes res = new InsertRes();
                 res.newNode = iasr.newSon;
                 res.newKey = iasr.newKey;
+                res.splitNode = nodeUid;
                 return res;
             }
         }
     }
 
     public void close() {
+        structLock.writeLock().lock();
+        try {
+            unpinAll();
+        } finally {
+            structLock.writeLock().unlock();
+        }
         bootDataItem.release();
     }
 }
@@ -0,0 +1,363 @@
+package com.charls.mydb.backend.im;
+
+import com.charls.mydb.backend.common.SubArray;
+import com.charls.mydb.backend.dm.DataManager;
+import com.charls.mydb.backend.tm.TransactionManagerImpl;
+import com.charls.mydb.backend.utils.Panic;
+import com.charls.mydb.common.Error;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 自底向上批量构建 B+ 树
+ * 先收集所有 (key, uid)，超过内存上限的部分排好序写到临时文件，构建时多路归并；
+ * 然后按 key 从大到小逐层填满节点：从右往左构建时，每个节点的兄弟节点已经写入，
+ * 节点写入一次即可，WAL 中每个节点只有一条插入日志，不需要逐个 key 的插入日志和分裂。
+ *
+ * 节点按字节数填充；内部节点中孩子的上界取它最大的 key 和右边孩子最小的 key 之间最短的前缀，
+ * 与分裂产生的分界一致，每层最右边的孩子为正无穷。
+ * 使用方式：add() 所有索引项，再调用 BPlusTree.bulkLoad() 构建并替换原来的树。
+ */
+public class BulkLoader {
+    static final int RUN_SIZE = 1 << 20;            // 内存中最多保存的索引项数，超过时排序写到临时文件
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+    private DataManager dm;
+    private int runSize;
+    private int perNode;                            // 每个节点填入的字节数
+    private byte[][] keys;
+    private long[] uids;
+    private int size;
+    private List<File> runs;                        // 已经写到临时文件的有序段，每段从大到小
+
+    public BulkLoader(DataManager dm) throws Exception {
+        this(dm, DEFAULT_FILL_FACTOR);
+    }
+
+    /**
+     * @param fillFactor 节点的填充率，(0, 1]，留出的空间用于之后的插入，避免立即分裂
+     */
+    public BulkLoader(DataManager dm, double fillFactor) throws Exception {
+        this(dm, fillFactor, RUN_SIZE);
+    }
+
+    BulkLoader(DataManager dm, double fillFactor, int runSize) throws Exception {
+        if(!(fillFactor > 0 && fillFactor <= 1)) {
+            throw Error.InvalidFillFactorException;
+        }
+        this.dm = dm;
+        this.runSize = runSize;
+        // 使用的空间超过 SPLIT_LIMIT 就会分裂；平均分配剩下的分支时一个节点最多多出一个分支，所以上限再留出一个分支，
+        // 下限保证每个节点至少能放下两个最长的分支
+        int bytes = (int)(Node.SPLIT_LIMIT * fillFactor);
+        this.perNode = Math.max(2 * Node.MAX_ENTRY_SIZE, Math.min(Node.SPLIT_LIMIT - Node.MAX_ENTRY_SIZE, bytes));
+        this.keys = new byte[Math.min(1024, runSize)][];
+        this.uids = new long[keys.length];
+        this.runs = new ArrayList<>();
+    }
+
+    public void add(long key, long uid) throws Exception {
+        add(Keys.of(key), uid);
+    }
+
+    public void add(byte[] key, long uid) throws Exception {
+        if(key.length > Node.MAX_KEY_SIZE) {
+            throw Error.KeyTooLongException;
+        }
+        if(size == keys.length) {
+            if(size == runSize) {
+                spill();
+            } else {
+                keys = Arrays.copyOf(keys, Math.min(runSize, size * 2));
+                uids = Arrays.copyOf(uids, keys.length);
+            }
+        }
+        keys[size] = key;
+        uids[size] = uid;
+        size ++;
+    }
+
+    /**
+     * 将内存中的索引项排序后从大到小写到临时文件
+     */
+    private void spill() {
+        sort(0, size - 1);
+        try {
+            File f = File.createTempFile("mydb-bulk", ".run");
+            f.deleteOnExit();
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+                for(int i = size - 1; i >= 0; i --) {
+                    out.writeShort(keys[i].length);
+                    out.write(keys[i]);
+                    out.writeLong(uids[i]);
+                }
+            }
+            runs.add(f);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        size = 0;
+    }
+
+    /**
+     * 按 (key, uid) 升序排序 [lo, hi]
+     */
+    private void sort(int lo, int hi) {
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            byte[] pk = keys[mid];
+            long pu = uids[mid];
+            int i = lo, j = hi;
+            while(i <= j) {
+                while(compare(keys[i], uids[i], pk, pu) < 0) i ++;
+                while(compare(keys[j], uids[j], pk, pu) > 0) j --;
+                if(i <= j) {
+                    swap(i, j);
+                    i ++;
+                    j --;
+                }
+            }
+            // 先递归较短的一边，栈深度不超过 log n
+            if(j - lo < hi - i) {
+                sort(lo, j);
+                lo = i;
+            } else {
+                sort(i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    private static int compare(byte[] k1, long u1, byte[] k2, long u2) {
+        int c = Keys.compare(k1, k2);
+        return c != 0 ? c : Long.compare(u1, u2);
+    }
+
+    private void swap(int i, int j) {
+        byte[] k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+        long u = uids[i]; uids[i] = uids[j]; uids[j] = u;
+    }
+
+    /**
+     * 构建整棵树
+     * @return 新的根节点的 uid
+     */
+    long build() throws Exception {
+        Builder b = new Builder();
+        if(runs.isEmpty()) {
+            sort(0, size - 1);
+            for(int i = size - 1; i >= 0; i --) {
+                b.addLeaf(keys[i], uids[i]);
+            }
+        } else {
+            if(size > 0) {
+                spill();
+            }
+            merge(b);
+        }
+        return b.finish();
+    }
+
+    /**
+     * 多路归并所有有序段，从大到小交给 Builder
+     */
+    private void merge(Builder b) throws Exception {
+        PriorityQueue<RunReader> heap = new PriorityQueue<>((x, y) -> compare(y.key, y.uid, x.key, x.uid));
+        try {
+            for(File f : runs) {
+                RunReader r = new RunReader(f);
+                if(r.next()) {
+                    heap.add(r);
+                } else {
+                    r.close();
+                }
+            }
+            while(!heap.isEmpty()) {
+                RunReader r = heap.poll();
+                b.addLeaf(r.key, r.uid);
+                if(r.next()) {
+                    heap.add(r);
+                } else {
+                    r.close();
+                }
+            }
+        } finally {
+            for(RunReader r : heap) {
+                r.close();
+            }
+            for(File f : runs) {
+                f.delete();
+            }
+            runs.clear();
+        }
+    }
+
+    private static class RunReader {
+        DataInputStream in;
+        byte[] key;
+        long uid;
+
+        RunReader(File f) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        }
+
+        boolean next() throws IOException {
+            try {
+                key = new byte[in.readUnsignedShort()];
+                in.readFully(key);
+                uid = in.readLong();
+                return true;
+            } catch(EOFException e) {
+                return false;
+            }
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * 从右往左逐层构建，每层保存正在填充的两个节点的分支
+     * 攒满两个节点时才写入右边的一个，所以每层最后（最左边）剩下的分支总是和它右边的节点一起，
+     * 超过一个节点时在两个节点之间按字节数平均分配，最左边的节点不会只有几个分支
+     */
+    private class Builder {
+        List<Level> levels = new ArrayList<>();
+
+        private class Level {
+            // 按从右往左的顺序保存，第 0 个是最右边的分支
+            long[] sons = new long[Node.MAX_ENTRIES * 2];
+            byte[][] bounds = new byte[Node.MAX_ENTRIES * 2][];   // 叶子中是 key，内部节点中是孩子的上界，null 表示正无穷
+            byte[][] mins = new byte[Node.MAX_ENTRIES * 2][];     // 孩子中最小的 key
+            byte[][] maxs = new byte[Node.MAX_ENTRIES * 2][];     // 孩子中最大的 key
+            int count;
+            int bytes;                              // 保存的分支在节点中占用的空间
+            byte[] rightMin;                        // 右边已经加入的孩子的最小 key，用来计算下一个孩子的上界
+            long rightUid;                          // 这一层上一个写入的节点，是下一个节点的兄弟
+            int written;
+        }
+
+        private Level level(int l) {
+            while(levels.size() <= l) {
+                levels.add(new Level());
+            }
+            return levels.get(l);
+        }
+
+        /**
+         * 按从大到小的顺序加入叶子中的索引项
+         */
+        void addLeaf(byte[] key, long uid) throws Exception {
+            add(0, true, uid, key, key, key);
+        }
+
+        /**
+         * 按从右往左的顺序加入第 l 层的孩子
+         */
+        private void addSon(int l, long son, byte[] minKey, byte[] maxKey) throws Exception {
+            Level lv = level(l);
+            byte[] bound = lv.written == 0 && lv.count == 0 ? null : Keys.separator(maxKey, lv.rightMin);
+            lv.rightMin = minKey;
+            add(l, false, son, bound, minKey, maxKey);
+        }
+
+        private void add(int l, boolean leaf, long son, byte[] bound, byte[] minKey, byte[] maxKey) throws Exception {
+            Level lv = level(l);
+            lv.sons[lv.count] = son;
+            lv.bounds[lv.count] = bound;
+            lv.mins[lv.count] = minKey;
+            lv.maxs[lv.count] = maxKey;
+            lv.count ++;
+            lv.bytes += size(bound);
+            if(lv.bytes > perNode * 2) {
+                write(l, leaf, take(lv, perNode));
+            }
+        }
+
+        private int size(byte[] bound) {
+            return Node.SLOT_SIZE + (bound == null ? 0 : bound.length);
+        }
+
+        /**
+         * 从最右边开始不超过 limit 个字节的分支数，至少一个
+         */
+        private int take(Level lv, int limit) {
+            int n = 0, bytes = 0;
+            while(n < lv.count && (n == 0 || bytes + size(lv.bounds[n]) <= limit)) {
+                bytes += size(lv.bounds[n]);
+                n ++;
+            }
+            return n;
+        }
+
+        /**
+         * 将第 l 层最右边的 n 个分支写入一个节点，并作为孩子加入上一层
+         */
+        private void write(int l, boolean leaf, int n) throws Exception {
+            Level lv = level(l);
+            SubArray raw = Node.emptyRaw(leaf);
+            Node.setRawSibling(raw, lv.rightUid);
+            for(int i = n - 1; i >= 0; i --) {
+                // 节点内从小到大存放
+                Node.appendRawKth(raw, lv.bounds[i], lv.sons[i]);
+                lv.bytes -= size(lv.bounds[i]);
+            }
+            long uid = dm.insert(TransactionManagerImpl.SUPER_XID, raw.raw);
+            // 空树只有一个空叶子
+            byte[] minKey = n > 0 ? lv.mins[n - 1] : null, maxKey = n > 0 ? lv.maxs[0] : null;
+            lv.rightUid = uid;
+            lv.written ++;
+            lv.count -= n;
+            System.arraycopy(lv.sons, n, lv.sons, 0, lv.count);
+            System.arraycopy(lv.bounds, n, lv.bounds, 0, lv.count);
+            System.arraycopy(lv.mins, n, lv.mins, 0, lv.count);
+            System.arraycopy(lv.maxs, n, lv.maxs, 0, lv.count);
+            addSon(l + 1, uid, minKey, maxKey);
+        }
+
+        /**
+         * 写入第 l 层剩下的分支，超过一个节点时按字节数平均分成两个
+         */
+        private void flush(int l, boolean leaf) throws Exception {
+            Level lv = level(l);
+            if(lv.bytes > perNode) {
+                write(l, leaf, take(lv, lv.bytes / 2));
+            }
+            write(l, leaf, lv.count);
+        }
+
+        /**
+         * 写入每层剩下的节点
+         * @return 根节点的 uid
+         */
+        long finish() throws Exception {
+            Level leaves = level(0);
+            if(leaves.count > 0 || leaves.written == 0) {
+                flush(0, true);
+            }
+            for(int l = 1; ; l ++) {
+                Level lv = levels.get(l);
+                if(l == levels.size() - 1 && lv.written == 0 && lv.count == 1) {
+                    // 最上层只剩一个孩子，它就是根节点
+                    return lv.sons[0];
+                }
+                if(lv.count > 0) {
+                    flush(l, false);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.charls.mydb.backend.im;
+
+import java.util.Arrays;
+
+/**
+ * 多列索引的保序 key
+ * 每一列先编码为保序、并且不是其他值的编码的前缀的字节串（整数是定长的 Keys.of()，字符串是 StringKey.escape()），
+ * 再按列的顺序拼接。两个 key 第一个不同的字节总是落在第一个不同的列中，所以 key 的顺序就是 (a, b, ...) 的字典序，
+ * key 相等就是各列都相等。
+ *
+ * 查找时固定前面若干列的值得到前缀 P，以 P 开头的 key 就是满足这些列的记录，范围是 [P, Keys.prefixEnd(P))。
+ */
+public class CompositeKey {
+    private byte[] bytes = new byte[16];
+    private int len;
+
+    /**
+     * 拼接一列的编码
+     */
+    public CompositeKey append(byte[] code) {
+        if(len + code.length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, len + code.length));
+        }
+        System.arraycopy(code, 0, bytes, len, code.length);
+        len += code.length;
+        return this;
+    }
+
+    public byte[] toBytes() {
+        return Arrays.copyOf(bytes, len);
+    }
+}
@@ -0,0 +1,145 @@
+package com.charls.mydb.backend.im;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * B+ 树上的范围扫描游标，按 key 从小到大逐个返回 [leftKey, rightKey) 中的 uid
+ * 每次只读入一个叶子节点：命中的 uid 复制到缓冲区后立即释放这个节点，缓冲区读完再沿兄弟指针读入下一个，
+ * 所以任何时候最多只有一个叶子被引用，内存占用与范围大小无关，调用方也可以随时停止。
+ *
+ * 游标不持有结构锁，只在创建时查找第一个叶子期间持有读锁，之后只引用当前的叶子，沿兄弟指针向右移动。
+ * 合并清空的叶子保留兄弟指针，数据项也不会被回收，游标停在它上面时仍然能向右走到移走的分支。
+ * 并发的分裂、合并和借用都只把分支移到右边的节点，向右扫描不会遗漏，
+ * 但读过的分支可能被移到下一个叶子中再读到一次：移动的分支的 key 不大于已经返回的最后一个 key，
+ * 所以读入叶子时跳过更小的 key，和最后一个 key 相同的按 uid 跳过已经返回的（见 skipReturned()）。
+ */
+public class Cursor implements AutoCloseable {
+    BPlusTree tree;
+    byte[] leftKey, rightKey;   // rightKey 为 null 表示没有上界
+    long[] buf;                 // 当前叶子中命中的 uid
+    byte[] keyBuf;              // buf 中的 uid 对应的 key，依次存放
+    int[] keyOff, keyLen;       // 第 i 个 key 在 keyBuf 中的位置和长度
+    int pos, size;
+    long nextLeaf;              // 下一个要读的叶子，0 表示没有了
+    boolean closed;
+
+    boolean returned;           // 是否已经返回过分支
+    byte[] lastKey;             // 已经返回的最后一个 key，前 lastKeyLen 个字节有效
+    int lastKeyLen;
+    long[] lastUids;            // key 等于 lastKey 的已经返回的 uid，开放寻址，0 表示空位
+    int lastCount;
+
+    Cursor(BPlusTree tree, long leafUid, byte[] leftKey, byte[] rightKey) {
+        this.tree = tree;
+        this.leftKey = leftKey;
+        this.rightKey = rightKey;
+        this.buf = new long[Node.MAX_ENTRIES];
+        this.keyBuf = new byte[Node.NODE_SIZE];
+        this.keyOff = new int[Node.MAX_ENTRIES];
+        this.keyLen = new int[Node.MAX_ENTRIES];
+        this.lastKey = new byte[Node.MAX_KEY_SIZE];
+        this.lastUids = new long[16];
+        this.nextLeaf = leafUid;
+    }
+
+    public boolean hasNext() throws Exception {
+        while(pos == size) {
+            if(closed) {
+                return false;
+            }
+            if(nextLeaf == 0) {
+                close();
+                return false;
+            }
+            Node leaf = Node.loadNode(tree, nextLeaf);
+            try {
+                leaf.leafScan(this);
+            } finally {
+                leaf.release();
+            }
+            skipReturned();
+        }
+        return true;
+    }
+
+    /**
+     * 去掉刚读入的叶子中已经返回过的分支，并记下这一批分支
+     */
+    private void skipReturned() {
+        int n = 0;
+        for(int i = 0; i < size; i ++) {
+            long uid = buf[i];
+            int c = returned ? Keys.compare(keyBuf, keyOff[i], keyLen[i], lastKey, 0, lastKeyLen) : 1;
+            if(c < 0 || c == 0 && isReturned(uid)) {
+                continue;
+            }
+            if(c != 0) {
+                returned = true;
+                System.arraycopy(keyBuf, keyOff[i], lastKey, 0, keyLen[i]);
+                lastKeyLen = keyLen[i];
+                if(lastCount > 0) {
+                    Arrays.fill(lastUids, 0);
+                    lastCount = 0;
+                }
+            }
+            addReturned(uid);
+            buf[n++] = uid;
+        }
+        size = n;
+    }
+
+    private static int slot(long uid, int mask) {
+        long h = uid * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    private boolean isReturned(long uid) {
+        int mask = lastUids.length - 1;
+        for(int i = slot(uid, mask); lastUids[i] != 0; i = (i + 1) & mask) {
+            if(lastUids[i] == uid) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addReturned(long uid) {
+        if((lastCount + 1) * 2 > lastUids.length) {
+            long[] old = lastUids;
+            lastUids = new long[old.length * 2];
+            for(long u : old) {
+                if(u != 0) {
+                    putReturned(u);
+                }
+            }
+        }
+        putReturned(uid);
+        lastCount ++;
+    }
+
+    private void putReturned(long uid) {
+        int mask = lastUids.length - 1;
+        int i = slot(uid, mask);
+        while(lastUids[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        lastUids[i] = uid;
+    }
+
+    public long next() throws Exception {
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return buf[pos++];
+    }
+
+    @Override
+    public void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        pos = size = 0;
+    }
+}
@@ -0,0 +1,81 @@
+package com.charls.mydb.backend.im;
+
+import java.util.Arrays;
+
+/**
+ * B+ 树中的 key 是变长的字节串，按无符号字节的字典序比较，较短的前缀排在前面
+ * 整数编码为定长的大端字节并翻转符号位，字节序与数值顺序一致；字符串直接使用 UTF-8（见 StringKey）。
+ *
+ * 范围查找的区间是左闭右开的 [left, right)，right 为 null 表示没有上界：
+ * 等值查找为 [k, successor(k))，前缀查找为 [p, prefixEnd(p))。
+ */
+public class Keys {
+    public static final byte[] MIN = new byte[0];      // 最小的 key
+
+    public static int compare(byte[] a, byte[] b) {
+        return compare(a, 0, a.length, b, 0, b.length);
+    }
+
+    public static int compare(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+        int n = Math.min(aLen, bLen);
+        for(int i = 0; i < n; i ++) {
+            int c = (a[aOff + i] & 0xFF) - (b[bOff + i] & 0xFF);
+            if(c != 0) {
+                return c;
+            }
+        }
+        return aLen - bLen;
+    }
+
+    public static byte[] of(long v) {
+        v ^= Long.MIN_VALUE;
+        byte[] k = new byte[8];
+        for(int i = 7; i >= 0; i --) {
+            k[i] = (byte)v;
+            v >>>= 8;
+        }
+        return k;
+    }
+
+    public static byte[] of(int v) {
+        v ^= Integer.MIN_VALUE;
+        return new byte[]{(byte)(v >>> 24), (byte)(v >>> 16), (byte)(v >>> 8), (byte)v};
+    }
+
+    /**
+     * 比 k 大的最小的 key，即 k 后面补一个 0
+     */
+    public static byte[] successor(byte[] k) {
+        return Arrays.copyOf(k, k.length + 1);
+    }
+
+    /**
+     * 比所有以 p 开头的 key 都大的最小的 key：去掉末尾的 0xFF 后最后一个字节加一
+     * @return 不存在时（p 全是 0xFF）返回 null，表示没有上界
+     */
+    public static byte[] prefixEnd(byte[] p) {
+        for(int i = p.length - 1; i >= 0; i --) {
+            if(p[i] != (byte)0xFF) {
+                byte[] end = Arrays.copyOf(p, i + 1);
+                end[i] ++;
+                return end;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 在 [a, b] 中取最短的 key 作为分界，a <= b；b 为 null 表示没有上界
+     * a 是 b 的前缀时就是 a，否则是 b 在第一个不同的字节处截断的前缀
+     */
+    static byte[] separator(byte[] a, byte[] b) {
+        if(b == null) {
+            return a.clone();
+        }
+        int n = Math.min(a.length, b.length), i = 0;
+        while(i < n && a[i] == b[i]) {
+            i ++;
+        }
+        return i == a.length ? a.clone() : Arrays.copyOf(b, i + 1);
+    }
+}
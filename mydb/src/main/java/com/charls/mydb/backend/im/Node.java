@@ -1,45 +1,73 @@
 package com.charls.mydb.backend.im;
 
 import com.charls.mydb.backend.common.SubArray;
+import com.charls.mydb.backend.dm.Recover;
 import com.charls.mydb.backend.dm.dataItem.DataItem;
 import com.charls.mydb.backend.tm.TransactionManagerImpl;
 import com.charls.mydb.backend.utils.Parser;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
+
 
 /**
  * 二叉树的Node结构如下：
  * 头部信息：
- * [LeafFlag][KeyNumber][SiblingUid]
- * 1byte     2byte      8byte
- * 分支指向信息：
- * [Son0][Key0][Son1][Key1]...[SonN][KeyN]
- * 8byte 8byte
+ * [LeafFlag][KeyNumber][SiblingUid][HeapTop][Garbage]
+ * 1byte     2byte      8byte       2byte    2byte
+ * 分支指向信息（槽位数组）：
+ * [Son0][KeyOffset0][KeyLen0][Son1][KeyOffset1][KeyLen1]...[SonN][KeyOffsetN][KeyLenN]
+ * 8byte 2byte       2byte
+ * key 堆：
+ * [空闲空间]...[KeyN]...[Key1][Key0]
  * 其中 LeafFlag 标记了该节点是否是个叶子节点；KeyNumber 为该节点中 key 的个数；SiblingUid 是其兄弟节点存储在 DM 中的 UID。
- * 后续是穿插的子节点（SonN）和 KeyN。最后的一个 KeyN 始终为 MAX_VALUE，以此方便查找。son值是UID，key值是 where条件搜索的值
+ * 槽位数组从头部之后向后增长，变长的 key 存放在节点末尾的 key 堆中，从 NODE_SIZE 向前增长，HeapTop 是堆顶的位置；
+ * 槽位按 key 有序，插入和删除只移动槽位，key 的字节不移动。删除留下的空洞记在 Garbage 中，
+ * 连续的空闲空间不够时整理一次堆（见 compactRaw()）。
+ *
+ * 叶子节点中保存完整的 key；内部节点中的 key 是孩子的上界，分裂时在左右两边相邻的 key 之间取最短的前缀（见 Keys.separator()），
+ * 字符串之类的长 key 在内部节点中只占几个字节，扇出基本不受 key 的长度影响。
+ * 内部节点最后一个孩子的上界是正无穷，KeyLen 为 INF_LEN，不占堆空间。
+ *
+ * 这个Node类主要就是那两个方法，serchNext(...) 和 leafScan()；
+ * serchNext(...) ：提供给B+树的底层搜索方法，在节点内二分查找第一个不小于目标值的 key，走它对应的孩子，这个节点都没找到满足要求的就去下一个兄弟节点找
+ * leafScan()：提供给B+树的底层范围搜索方法，由 Cursor 逐个叶子调用。
  *
- * 这个Node类主要就是那两个方法，serchNext(...) 和 serchRange()；
- * serchNext(...) ：提供给B+树的底层搜索方法，就是一颗多叉搜索树二分搜索算法，目标值小于当前节点值的走左孩子，大于等于的继续for，这个节点都没找到满足要求的就去下一个兄弟节点找
- * serchRange()：提供给B+树的底层范围搜索方法。
+ * 读节点使用乐观读（见 beginRead()），不加读锁，不阻塞正在修改节点的线程；
+ * 读到的内容可能落后于并发的分裂，由 B-link 的兄弟指针向右追赶。修改节点仍然持有 DataItem 的写锁。
+ *
+ * 常驻内存的节点（见 BPlusTree.loadNode()）另外保存一份解码后的内容（见 View），查找直接在解码后的数组上进行，
+ * 不再逐个从字节中解析。解码时记下版本戳，节点被修改后版本戳失效，下一次访问时重新解码。
  */
 public class Node {
     // 节点头部信息偏移量
     static final int IS_LEAF_OFFSET = 0;                        // LeafFlag 起始地址
     static final int NO_KEYS_OFFSET = IS_LEAF_OFFSET + 1;       // KeyNumber 起始地址
     static final int SIBLING_OFFSET = NO_KEYS_OFFSET + 2;       // SiblingUid 起始地址
+    static final int HEAP_TOP_OFFSET = SIBLING_OFFSET + 8;      // HeapTop 起始地址
+    static final int GARBAGE_OFFSET = HEAP_TOP_OFFSET + 2;      // Garbage 起始地址
 
     // 分支节点指示信息偏移量
-    static final int NODE_HEADER_SIZE = SIBLING_OFFSET + 8;     // Son0 起始地址，后续的起始地址靠8byte偏移量计算
-    static final int BALANCE_NUMBER = 32;
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2 * 8) * (BALANCE_NUMBER * 2 + 2); // 一个Node结点的空间大小
+    static final int NODE_HEADER_SIZE = GARBAGE_OFFSET + 2;     // 第 0 个槽位的起始地址，后续的起始地址靠槽位大小计算
+    static final int SLOT_SIZE = 8 + 2 + 2;
+    static final int NODE_SIZE = 2048;                          // 一个Node结点的空间大小
+    static final int CAPACITY = NODE_SIZE - NODE_HEADER_SIZE;   // 槽位和 key 可以使用的空间
+    static final int MAX_KEY_SIZE = NODE_SIZE / 8 - SLOT_SIZE;  // key 的最大长度，一个节点至少能放下 8 个最长的分支
+    static final int MAX_ENTRY_SIZE = SLOT_SIZE + MAX_KEY_SIZE;
+    static final int SPLIT_LIMIT = CAPACITY - MAX_ENTRY_SIZE;   // 使用的空间超过它时分裂，不超过时一定还能插入一个分支
+    static final int MIN_FILL = CAPACITY / 4;                   // 删除后使用的空间低于它时和兄弟节点合并或借用，留出余量避免反复分裂合并
+    static final int MAX_ENTRIES = CAPACITY / SLOT_SIZE;        // 一个节点最多的分支数（key 都为空时）
+    static final int OPTIMISTIC_RETRIES = 3;                    // 乐观读连续失败这么多次后加读锁
+    static final double APPEND_SPLIT_FILL = BulkLoader.DEFAULT_FILL_FACTOR;    // 在最右边追加时，分裂后左节点的填充率
+    static final int SON_WINDOW = 4;                            // 按 key 定位孩子后，在前后这么多个位置内查找
+    static final int INF_LEN = 0xFFFF;                          // 正无穷的上界的 KeyLen
 
     // Node 类持有了其 B+ 树结构的引用，DataItem 的引用和 SubArray 的引用，用于方便快速修改数据和释放数据。
     BPlusTree tree;     // B+ 树结构的引用
     DataItem dataItem;  // DM 的数据项引用
     SubArray raw;       // 每个Node结点的内存地址
     long uid;           // DataItem 存储的 uid
+    volatile boolean pinned;    // 常驻内存的节点由 B+ 树持有，release() 不释放数据项
+    private volatile View view; // 常驻节点解码后的内容
 
     /**
      * 设置Node是否为叶子节点，1是，0不是
@@ -69,7 +97,7 @@ public class Node {
      * @param noKeys
      */
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Byte((short) noKeys), 0, raw.raw, raw.start + NO_KEYS_OFFSET, 2);
+        Parser.putShort(raw.raw, raw.start + NO_KEYS_OFFSET, (short) noKeys);
     }
 
     /**
@@ -78,7 +106,7 @@ public class Node {
      * @return
      */
     static int getRawNoKeys(SubArray raw) {
-        return (int) Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + NO_KEYS_OFFSET, raw.start + NO_KEYS_OFFSET + 2));
+        return (int) Parser.parseShort(raw.raw, raw.start + NO_KEYS_OFFSET);
     }
 
     /**
@@ -87,7 +115,7 @@ public class Node {
      * @param sibling
      */
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start + SIBLING_OFFSET, 8);
+        Parser.putLong(raw.raw, raw.start + SIBLING_OFFSET, sibling);
     }
 
     /**
@@ -96,7 +124,33 @@ public class Node {
      * @return
      */
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + SIBLING_OFFSET, raw.start + SIBLING_OFFSET + 8));
+        return Parser.parseLong(raw.raw, raw.start + SIBLING_OFFSET);
+    }
+
+    static void setRawHeapTop(SubArray raw, int top) {
+        Parser.putShort(raw.raw, raw.start + HEAP_TOP_OFFSET, (short) top);
+    }
+
+    /**
+     * key 堆的堆顶，相对节点开头的偏移量
+     */
+    static int getRawHeapTop(SubArray raw) {
+        return Parser.parseShort(raw.raw, raw.start + HEAP_TOP_OFFSET) & 0xFFFF;
+    }
+
+    static void setRawGarbage(SubArray raw, int garbage) {
+        Parser.putShort(raw.raw, raw.start + GARBAGE_OFFSET, (short) garbage);
+    }
+
+    /**
+     * key 堆中已经不被槽位引用的字节数
+     */
+    static int getRawGarbage(SubArray raw) {
+        return Parser.parseShort(raw.raw, raw.start + GARBAGE_OFFSET) & 0xFFFF;
+    }
+
+    private static int slotOffset(SubArray raw, int kth) {
+        return raw.start + NODE_HEADER_SIZE + kth * SLOT_SIZE;
     }
 
     /**
@@ -106,8 +160,7 @@ public class Node {
      * @param kth Node中的Key
      */
     static void setRawKthSon(SubArray raw, long uid, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+        Parser.putLong(raw.raw, slotOffset(raw, kth), uid);
     }
 
     /**
@@ -117,80 +170,263 @@ public class Node {
      * @return
      */
     static long getRawKthSon(SubArray raw, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return Parser.parseLong(raw.raw, slotOffset(raw, kth));
+    }
+
+    /**
+     * 第 kth 个 key 在节点中的偏移量
+     */
+    static int getRawKthKeyOffset(SubArray raw, int kth) {
+        return Parser.parseShort(raw.raw, slotOffset(raw, kth) + 8) & 0xFFFF;
+    }
+
+    /**
+     * 第 kth 个 key 的长度，正无穷时为 INF_LEN
+     */
+    static int getRawKthKeyLen(SubArray raw, int kth) {
+        return Parser.parseShort(raw.raw, slotOffset(raw, kth) + 10) & 0xFFFF;
+    }
+
+    private static void setRawKthKeyRef(SubArray raw, int kth, int offset, int len) {
+        Parser.putShort(raw.raw, slotOffset(raw, kth) + 8, (short) offset);
+        Parser.putShort(raw.raw, slotOffset(raw, kth) + 10, (short) len);
+    }
+
+    /**
+     * 第 kth 个 key 在堆中占用的字节数
+     */
+    private static int keySize(SubArray raw, int kth) {
+        int len = getRawKthKeyLen(raw, kth);
+        return len == INF_LEN ? 0 : len;
     }
 
     /**
-     * 设置Node的孩子节点key值
+     * 第 kth 个分支占用的空间
+     */
+    static int entrySize(SubArray raw, int kth) {
+        return SLOT_SIZE + keySize(raw, kth);
+    }
+
+    /**
+     * 槽位和 key 实际使用的空间，不包括堆中的空洞
+     */
+    static int usedBytes(SubArray raw) {
+        return getRawNoKeys(raw) * SLOT_SIZE + (NODE_SIZE - getRawHeapTop(raw)) - getRawGarbage(raw);
+    }
+
+    /**
+     * 设置Node的孩子节点key值，旧的 key 留在堆中成为空洞
      * @param raw
-     * @param key
+     * @param key 新的 key，null 表示正无穷
      * @param kth
      */
-    static void setRawKthKey(SubArray raw, long key, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8; // 获取key值
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+    static void setRawKthKey(SubArray raw, byte[] key, int kth) {
+        setRawGarbage(raw, getRawGarbage(raw) + keySize(raw, kth));
+        setRawKthKeyRef(raw, kth, 0, INF_LEN);
+        if (key != null) {
+            reserveRaw(raw, getRawNoKeys(raw), key.length);
+            setRawKthKeyRef(raw, kth, putRawKey(raw, key), key.length);
+        }
     }
 
     /**
      * 获取Node的第kth个孩子节点key值
      * @param raw
      * @param kth
-     * @return
+     * @return key 的副本，正无穷时返回 null
      */
-    static long getRawKthKey(SubArray raw, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+    static byte[] getRawKthKey(SubArray raw, int kth) {
+        int len = getRawKthKeyLen(raw, kth);
+        if (len == INF_LEN) {
+            return null;
+        }
+        int offset = raw.start + getRawKthKeyOffset(raw, kth);
+        return Arrays.copyOfRange(raw.raw, offset, offset + len);
     }
 
-    static void copyRawFromKth(SubArray from, SubArray to, int kth) {
-        int offset = from.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        System.arraycopy(from.raw, offset, to.raw, to.start + NODE_HEADER_SIZE, from.end - offset);
+    /**
+     * 比较第 kth 个 key 和 key，直接在原始字节上比较，不分配内存；正无穷比任何 key 都大
+     */
+    static int compareRawKthKey(SubArray raw, int kth, byte[] key) {
+        int len = getRawKthKeyLen(raw, kth);
+        if (len == INF_LEN) {
+            return 1;
+        }
+        return Keys.compare(raw.raw, raw.start + getRawKthKeyOffset(raw, kth), len, key, 0, key.length);
     }
 
+    /**
+     * 二分查找第一个不小于 key 的位置，没有时返回 noKeys
+     * 节点中的 key 有序，直接在原始字节上比较，不分配内存
+     */
+    static int lowerBound(SubArray raw, int noKeys, byte[] key) {
+        int lo = 0, hi = noKeys;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareRawKthKey(raw, mid, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * 查找孩子 son 在内部节点中的位置，key 是 son 中的一个 key
+     * 孩子中的 key 都不超过它在父节点中的上界，所以 son 不会在 lowerBound(key) 之前；
+     * 先在 lowerBound 前后 SON_WINDOW 个位置内查找，重复的 key 跨越多个孩子时再继续向右
+     * @return son 的位置，不在本节点中（已经被分裂到右边的兄弟节点）时返回 -1
+     */
+    static int indexOfSon(SubArray raw, int noKeys, long son, byte[] key) {
+        int lb = lowerBound(raw, noKeys, key);
+        int from = Math.max(0, lb - SON_WINDOW), to = Math.min(noKeys, lb + SON_WINDOW);
+        for (int i = from; i < to; i++) {
+            if (getRawKthSon(raw, i) == son) {
+                return i;
+            }
+        }
+        for (int i = to; i < noKeys; i++) {
+            if (getRawKthSon(raw, i) == son) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 将第 kth 个及之后的槽位整体右移一位，空出第 kth 个槽位
+     */
     static void shiftRawKth(SubArray raw, int kth) {
-        int begin = raw.start + NODE_HEADER_SIZE + (kth + 1) * (8 * 2);
-        int end = raw.start + NODE_SIZE - 1;
-        for (int i = end; i >= begin; i--) {
-            raw.raw[i] = raw.raw[i - (8 * 2)];
+        int noKeys = getRawNoKeys(raw);
+        System.arraycopy(raw.raw, slotOffset(raw, kth), raw.raw, slotOffset(raw, kth + 1), (noKeys - kth) * SLOT_SIZE);
+    }
+
+    /**
+     * 将第 kth+1 个位置之后的槽位整体左移一位，覆盖第 kth 个槽位
+     */
+    static void unshiftRawKth(SubArray raw, int kth) {
+        int noKeys = getRawNoKeys(raw);
+        System.arraycopy(raw.raw, slotOffset(raw, kth + 1), raw.raw, slotOffset(raw, kth), (noKeys - kth - 1) * SLOT_SIZE);
+    }
+
+    /**
+     * 保证槽位数组扩展到 slots 个之后，堆顶之下还有 keyLen 个字节的连续空间，不够时整理堆
+     * 调用方保证整理之后一定放得下（见 SPLIT_LIMIT）
+     */
+    private static void reserveRaw(SubArray raw, int slots, int keyLen) {
+        if (getRawHeapTop(raw) - NODE_HEADER_SIZE - slots * SLOT_SIZE < keyLen) {
+            compactRaw(raw);
         }
     }
 
     /**
-     * 生成一个非空根节点数据
-     * 该根节点的初始两个子节点为 left 和 right
-     * @param key 初始键值
-     * @return
+     * 把 key 写到堆顶之下
+     * @return key 的偏移量
      */
-    static byte[] newRootRaw(long left, long right, long key) {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    private static int putRawKey(SubArray raw, byte[] key) {
+        int top = getRawHeapTop(raw) - key.length;
+        System.arraycopy(key, 0, raw.raw, raw.start + top, key.length);
+        setRawHeapTop(raw, top);
+        return top;
+    }
 
-        setRawIsLeaf(raw, false);             // 设置[LeafFlag]
-        setRawNoKeys(raw, 2);                // 设置[KeyNumber]
-        setRawSibling(raw, 0);                // 设置[SiblingUid]
-        setRawKthSon(raw, left, 0);             // 插入left节点
-        setRawKthKey(raw, key, 0);
-        setRawKthSon(raw, right, 1);            // 插入right节点
-        setRawKthKey(raw, Long.MAX_VALUE, 1);
+    /**
+     * 把 from 的第 kth 个 key 复制到 to 的堆中 top 之下，作为 to 的第 toKth 个 key
+     * @return 新的堆顶
+     */
+    private static int copyRawKthKey(SubArray from, int kth, SubArray to, int toKth, int top) {
+        int len = getRawKthKeyLen(from, kth);
+        if (len == INF_LEN) {
+            setRawKthKeyRef(to, toKth, 0, INF_LEN);
+            return top;
+        }
+        top -= len;
+        System.arraycopy(from.raw, from.start + getRawKthKeyOffset(from, kth), to.raw, to.start + top, len);
+        setRawKthKeyRef(to, toKth, top, len);
+        return top;
+    }
 
-        return raw.raw;
+    /**
+     * 整理 key 堆：按槽位的顺序把 key 紧凑地重新写到节点末尾，去掉空洞
+     * 整理只取决于节点的内容，运行时和恢复时重做的结果一致
+     */
+    static void compactRaw(SubArray raw) {
+        rewriteRaw(raw, raw, 0, getRawNoKeys(raw), raw, 0, 0);
     }
 
     /**
-     * 生成一个空的根节点数据
-     * @return
+     * 用 a 的第 [aFrom, aTo) 个分支和 b 的第 [bFrom, bTo) 个分支紧凑地重写节点 to，to 可以是 a 或 b
+     * 叶子标记和兄弟节点保持 to 原来的值
      */
-    static byte[] newNilRootRaw() {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static void rewriteRaw(SubArray to, SubArray a, int aFrom, int aTo, SubArray b, int bFrom, int bTo) {
+        SubArray tmp = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        int top = NODE_SIZE, k = 0;
+        for (int i = aFrom; i < aTo; i++, k++) {
+            setRawKthSon(tmp, getRawKthSon(a, i), k);
+            top = copyRawKthKey(a, i, tmp, k, top);
+        }
+        for (int i = bFrom; i < bTo; i++, k++) {
+            setRawKthSon(tmp, getRawKthSon(b, i), k);
+            top = copyRawKthKey(b, i, tmp, k, top);
+        }
+        setRawIsLeaf(tmp, getRawIfLeaf(to));
+        setRawNoKeys(tmp, k);
+        setRawSibling(tmp, getRawSibling(to));
+        setRawHeapTop(tmp, top);
+        setRawGarbage(tmp, 0);
+        System.arraycopy(tmp.raw, 0, to.raw, to.start, NODE_SIZE);
+    }
 
-        // 设置节点头部信息
-        setRawIsLeaf(raw, true);
+    /**
+     * 生成一个空节点数据
+     */
+    static SubArray emptyRaw(boolean isLeaf) {
+        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        setRawIsLeaf(raw, isLeaf);
         setRawNoKeys(raw, 0);
         setRawSibling(raw, 0);
+        setRawHeapTop(raw, NODE_SIZE);
+        setRawGarbage(raw, 0);
+        return raw;
+    }
+
+    /**
+     * 在节点末尾追加一个分支，批量构建时按从小到大的顺序填充新节点
+     * @param key null 表示正无穷
+     */
+    static void appendRawKth(SubArray raw, byte[] key, long son) {
+        int noKeys = getRawNoKeys(raw);
+        setRawKthSon(raw, son, noKeys);
+        if (key == null) {
+            setRawKthKeyRef(raw, noKeys, 0, INF_LEN);
+        } else {
+            setRawKthKeyRef(raw, noKeys, putRawKey(raw, key), key.length);
+        }
+        setRawNoKeys(raw, noKeys + 1);
+    }
 
+    /**
+     * 生成一个非空根节点数据
+     * 该根节点的初始两个子节点为 left 和 right
+     * @param key 初始键值，left 的上界
+     * @return
+     */
+    static byte[] newRootRaw(long left, long right, byte[] key) {
+        SubArray raw = emptyRaw(false);
+        appendRawKth(raw, key, left);           // 插入left节点
+        appendRawKth(raw, null, right);         // 插入right节点
         return raw.raw;
     }
 
+    /**
+     * 生成一个空的根节点数据
+     * @return
+     */
+    static byte[] newNilRootRaw() {
+        return emptyRaw(true).raw;
+    }
+
     /**
      * 从B+树里面获取Node结点信息
      * @param bTree
@@ -210,121 +446,341 @@ public class Node {
     }
 
     public void release() {
-        dataItem.release();
+        if (!pinned) {
+            dataItem.release();
+        }
     }
 
+    private static final long LOCKED = -1;          // 乐观读多次失败后加了读锁
+
     /**
-     * 判断是否为叶子结点
-     * @return
+     * 乐观读：不加读锁直接读取节点，读完后校验版本戳，期间节点被修改时放弃结果重读，多次失败后加读锁
+     * 调用方按 beginRead(i)、读取、endRead(stamp) 的顺序循环，直到 endRead 返回 true，读的结果用局部变量保存，不分配对象。
+     * 并发修改时读到的内容可能不一致，越界之类的异常也要等校验之后才知道是否真的发生
+     * @param attempt 第几次读，从 0 开始
+     * @return 乐观读的版本戳（0 表示节点正在被修改，这一次一定校验失败），加了读锁时返回 LOCKED
      */
-    public boolean isLeaf() {
+    private long beginRead(int attempt) {
+        if (attempt < OPTIMISTIC_RETRIES) {
+            return dataItem.optimisticRead();
+        }
         dataItem.rLock();
-        try {
-            return getRawIfLeaf(raw);
-        } finally {
+        return LOCKED;
+    }
+
+    /**
+     * 结束一次读，加了读锁时释放
+     * @return 读到的内容是否可以使用
+     */
+    private boolean endRead(long stamp) {
+        if (stamp == LOCKED) {
             dataItem.rUnLock();
+            return true;
         }
+        return stamp != 0 && dataItem.validate(stamp);
     }
 
     /**
-     * Node 类有两个方法，用于辅助 B+ 树做插入和搜索操作，分别是 searchNext 方法和 leafSearchRange 方法。
+     * 节点解码后的内容，解码之后不再修改
      */
-    class SearchNextRes {
-        long uid;
-        long siblingUid;
+    static class View {
+        long stamp;         // 解码时的版本戳，节点被修改后校验失败
+        boolean leaf;
+        int noKeys;
+        long sibling;
+        byte[][] keys;      // null 表示正无穷
+        long[] sons;
     }
 
     /**
-     * serchNext()方法是在索引树上寻找下一个孩子结点，无限循环直到走到叶子结点为止；这个结点没有符合要求的就去下一个兄弟结点找
+     * 获取常驻节点解码后的内容，节点被修改过时重新解码
+     * 一直和并发的修改冲突时返回 null，调用方退回到直接读取字节
      */
-    public SearchNextRes searchNext(long key) {
-        dataItem.rLock();
-        try {
-            SearchNextRes res = new SearchNextRes();
-            int noKeys = getRawNoKeys(raw);
-            for (int i = 0; i < noKeys; i++) {
-                long ik = getRawKthKey(raw, i);
-                if (key < ik) {  // 根据排序树的规则，小于的就往左下走就行了
-                    res.uid = getRawKthSon(raw, i);
-                    res.siblingUid = 0;
-                    return res;
-                }
+    private View view() {
+        if (!pinned) {
+            return null;
+        }
+        View v = view;
+        if (v != null && dataItem.validate(v.stamp)) {
+            return v;
+        }
+        for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+            long stamp = dataItem.optimisticRead();
+            if (stamp == 0) {
+                continue;
             }
-            res.uid = 0;
-            res.siblingUid = getRawSibling(raw);
-            return res;
+            try {
+                v = decode(raw);
+            } catch (RuntimeException e) {
+                // 读到了修改到一半的内容
+                continue;
+            }
+            if (dataItem.validate(stamp)) {
+                v.stamp = stamp;
+                view = v;
+                return v;
+            }
+        }
+        return null;
+    }
 
-        } finally {
-            dataItem.rUnLock();
+    static View decode(SubArray raw) {
+        View v = new View();
+        v.leaf = getRawIfLeaf(raw);
+        v.noKeys = getRawNoKeys(raw);
+        v.sibling = getRawSibling(raw);
+        v.keys = new byte[v.noKeys][];
+        v.sons = new long[v.noKeys];
+        for (int i = 0; i < v.noKeys; i++) {
+            v.sons[i] = getRawKthSon(raw, i);
+            v.keys[i] = getRawKthKey(raw, i);
         }
+        return v;
     }
 
-    class LeafSearchRangeRes {
-        List<Long> uids;
-        long siblingUid;
+    /**
+     * 在解码后的 key 中二分查找第一个不小于 key 的位置
+     */
+    static int lowerBound(byte[][] keys, int noKeys, byte[] key) {
+        int lo = 0, hi = noKeys;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] != null && Keys.compare(keys[mid], key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
     }
 
     /**
-     * 在当前节点进行范围查找，范围是 [leftKey, rightKey]，
-     * 这里约定如果 rightKey 大于等于该节点的最大的 key,则返回兄弟节点的 UID，方便继续搜索下一个节点。
-     * @param leftKey
-     * @param rightKey
+     * 判断是否为叶子结点
      * @return
      */
-    public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
-        dataItem.rLock();
-        try {
+    public boolean isLeaf() {
+        View v = view();
+        if (v != null) {
+            return v.leaf;
+        }
+        for (int i = 0; ; i++) {
+            long stamp = beginRead(i);
+            boolean leaf = getRawIfLeaf(raw);
+            if (endRead(stamp)) {
+                return leaf;
+            }
+        }
+    }
+
+    public int getNoKeys() {
+        View v = view();
+        if (v != null) {
+            return v.noKeys;
+        }
+        for (int i = 0; ; i++) {
+            long stamp = beginRead(i);
             int noKeys = getRawNoKeys(raw);
-            int kth = 0;
-            while (kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if (ik >= leftKey) {
-                    break;
+            if (endRead(stamp)) {
+                return noKeys;
+            }
+        }
+    }
+
+    public long getKthSon(int kth) {
+        View v = view();
+        if (v != null) {
+            return v.sons[kth];
+        }
+        for (int i = 0; ; i++) {
+            long stamp = beginRead(i);
+            long son = getRawKthSon(raw, kth);
+            if (endRead(stamp)) {
+                return son;
+            }
+        }
+    }
+
+    public long getSibling() {
+        View v = view();
+        if (v != null) {
+            return v.sibling;
+        }
+        for (int i = 0; ; i++) {
+            long stamp = beginRead(i);
+            long sibling = getRawSibling(raw);
+            if (endRead(stamp)) {
+                return sibling;
+            }
+        }
+    }
+
+    /**
+     * 第 kth 个 key，正无穷时返回 null，调用方不能修改返回的数组
+     */
+    public byte[] getKthKey(int kth) {
+        View v = view();
+        if (v != null) {
+            return v.keys[kth];
+        }
+        for (int i = 0; ; i++) {
+            long stamp = beginRead(i);
+            byte[] key;
+            try {
+                key = getRawKthKey(raw, kth);
+            } catch (RuntimeException e) {
+                if (endRead(stamp)) {
+                    throw e;
                 }
-                kth++;
+                continue;
+            }
+            if (endRead(stamp)) {
+                return key;
+            }
+        }
+    }
+
+    /**
+     * 第一个不小于 key 的位置
+     */
+    public int searchFirst(byte[] key) {
+        View v = view();
+        if (v != null) {
+            return lowerBound(v.keys, v.noKeys, key);
+        }
+        for (int i = 0; ; i++) {
+            long stamp = beginRead(i);
+            int pos;
+            try {
+                pos = lowerBound(raw, getRawNoKeys(raw), key);
+            } catch (RuntimeException e) {
+                if (endRead(stamp)) {
+                    throw e;
+                }
+                continue;
+            }
+            if (endRead(stamp)) {
+                return pos;
             }
-            List<Long> uids = new ArrayList<>();
-            while (kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if (ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
+        }
+    }
+
+    /**
+     * Node 类有两个方法，用于辅助 B+ 树做插入和搜索操作，分别是 searchNext 方法和 leafScan 方法。
+     * serchNext()方法是在索引树上寻找下一个孩子结点，无限循环直到走到叶子结点为止；这个结点没有符合要求的就去下一个兄弟结点找
+     * 重复的 key 可能分布在分界两边，走第一个上界不小于 key 的孩子，不在其中时由叶子沿兄弟节点向右找
+     * @return 孩子的 uid；key 超出了本节点的范围时返回 0，调用方用 getSibling() 读出兄弟节点向右找。
+     * 两次读之间节点被分裂或合并也没有关系，兄弟指针总是指向覆盖本节点右边所有 key 的节点
+     */
+    public long searchNext(byte[] key) {
+        View v = view();
+        if (v != null) {
+            int i = lowerBound(v.keys, v.noKeys, key);
+            return i < v.noKeys ? v.sons[i] : 0;
+        }
+        for (int i = 0; ; i++) {
+            long stamp = beginRead(i);
+            long son;
+            try {
+                int noKeys = getRawNoKeys(raw);
+                int kth = lowerBound(raw, noKeys, key);
+                son = kth < noKeys ? getRawKthSon(raw, kth) : 0;
+            } catch (RuntimeException e) {
+                if (endRead(stamp)) {
+                    throw e;
+                }
+                continue;
+            }
+            if (endRead(stamp)) {
+                return son;
+            }
+        }
+    }
+
+    /**
+     * 在当前叶子节点进行范围查找，范围是 [c.leftKey, c.rightKey)，命中的 uid 和 key 复制到游标的缓冲区中
+     * 如果 rightKey 大于该节点的最大的 key，同时读出兄弟节点的 UID，方便继续搜索下一个节点；
+     * 命中的 uid 和兄弟节点在同一次读中读出（校验通过），之后这个节点被并发分裂也不会重复或遗漏。
+     * 结果直接写入游标的缓冲区，校验失败时重写
+     * @param c
+     */
+    void leafScan(Cursor c) {
+        for (int i = 0; ; i++) {
+            long stamp = beginRead(i);
+            try {
+                int noKeys = getRawNoKeys(raw);
+                int kth = lowerBound(raw, noKeys, c.leftKey);
+                int size = 0, off = 0;
+                while (kth < noKeys && (c.rightKey == null || compareRawKthKey(raw, kth, c.rightKey) < 0)) {
+                    int len = getRawKthKeyLen(raw, kth);
+                    System.arraycopy(raw.raw, raw.start + getRawKthKeyOffset(raw, kth), c.keyBuf, off, len);
+                    c.keyOff[size] = off;
+                    c.keyLen[size] = len;
+                    off += len;
+                    c.buf[size++] = getRawKthSon(raw, kth);
                     kth++;
-                } else {
-                    break;
                 }
+                c.pos = 0;
+                c.size = size;
+                c.nextLeaf = kth == noKeys ? getRawSibling(raw) : 0;
+            } catch (RuntimeException e) {
+                if (endRead(stamp)) {
+                    throw e;
+                }
+                continue;
             }
-            long siblingUid = 0;
-            if (kth == noKeys) {
-                siblingUid = getRawSibling(raw);
+            if (endRead(stamp)) {
+                return;
             }
-            LeafSearchRangeRes res = new LeafSearchRangeRes();
-            res.uids = uids;
-            res.siblingUid = siblingUid;
-            return res;
-        } finally {
-            dataItem.rUnLock();
         }
     }
 
     class InsertAndSplitRes {
-        long siblingUid, newSon, newKey;
+        long siblingUid, newSon;
+        byte[] newKey;
+        boolean rightmost;      // 插入的节点是这一层最右边的节点，分裂时新节点成为最右边的节点
+        boolean missing;        // 一直到这一层最右边都没有找到 leftSon
+        boolean pastLeftSon;    // leftSon 在本节点中，但插入位置超出了本节点，在兄弟节点中按 key 插入
     }
 
-    public InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception {
+    /**
+     * 在节点中插入 (uid, key)，必要时分裂
+     * 节点的修改不再记录整个节点的前后镜像，而是记录一条逻辑日志（见 Recover.nodeInsertLog）：
+     * “在节点 U 的第 kth 个位置插入 key/son，并在 splitPos 处分裂出节点 V”
+     *
+     * 使用的空间超过 SPLIT_LIMIT 时按字节数对半分裂；在这一层最右边的节点末尾追加时（自增、时间戳之类单调递增的 key），
+     * 左边的节点之后不会再有插入，分裂后左节点保留 APPEND_SPLIT_FILL 的数据，保持接近满的状态
+     * @param leftSon 内部节点中插入的是孩子 leftSon 分裂出的新节点，插在 leftSon 之后第一个上界不小于 key 的孩子处；
+     *                叶子节点，或者在内部节点中只按 key 插入时传 0
+     */
+    public InsertAndSplitRes insertAndSplit(long uid, byte[] key, long leftSon) throws Exception {
         boolean success = false;
         Exception err = null;
         InsertAndSplitRes res = new InsertAndSplitRes();
+        int kth = -1;
+        long splitUid = 0;
+        int splitPos = 0;
 
         dataItem.before();
         try {
-            success = insert(uid, key);
+            kth = insert(uid, key, leftSon);
+            success = kth >= 0;
             if (!success) {
+                // 插入位置被并发的分裂移到了右边的兄弟节点中；已经是最右边的节点时，
+                // leftSon 是其他线程分裂出来、还没有插入这一层的节点，由调用方等待后重试
                 res.siblingUid = getRawSibling(raw);
+                res.missing = res.siblingUid == 0;
+                res.pastLeftSon = kth == PAST_LEFT_SON;
                 return res;
             }
+            res.rightmost = getRawSibling(raw) == 0;
             if (needSplit()) {
+                // 内部节点中新的孩子在 kth+1 处
+                int last = getRawNoKeys(raw) - 1;
+                boolean append = res.rightmost && (getRawIfLeaf(raw) ? kth : kth + 1) == last;
+                splitPos = splitPos(raw, append ? APPEND_SPLIT_FILL : 0.5);
                 try {
-                    SplitRes r = split();
+                    SplitRes r = split(splitPos);
+                    splitUid = r.newSon;
                     res.newSon = r.newSon;
                     res.newKey = r.newKey;
                     return res;
@@ -337,72 +793,365 @@ public class Node {
             }
         } finally {
             if (err == null && success) {
+                short pos = splitUid == 0 ? 0 : (short) splitPos;
+                dataItem.afterLogical(Recover.nodeInsertLog(TransactionManagerImpl.SUPER_XID, this.uid, kth, key, uid, splitUid, pos));
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    /**
+     * 在最右边的叶子节点末尾追加 (uid, key)，供 B+ 树跳过从根节点的查找
+     * 节点已经不是最右边的叶子（被分裂或合并摘除）、key 小于节点中最大的 key，或者追加后需要分裂时不插入，
+     * 由调用方从根节点插入
+     * @return 是否追加成功
+     */
+    public boolean leafAppend(long uid, byte[] key) {
+        int kth = -1;
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            if (!getRawIfLeaf(raw) || getRawSibling(raw) != 0 || noKeys == 0
+                    || usedBytes(raw) + SLOT_SIZE + key.length > SPLIT_LIMIT || compareRawKthKey(raw, noKeys - 1, key) > 0) {
+                return false;
+            }
+            kth = noKeys;
+            insertRawKth(raw, kth, key, uid);
+            return true;
+        } finally {
+            if (kth >= 0) {
+                dataItem.afterLogical(Recover.nodeInsertLog(TransactionManagerImpl.SUPER_XID, this.uid, kth, key, uid, 0, (short) 0));
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    static final int NOT_FOUND = -1;          // 没有找到，也不可能在右边
+    static final int NOT_FOUND_RIGHT = -2;    // 节点中的 key 都不大于目标，可能在右边的兄弟节点中
+
+    /**
+     * 在叶子节点中删除 (key, uid)，记录一条逻辑日志（见 Recover.nodeRemoveLog）
+     * 删除后使用的空间可能低于 MIN_FILL，由 B+ 树随后在父节点中调整
+     * @return 删除后使用的空间；没有找到时返回 NOT_FOUND 或 NOT_FOUND_RIGHT
+     */
+    public int leafRemove(byte[] key, long uid) {
+        int kth = -1;
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            for (int i = lowerBound(raw, noKeys, key); i < noKeys && compareRawKthKey(raw, i, key) == 0; i++) {
+                if (getRawKthSon(raw, i) == uid) {
+                    kth = i;
+                    break;
+                }
+            }
+            if (kth < 0) {
+                // 重复的 key 可能跨越多个叶子，合并清空的叶子也要向右找
+                return noKeys == 0 || compareRawKthKey(raw, noKeys - 1, key) <= 0 ? NOT_FOUND_RIGHT : NOT_FOUND;
+            }
+            removeRawKth(raw, kth);
+            return usedBytes(raw);
+        } finally {
+            if (kth >= 0) {
+                dataItem.afterLogical(Recover.nodeRemoveLog(TransactionManagerImpl.SUPER_XID, this.uid, kth, key, uid));
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    class RebalanceRes {
+        int noKeys = -1;        // 调整后本节点的分支数，son 不在本节点中时为 -1
+        long siblingUid;        // son 不在本节点中时继续查找的兄弟节点
+        boolean merged;         // 是否合并了两个孩子，本节点的分支数减少了一个
+        long mergedUid;         // 合并时清空的左孩子
+        boolean underflow;      // 合并后本节点使用的空间是否低于 MIN_FILL
+    }
+
+    /**
+     * 孩子 son 使用的空间过少时，和左边相邻的兄弟合并或者从它借用分支；son 是第一个孩子时和右边的兄弟合并
+     * 只持有本节点和两个孩子的写锁，按父、左、右的顺序加锁，不需要 B+ 树的结构锁。
+     *
+     * 分支只从左边的节点移到右边的节点：合并时左节点的分支全部移到右节点的开头，左节点清空但保留指向右节点的兄弟指针，
+     * 父节点中删除左节点，它的范围交给右节点；借用时把左节点末尾的分支移到右节点的开头，直到两边的字节数大致相等，
+     * 父节点中左节点的上界换成新的分界（同样是截断的最短前缀）。
+     * 并发的读写即使按旧的父节点走到了左节点，也会因为找不到而沿兄弟指针向右，在右节点中找到移走的分支。
+     * 所以 son 是第一个孩子、右边的兄弟又放不下合并时不调整；左节点刚分裂、新节点还没有插入父节点
+     * （左节点的兄弟不是右节点）时也不调整；新的分界较长、父节点放不下时也不调整。
+     * 清空的节点暂时留在兄弟链上，之后调整它左边的节点时跳过，DM 不回收空间。
+     *
+     * 三个节点的修改记录为前后镜像
+     * @param son 使用的空间过少的孩子
+     * @param key son 中的一个 key，用来在本节点中定位 son
+     */
+    public RebalanceRes rebalanceSon(long son, byte[] key) throws Exception {
+        RebalanceRes res = new RebalanceRes();
+        Node left = null, right = null;
+        boolean changed = false;
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int k = indexOfSon(raw, noKeys, son, key);
+            if (k < 0) {
+                res.siblingUid = getRawSibling(raw);
+                return res;
+            }
+            res.noKeys = noKeys;
+            if (noKeys < 2) {
+                return res;
+            }
+            int i = k > 0 ? k - 1 : 0;      // 调整第 i 和第 i+1 个孩子
+            left = loadNode(tree, getRawKthSon(raw, i));
+            right = loadNode(tree, getRawKthSon(raw, i + 1));
+            left.dataItem.before();
+            right.dataItem.before();
+            int nl = getRawNoKeys(left.raw), nr = getRawNoKeys(right.raw);
+            int ul = usedBytes(left.raw), ur = usedBytes(right.raw);
+            if (nextNonEmpty(getRawSibling(left.raw), right.uid) != right.uid || (k == i ? ul : ur) >= MIN_FILL) {
+                // 左节点的分裂还没有插入父节点，或者已经被其他线程调整过
+                return res;
+            }
+            if (ul + ur <= SPLIT_LIMIT) {
+                rewriteRaw(right.raw, left.raw, 0, nl, right.raw, 0, nr);
+                setRawNoKeys(left.raw, 0);
+                deleteRawKth(raw, i);
+                res.noKeys = noKeys - 1;
+                res.merged = true;
+                res.mergedUid = left.uid;
+                res.underflow = usedBytes(raw) < MIN_FILL;
+            } else if (k == i + 1) {
+                // 从左节点末尾移动分支，直到再移动一个就会让右节点更大
+                int newNl = nl;
+                while (newNl > 1) {
+                    int s = entrySize(left.raw, newNl - 1);
+                    if (ur + s > ul - s) {
+                        break;
+                    }
+                    ur += s;
+                    ul -= s;
+                    newNl--;
+                }
+                // 新的分界：叶子节点在左节点最后一个 key 和右节点第一个 key 之间，内部节点在两边相邻孩子的上界之间
+                byte[] sep = Keys.separator(getRawKthKey(left.raw, newNl - 1), getRawKthKey(left.raw, newNl));
+                if (newNl == nl || usedBytes(raw) - keySize(raw, i) + sep.length > SPLIT_LIMIT) {
+                    return res;
+                }
+                rewriteRaw(right.raw, left.raw, newNl, nl, right.raw, 0, nr);
+                rewriteRaw(left.raw, left.raw, 0, newNl, left.raw, 0, 0);
+                setRawKthKey(raw, sep, i);
+            } else {
+                return res;
+            }
+            // 跳过中间清空的节点，不让它们一直留在兄弟链上
+            setRawSibling(left.raw, right.uid);
+            changed = true;
+            return res;
+        } finally {
+            if (changed) {
+                right.dataItem.after(TransactionManagerImpl.SUPER_XID);
+                left.dataItem.after(TransactionManagerImpl.SUPER_XID);
                 dataItem.after(TransactionManagerImpl.SUPER_XID);
             } else {
+                if (right != null) {
+                    right.dataItem.unBefore();
+                    left.dataItem.unBefore();
+                }
                 dataItem.unBefore();
             }
+            if (right != null) {
+                right.release();
+                left.release();
+            }
         }
     }
 
-    private boolean insert(long uid, long key) {
+    /**
+     * 从 uid 开始沿兄弟指针跳过合并清空的节点，到 stop 为止
+     * 清空的节点不再有父节点指向它，不会再插入分支，所以不加锁读取
+     */
+    private long nextNonEmpty(long uid, long stop) throws Exception {
+        while (uid != stop && uid != 0) {
+            Node node = loadNode(tree, uid);
+            try {
+                if (node.getNoKeys() != 0) {
+                    break;
+                }
+                uid = node.getSibling();
+            } finally {
+                node.release();
+            }
+        }
+        return uid;
+    }
+
+    /**
+     * 删除内部节点的第 kth 个分支（孩子和它的上界），它的范围交给第 kth+1 个孩子
+     */
+    static void deleteRawKth(SubArray raw, int kth) {
+        setRawGarbage(raw, getRawGarbage(raw) + keySize(raw, kth));
+        unshiftRawKth(raw, kth);
+        setRawNoKeys(raw, getRawNoKeys(raw) - 1);
+    }
+
+    static final int PAST_LEFT_SON = -2;    // leftSon 在本节点中，但插入位置超出了本节点
+
+    /**
+     * 在节点中插入 (uid, key)
+     * 叶子节点按 key 找到插入位置；
+     * 内部节点中父节点的上界可能比孩子实际的 key 宽（key 超出左孩子时会向右追赶到兄弟节点插入），
+     * 按 key 查找可能把新节点放到分裂的孩子之前，所以从 leftSon 的位置开始找。
+     * leftSon 再次分裂出的节点可能先插入了本节点，接管了 leftSon 原来的上界，这时 key 比 leftSon 现在的上界大，
+     * 新节点要插到之后第一个上界不小于 key 的孩子后面，孩子的上界才保持有序
+     * @return 插入的位置；-1 表示 key 超出了本节点的范围（内部节点中是 leftSon 不在本节点中），需要去兄弟节点插入；
+     *         PAST_LEFT_SON 表示 leftSon 在本节点中，但插入位置超出了本节点
+     */
+    private int insert(long uid, byte[] key, long leftSon) {
         int noKeys = getRawNoKeys(raw);
-        int kth = 0;
-        while (kth < noKeys) {
-            long ik = getRawKthKey(raw, kth);
-            if (ik < key) {
+        int kth;
+        if (leftSon != 0) {
+            kth = indexOfSon(raw, noKeys, leftSon, key);
+            if (kth < 0) {
+                // 本节点已经分裂，leftSon 被移到了右边的兄弟节点
+                return -1;
+            }
+            while (kth < noKeys && compareRawKthKey(raw, kth, key) < 0) {
                 kth++;
-            } else {
-                break;
+            }
+            if (kth == noKeys) {
+                return PAST_LEFT_SON;
+            }
+        } else {
+            kth = lowerBound(raw, noKeys, key);
+            if (kth == noKeys && getRawSibling(raw) != 0) {
+                return -1;
             }
         }
-        if (kth == noKeys && getRawSibling(raw) != 0) {
-            return false;
-        }
+        insertRawKth(raw, kth, key, uid);
+        return kth;
+    }
 
+    /**
+     * 在节点的第 kth 个位置插入 key 和 son，运行时插入和恢复时重做共用
+     * 叶子节点直接在 kth 处插入；
+     * 内部节点中 key 成为第 kth 个子节点的上界，原上界连同新的 son 放到 kth+1 处。
+     * key 写到堆顶，连续的空间不够时先整理堆
+     * @param raw 节点数据
+     * @param kth 插入位置
+     * @param key
+     * @param son
+     */
+    public static void insertRawKth(SubArray raw, int kth, byte[] key, long son) {
+        int noKeys = getRawNoKeys(raw);
+        reserveRaw(raw, noKeys + 1, key.length);
+        int offset = putRawKey(raw, key);
         if (getRawIfLeaf(raw)) {
             shiftRawKth(raw, kth);
-            setRawKthKey(raw, key, kth);
-            setRawKthSon(raw, uid, kth);
-            setRawNoKeys(raw, noKeys + 1);
+            setRawKthSon(raw, son, kth);
         } else {
-            long kk = getRawKthKey(raw, kth);
-            setRawKthKey(raw, key, kth);
             shiftRawKth(raw, kth + 1);
-            setRawKthKey(raw, kk, kth + 1);
-            setRawKthSon(raw, uid, kth + 1);
-            setRawNoKeys(raw, noKeys + 1);
+            setRawKthKeyRef(raw, kth + 1, getRawKthKeyOffset(raw, kth), getRawKthKeyLen(raw, kth));
+            setRawKthSon(raw, son, kth + 1);
         }
-        return true;
+        setRawKthKeyRef(raw, kth, offset, key.length);
+        setRawNoKeys(raw, noKeys + 1);
     }
 
     /**
-     * 一个节点超过64个孩子就需要分裂了
+     * 撤销 insertRawKth 在第 kth 个位置做的插入，恢复时撤销使用
+     * 插入的 key 留在堆中成为空洞
+     * @param raw 节点数据
+     * @param kth 插入位置
+     */
+    public static void removeRawKth(SubArray raw, int kth) {
+        int noKeys = getRawNoKeys(raw);
+        setRawGarbage(raw, getRawGarbage(raw) + keySize(raw, kth));
+        if (getRawIfLeaf(raw)) {
+            unshiftRawKth(raw, kth);
+        } else {
+            setRawKthKeyRef(raw, kth, getRawKthKeyOffset(raw, kth + 1), getRawKthKeyLen(raw, kth + 1));
+            unshiftRawKth(raw, kth + 1);
+        }
+        setRawNoKeys(raw, noKeys - 1);
+    }
+
+    /**
+     * 使用的空间超过 SPLIT_LIMIT 就需要分裂了
      * @return
      */
     private boolean needSplit() {
-        return BALANCE_NUMBER * 2 == getRawNoKeys(raw);
+        return usedBytes(raw) > SPLIT_LIMIT;
     }
 
-    class SplitRes {
-        long newSon, newKey;
+    /**
+     * 按字节数选择分裂位置：左边保留前 fill 比例的数据，两边至少各有一个分支
+     */
+    private static int splitPos(SubArray raw, double fill) {
+        int noKeys = getRawNoKeys(raw);
+        int target = (int) (usedBytes(raw) * fill), sum = 0;
+        for (int i = 0; i < noKeys - 1; i++) {
+            sum += entrySize(raw, i);
+            if (sum >= target) {
+                return i + 1;
+            }
+        }
+        return noKeys - 1;
     }
 
-    private SplitRes split() throws Exception {
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
-        setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
-        setRawSibling(nodeRaw, getRawSibling(raw));
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
-        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
-        setRawNoKeys(raw, BALANCE_NUMBER);
-        setRawSibling(raw, son);
+    class SplitRes {
+        long newSon;
+        byte[] newKey;
+    }
 
+    /**
+     * 在第 pos 个分支处分裂节点，新节点通过 insertWithoutLog 插入，由随后的逻辑日志负责重建
+     * 父节点中的分界取左节点最后一个 key 和新节点第一个 key 之间最短的前缀
+     */
+    private SplitRes split(int pos) throws Exception {
+        byte[] nodeRaw = splitRaw(raw, pos);
         SplitRes res = new SplitRes();
+        res.newKey = Keys.separator(getRawKthKey(raw, pos - 1), getRawKthKey(raw, pos));
+        long son = tree.dm.insertWithoutLog(TransactionManagerImpl.SUPER_XID, nodeRaw);
+        truncateRaw(raw, pos, son);
         res.newSon = son;
-        res.newKey = getRawKthKey(nodeRaw, 0);
         return res;
     }
 
+    /**
+     * 由节点第 pos 个分支及之后的内容生成分裂出的新节点数据，key 紧凑地写入新节点的堆，运行时分裂和恢复时重做共用
+     * @param raw 被分裂的节点数据
+     * @param pos 分裂位置
+     * @return
+     */
+    public static byte[] splitRaw(SubArray raw, int pos) {
+        SubArray nodeRaw = emptyRaw(getRawIfLeaf(raw));
+        setRawSibling(nodeRaw, getRawSibling(raw));
+        rewriteRaw(nodeRaw, raw, pos, getRawNoKeys(raw), raw, 0, 0);
+        return nodeRaw.raw;
+    }
+
+    /**
+     * 分裂完成后修改原节点的头部：只保留前 pos 个分支，兄弟节点指向新节点，移走的 key 成为空洞
+     */
+    public static void truncateRaw(SubArray raw, int pos, long sibling) {
+        int garbage = getRawGarbage(raw);
+        for (int i = pos; i < getRawNoKeys(raw); i++) {
+            garbage += keySize(raw, i);
+        }
+        setRawGarbage(raw, garbage);
+        setRawNoKeys(raw, pos);
+        setRawSibling(raw, sibling);
+    }
+
+    /**
+     * 撤销分裂：把新节点的分支接回原节点的末尾，兄弟节点还给原节点
+     */
+    public static void untruncateRaw(SubArray raw, SubArray splitRaw) {
+        rewriteRaw(raw, raw, 0, getRawNoKeys(raw), splitRaw, 0, getRawNoKeys(splitRaw));
+        setRawSibling(raw, getRawSibling(splitRaw));
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -411,7 +1160,8 @@ public class Node {
         sb.append("KeyNumber: ").append(KeyNumber).append("\n");
         sb.append("sibling: ").append(getRawSibling(raw)).append("\n");
         for (int i = 0; i < KeyNumber; i++) {
-            sb.append("son: ").append(getRawKthSon(raw, i)).append(", key: ").append(getRawKthKey(raw, i)).append("\n");
+            byte[] key = getRawKthKey(raw, i);
+            sb.append("son: ").append(getRawKthSon(raw, i)).append(", key: ").append(key == null ? "INF" : Arrays.toString(key)).append("\n");
         }
         return sb.toString();
     }
@@ -0,0 +1,56 @@
+package com.charls.mydb.backend.im;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 字符串在 B+ 树中的保序 key
+ * 单列索引直接使用完整的 UTF-8 字节（of()）：字符串按 UTF-8 字节的无符号字典序比较，与 key 的顺序一致，
+ * key 相等就是字符串相等，范围查找、前缀匹配和等值查找都可以直接走索引，不需要回表比较。
+ *
+ * 多列索引中字符串后面还要拼接其他列，需要一个自带结束标记的编码（escape()）：
+ * 0x00 写作 0x00 0xFF，最后以 0x00 0x01 结束。一个字符串的编码不会是另一个的前缀，
+ * 拼接后仍然先按这一列、再按后面的列排序。
+ */
+public class StringKey {
+
+    public static byte[] of(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 多列索引中字符串的编码，带结束标记
+     */
+    public static byte[] escape(String s) {
+        ByteArrayOutputStream out = escapeBody(s);
+        out.write(0x00);
+        out.write(0x01);
+        return out.toByteArray();
+    }
+
+    /**
+     * 多列索引中以 prefix 开头的字符串的编码的公共前缀，即不带结束标记的 escape(prefix)
+     */
+    public static byte[] escapePrefix(String prefix) {
+        return escapeBody(prefix).toByteArray();
+    }
+
+    private static ByteArrayOutputStream escapeBody(String s) {
+        byte[] b = of(s);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(b.length + 2);
+        for(byte c : b) {
+            out.write(c);
+            if(c == 0x00) {
+                out.write(0xFF);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * 按 UTF-8 字节的无符号字典序比较，与 key 的顺序一致
+     */
+    public static int compare(String s1, String s2) {
+        return Keys.compare(of(s1), of(s2));
+    }
+}
@@ -297,7 +297,7 @@ public class Parser {
      * @return
      */
     private static boolean isCmpOp(String op) {
-        return ("=".equals(op) || ">".equals(op) || "<".equals(op));
+        return ("=".equals(op) || ">".equals(op) || "<".equals(op) || "like".equals(op));
     }
 
     /**
@@ -394,20 +394,25 @@ public class Parser {
             throw Error.InvalidCommandException;
         }
 
+        // (index a b) 是 a、b 上各自的单列索引，(index (a b)) 是 (a, b) 上的多列索引
         List<String> indexes = new ArrayList<>();
+        List<String[]> composites = new ArrayList<>();
         while(true) {
             tokenizer.pop();
             String field = tokenizer.peek();
             if(")".equals(field)) {
                 break;
             }
-            if(!isName(field)) {
+            if("(".equals(field)) {
+                composites.add(parseCompositeIndex(tokenizer));
+            } else if(!isName(field)) {
                 throw Error.InvalidCommandException;
             } else {
                 indexes.add(field);
             }
         }
         create.index = indexes.toArray(new String[indexes.size()]);
+        create.compositeIndex = composites.toArray(new String[composites.size()][]);
         tokenizer.pop();
 
         if(!"".equals(tokenizer.peek())) {
@@ -416,6 +421,28 @@ public class Parser {
         return create;
     }
 
+    /**
+     * 解析多列索引中括号内的列名，至少两列
+     */
+    private static String[] parseCompositeIndex(Tokenizer tokenizer) throws Exception {
+        List<String> fields = new ArrayList<>();
+        while(true) {
+            tokenizer.pop();
+            String field = tokenizer.peek();
+            if(")".equals(field)) {
+                break;
+            }
+            if(!isName(field) || fields.contains(field)) {
+                throw Error.InvalidCommandException;
+            }
+            fields.add(field);
+        }
+        if(fields.size() < 2) {
+            throw Error.InvalidCommandException;
+        }
+        return fields.toArray(new String[fields.size()]);
+    }
+
     /**
      * 判断是哪一种数据类型（int32   int64   string）
      */
@@ -448,8 +475,24 @@ public class Parser {
      * 解析begin语句
      */
     private static Begin parseBegin(Tokenizer tokenizer) throws Exception {
-        String isolation = tokenizer.peek();
         Begin begin = new Begin();
+        // begin [sync|group|async] [read only] [isolation level ...]
+        String durability = tokenizer.peek();
+        if("sync".equals(durability) || "group".equals(durability) || "async".equals(durability)) {
+            begin.durability = durability;
+            tokenizer.pop();
+        }
+
+        if("read".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if(!"only".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            begin.readOnly = true;
+        }
+
+        String isolation = tokenizer.peek();
         if("".equals(isolation)) {
             return begin;
         }
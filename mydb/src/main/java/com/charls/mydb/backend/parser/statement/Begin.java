@@ -8,4 +8,6 @@ package com.charls.mydb.backend.parser.statement;
  */
 public class Begin {
     public boolean isRepeatableRead;
+    public String durability;       // 提交的持久性模式 sync | group | async，为 null 时使用数据库默认值
+    public boolean readOnly;        // 只读事务，不分配 xid
 }
@@ -11,4 +11,5 @@ public class Create {
     public String []fieldName;
     public String []fieldType;
     public String []index;
+    public String [][]compositeIndex;     // 多列索引，每一项是按顺序排列的列名
 }
@@ -53,14 +53,14 @@ public class Executor {
             xid=r.xid;
             return r.result;
         }else if (Commit.class.isInstance(stat)){
-            if (xid!=0){
+            if (xid==0){
                 throw Error.NoTransactionException;
             }
             byte[]res=tbm.commit(xid);
             xid=0;
             return res;
         } else if (Abort.class.isInstance(stat)) {
-            if (xid!=0){
+            if (xid==0){
                 throw Error.NoTransactionException;
             }
             byte[]res=tbm.abort(xid);
@@ -82,7 +82,10 @@ public class Executor {
         Exception e=null;
         if (xid==0){
             tmpTransaction=true;
-            BeginRes r = tbm.begin(new Begin());
+            // 自动提交的查询使用只读事务，不分配 xid，也不写XID文件
+            Begin begin = new Begin();
+            begin.readOnly = Select.class.isInstance(stat) || Show.class.isInstance(stat);
+            BeginRes r = tbm.begin(begin);
             xid=r.xid;
         }
 
@@ -1,9 +1,15 @@
 package com.charls.mydb.backend.tbm;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import com.charls.mydb.backend.im.BPlusTree;
+import com.charls.mydb.backend.im.CompositeKey;
+import com.charls.mydb.backend.im.Cursor;
+import com.charls.mydb.backend.im.Keys;
+import com.charls.mydb.backend.im.StringKey;
 import com.charls.mydb.backend.parser.statement.SingleExpression;
 import com.charls.mydb.backend.tm.TransactionManagerImpl;
 import com.charls.mydb.backend.utils.Panic;
@@ -15,8 +21,9 @@ import com.google.common.primitives.Bytes;
 /**
  * field 表示字段信息
  * 二进制格式为：
- * [FieldName][TypeName][IndexUid]
+ * [FieldName][TypeName][IndexUid][KeyField2]...[KeyFieldN]
  * 如果field无索引，IndexUid为0
+ * 多列索引由第一列的字段持有，之后的列名依次保存在 IndexUid 后面，单列索引没有这一部分
  */
 public class Field {
     long uid;
@@ -25,6 +32,8 @@ public class Field {
     String fieldType;
     private long index;
     private BPlusTree bt;
+    private String[] keyFields;         // 多列索引的全部列名，第一个是本字段；单列索引为 null
+    private List<Field> keyCols;        // keyFields 对应的字段，第一次使用时解析
 
     /**
      * 构造函数
@@ -68,6 +77,17 @@ public class Field {
         fieldType = res.str;
         position += res.next;
         this.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+        position += 8;
+        if(position < raw.length) {
+            List<String> names = new ArrayList<>();
+            names.add(fieldName);
+            while(position < raw.length) {
+                res = Parser.parseString(Arrays.copyOfRange(raw, position, raw.length));
+                names.add(res.str);
+                position += res.next;
+            }
+            keyFields = names.toArray(new String[names.size()]);
+        }
         if(index != 0) {
             try {
                 bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
@@ -82,10 +102,21 @@ public class Field {
      * 创建一个字段
      */
     public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed) throws Exception {
+        return createField(tb, xid, fieldName, fieldType, indexed ? new String[]{fieldName} : null);
+    }
+
+    /**
+     * 创建一个字段
+     * @param keyFields 本字段开头的索引的列名，null 表示没有索引，多于一列时为多列索引
+     */
+    public static Field createField(Table tb, long xid, String fieldName, String fieldType, String[] keyFields) throws Exception {
         // 检查字段类型
         typeCheck(fieldType);
         Field f = new Field(tb, fieldName, fieldType, 0);
-        if(indexed) {
+        if(keyFields != null && keyFields.length > 1) {
+            f.keyFields = keyFields;
+        }
+        if(keyFields != null) {
             long index = BPlusTree.create(((TableManagerImpl)tb.tbm).dm);
             BPlusTree bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
             f.index = index;
@@ -103,7 +134,13 @@ public class Field {
         byte[] nameRaw = Parser.string2Byte(fieldName);
         byte[] typeRaw = Parser.string2Byte(fieldType);
         byte[] indexRaw = Parser.long2Byte(index);
-        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
+        byte[] keyRaw = new byte[0];
+        if(keyFields != null) {
+            for(int i = 1; i < keyFields.length; i ++) {
+                keyRaw = Bytes.concat(keyRaw, Parser.string2Byte(keyFields[i]));
+            }
+        }
+        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw, keyRaw));
     }
 
     /**
@@ -119,18 +156,70 @@ public class Field {
         return index != 0;
     }
 
+    public boolean isComposite() {
+        return keyFields != null;
+    }
+
+    /**
+     * 多列索引的各列字段，第一个是本字段
+     */
+    List<Field> keyCols() throws Exception {
+        if(keyCols == null) {
+            List<Field> cols = new ArrayList<>();
+            for(String name : keyFields) {
+                Field f = tb.field(name);
+                if(f == null) {
+                    throw Error.FieldNotFoundException;
+                }
+                cols.add(f);
+            }
+            keyCols = cols;
+        }
+        return keyCols;
+    }
+
+    /**
+     * 记录在本字段索引中的值，多列索引为各列的值组成的数组，交给 insert() 和 remove()
+     */
+    public Object indexValue(Map<String, Object> entry) throws Exception {
+        if(!isComposite()) {
+            return entry.get(fieldName);
+        }
+        List<Field> cols = keyCols();
+        Object[] values = new Object[cols.size()];
+        for(int i = 0; i < values.length; i ++) {
+            values[i] = entry.get(cols.get(i).fieldName);
+        }
+        return values;
+    }
+
     public void insert(Object key, long uid) throws Exception {
-        long uKey = value2Uid(key);
+        byte[] uKey = value2Uid(key);
         bt.insert(uKey, uid);
     }
 
     /**
-     * 通过B+树索引进行搜索字段
+     * 删除版本 uid 的索引项
+     */
+    public void remove(Object key, long uid) throws Exception {
+        byte[] uKey = value2Uid(key);
+        bt.delete(uKey, uid);
+    }
+
+    /**
+     * 通过B+树索引进行搜索字段，范围是 [left, right)，right 为 null 表示没有上界
      */
-    public List<Long> search(long left, long right) throws Exception {
+    public List<Long> search(byte[] left, byte[] right) throws Exception {
         return bt.searchRange(left, right);
     }
 
+    /**
+     * 打开索引范围 [left, right) 上的游标，用完之后需要关闭
+     */
+    public Cursor scan(byte[] left, byte[] right) throws Exception {
+        return bt.scan(left, right);
+    }
+
     /**
      * 根据字段类型将 string类型的值转化为对应类型的值
      * @param str
@@ -148,17 +237,29 @@ public class Field {
         return null;
     }
 
-    public long value2Uid(Object key) {
-        long uid = 0;
+    /**
+     * 值在索引中的 key：整数编码为定长的保序字节，字符串为完整的 UTF-8 字节，多列索引拼接各列的编码
+     */
+    public byte[] value2Uid(Object key) throws Exception {
+        if(isComposite()) {
+            Object[] values = (Object[])key;
+            List<Field> cols = keyCols();
+            CompositeKey ck = new CompositeKey();
+            for(int i = 0; i < values.length; i ++) {
+                ck.append(cols.get(i).keyCode(values[i]));
+            }
+            return ck.toBytes();
+        }
+        byte[] uid = null;
         switch(fieldType) {
             case "string":
-                uid = Parser.str2Uid((String)key);
+                uid = StringKey.of((String)key);
                 break;
             case "int32":
-                int uint = (int)key;
-                return (long)uint;
+                uid = Keys.of((int)key);
+                break;
             case "int64":
-                uid = (long)key;
+                uid = Keys.of((long)key);
                 break;
         }
         return uid;
@@ -227,38 +328,144 @@ public class Field {
                 .append(fieldName)
                 .append(", ")
                 .append(fieldType)
-                .append(index!=0?", Index":", NoIndex")
+                .append(index!=0?(keyFields!=null?", Index"+Arrays.toString(keyFields):", Index"):", NoIndex")
                 .append(")")
                 .toString();
     }
 
     /**
-     * 计算Where语句的范围
+     * 计算Where语句的范围 [left, right)
+     * 索引中保存完整的 key，范围正好是满足条件的记录，不需要回表比较
      */
     public FieldCalRes calExp(SingleExpression exp) throws Exception {
-        Object v = null;
+        return codeRange(Keys.MIN, exp);
+    }
+
+    /**
+     * 计算多列索引上的查找范围
+     * lead 是本字段上的表达式；lead 为等值条件且 next 是第二列上的表达式时，在完整的前缀上查找，
+     * 否则只按第一列查找。返回的范围可能包含不满足其他条件的记录，由调用方回表过滤
+     */
+    public FieldCalRes calPrefix(SingleExpression lead, SingleExpression next) throws Exception {
+        List<Field> cols = keyCols();
+        if(next != null && "=".equals(lead.compareOp) && cols.get(1).fieldName.equals(next.field)) {
+            byte[] prefix = new CompositeKey().append(keyCode(string2Value(lead.value))).toBytes();
+            return cols.get(1).codeRange(prefix, next);
+        }
+        return codeRange(Keys.MIN, lead);
+    }
+
+    /**
+     * 多列索引中本列的编码，整数翻转符号位，字符串使用带结束标记的 StringKey.escape()，不会是其他值的编码的前缀
+     */
+    byte[] keyCode(Object v) {
+        switch(fieldType) {
+            case "int32":
+                return Keys.of((int)v);
+            case "int64":
+                return Keys.of((long)v);
+            default:
+                return StringKey.escape((String)v);
+        }
+    }
+
+    /**
+     * 以 prefix 开头、本列满足表达式的 key 的范围 [left, right)
+     * 单列索引的 prefix 为空，本列的 key 是 value2Uid()；多列索引中 prefix 是前面各列的编码，本列的 key 是 keyCode()
+     */
+    FieldCalRes codeRange(byte[] prefix, SingleExpression exp) throws Exception {
+        boolean single = prefix.length == 0 && !isComposite();
         FieldCalRes res = new FieldCalRes();
-        switch(exp.compareOp) {
+        String op = exp.compareOp;
+        Object v = null;
+        if("like".equals(op)) {
+            if(!"string".equals(fieldType)) {
+                throw Error.InvalidCommandException;
+            }
+            String p = likePrefix(exp.value);
+            if(p.length() < exp.value.length()) {
+                byte[] lo = concat(prefix, single ? StringKey.of(p) : StringKey.escapePrefix(p));
+                res.left = lo;
+                res.right = Keys.prefixEnd(lo);
+                return res;
+            }
+            // 没有 % 时等同于 =
+            op = "=";
+            v = p;
+        } else {
+            v = string2Value(exp.value);
+        }
+        byte[] k = concat(prefix, single ? value2Uid(v) : keyCode(v));
+        switch(op) {
             case "<":
-                res.left = 0;
-                v = string2Value(exp.value);
-                res.right = value2Uid(v);
-                if(res.right > 0) {
-                    res.right --;
-                }
+                res.left = prefix;
+                res.right = k;
                 break;
             case "=":
-                v = string2Value(exp.value);
-                res.left = value2Uid(v);
-                res.right = res.left;
+                res.left = k;
+                res.right = single ? Keys.successor(k) : Keys.prefixEnd(k);
                 break;
             case ">":
-                res.right = Long.MAX_VALUE;
-                v = string2Value(exp.value);
-                res.left = value2Uid(v) + 1;
+                byte[] gt = single ? Keys.successor(k) : Keys.prefixEnd(k);
+                if(gt == null) {
+                    // 没有比它大的 key，范围为空
+                    res.left = res.right = k;
+                } else {
+                    res.left = gt;
+                    res.right = Keys.prefixEnd(prefix);
+                }
                 break;
         }
         return res;
     }
-}
 
+    private static byte[] concat(byte[] a, byte[] b) {
+        return a.length == 0 ? b : Bytes.concat(a, b);
+    }
+
+    /**
+     * 判断字段值 v 是否满足表达式
+     */
+    public boolean matches(Object v, SingleExpression exp) throws Exception {
+        if("like".equals(exp.compareOp)) {
+            String prefix = likePrefix(exp.value);
+            if(prefix.length() == exp.value.length()) {
+                return v.equals(prefix);
+            }
+            return ((String)v).startsWith(prefix);
+        }
+        int c = compare(v, string2Value(exp.value));
+        switch(exp.compareOp) {
+            case "<":
+                return c < 0;
+            case "=":
+                return c == 0;
+            case ">":
+                return c > 0;
+        }
+        return false;
+    }
+
+    private int compare(Object v1, Object v2) {
+        switch(fieldType) {
+            case "int32":
+                return Integer.compare((int)v1, (int)v2);
+            case "int64":
+                return Long.compare((long)v1, (long)v2);
+            case "string":
+                return StringKey.compare((String)v1, (String)v2);
+        }
+        return 0;
+    }
+
+    /**
+     * like 只支持前缀匹配 'abc%'，没有 % 时等同于 =
+     */
+    private static String likePrefix(String pattern) throws Exception {
+        String prefix = pattern.endsWith("%") ? pattern.substring(0, pattern.length() - 1) : pattern;
+        if(prefix.indexOf('%') >= 0) {
+            throw Error.InvalidCommandException;
+        }
+        return prefix;
+    }
+}
@@ -1,9 +1,9 @@
 package com.charls.mydb.backend.tbm;
 
 /**
- * 字段索引查询结果的数据结构，存的是B+树的索引范围
+ * 字段索引查询结果的数据结构，存的是B+树的索引范围 [left, right)，right 为 null 表示没有上界
  */
 public class FieldCalRes {
-    public long left;
-    public long right;
+    public byte[] left;
+    public byte[] right;
 }
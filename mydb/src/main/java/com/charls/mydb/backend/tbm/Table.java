@@ -1,10 +1,13 @@
 package com.charls.mydb.backend.tbm;
 
+import com.charls.mydb.backend.im.Cursor;
+import com.charls.mydb.backend.im.Keys;
 import com.charls.mydb.backend.parser.statement.*;
 import com.charls.mydb.backend.tm.TransactionManagerImpl;
 import com.charls.mydb.backend.utils.Panic;
 import com.charls.mydb.backend.utils.ParseStringRes;
 import com.charls.mydb.backend.utils.Parser;
+import com.charls.mydb.backend.vm.LockTable;
 import com.charls.mydb.common.Error;
 import com.google.common.primitives.Bytes;
 
@@ -64,17 +67,31 @@ public class Table {
      */
     public static Table createTable(TableManager tbm, long nextUid, long xid, Create create) throws Exception {
         Table tb = new Table(tbm, create.tableName, nextUid);
+        for(String[] keyFields : create.compositeIndex) {
+            for(String name : keyFields) {
+                if(!Arrays.asList(create.fieldName).contains(name)) {
+                    throw Error.FieldNotFoundException;
+                }
+            }
+        }
         for(int i = 0; i < create.fieldName.length; i ++) {
             String fieldName = create.fieldName[i];
             String fieldType = create.fieldType[i];
-            boolean indexed = false;
+            String[] keyFields = null;
             for(int j = 0; j < create.index.length; j ++) {
                 if(fieldName.equals(create.index[j])) {
-                    indexed = true;
+                    keyFields = new String[]{fieldName};
+                    break;
+                }
+            }
+            // 一个字段只持有一棵 B+ 树，以它开头的多列索引也能按它查找，优先建多列索引
+            for(String[] composite : create.compositeIndex) {
+                if(fieldName.equals(composite[0])) {
+                    keyFields = composite;
                     break;
                 }
             }
-            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed));
+            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, keyFields));
         }
 
         return tb.persistSelf(xid);
@@ -111,10 +128,21 @@ public class Table {
      * 删除一张表
      */
     public int delete(long xid, Delete delete) throws Exception {
-        List<Long> uids = parseWhere(delete.where);
+        CalWhereRes res = whereRange(delete.where);
+        List<Long> uids = search(res);
+        ((TableManagerImpl)tbm).vm.lockTable(xid, this.uid, LockTable.LOCK_IX);
         int count = 0;
         for (Long uid : uids) {
-            if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
+            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
+            if(raw == null) {
+                continue;
+            }
+            Map<String, Object> entry = parseEntry(raw);
+            if(!matches(res, entry)) {
+                continue;
+            }
+            if(((TableManagerImpl)tbm).vm.delete(xid, this.uid, uid)) {
+                indexRemoved(xid, entry, uid);
                 count ++;
             }
         }
@@ -125,7 +153,8 @@ public class Table {
      * 更新一张表
      */
     public int update(long xid, Update update) throws Exception {
-        List<Long> uids = parseWhere(update.where);
+        CalWhereRes res = whereRange(update.where);
+        List<Long> uids = search(res);
         Field fd = null;
         for (Field f : fields) {
             if(f.fieldName.equals(update.fieldName)) {
@@ -137,58 +166,97 @@ public class Table {
             throw Error.FieldNotFoundException;
         }
         Object value = fd.string2Value(update.value);
+        ((TableManagerImpl)tbm).vm.lockTable(xid, this.uid, LockTable.LOCK_IX);
         int count = 0;
         for (Long uid : uids) {
             byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
             if(raw == null) {
                 continue;
             }
+            Map<String, Object> entry = parseEntry(raw);
+            if(!matches(res, entry)) {
+                continue;
+            }
 
-            ((TableManagerImpl)tbm).vm.delete(xid, uid);
+            if(!((TableManagerImpl)tbm).vm.delete(xid, this.uid, uid)) {
+                continue;
+            }
 
-            Map<String, Object> entry = parseEntry(raw);
+            indexRemoved(xid, entry, uid);
             entry.put(fd.fieldName, value);
             raw = entry2Raw(entry);
             long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
 
             count ++;
 
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    field.insert(entry.get(field.fieldName), uuid);
-                }
-            }
+            indexInserted(xid, entry, uuid);
         }
         return count;
     }
 
     /**
-     * 读取表中数据
+     * 读取表中数据，读取走 MVCC 可见性判断，不加表锁和行锁
      */
     public String read(long xid, Select read) throws Exception {
-        List<Long> uids = parseWhere(read.where);                   // IM查找索引解析Where语句
+        CalWhereRes res = whereRange(read.where);                  // IM查找索引解析Where语句
         StringBuilder sb = new StringBuilder();
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid); // 通过VM去读一个Entry记录
-            if(raw == null) {
-                continue;
-            }
-            Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+        readRange(xid, res, res.l0, res.r0, sb);
+        if(!res.single) {
+            readRange(xid, res, res.l1, res.r1, sb);
         }
         return sb.toString();
     }
 
+    /**
+     * 通过游标逐个读取索引范围内的记录，不需要先把所有 uid 读出来
+     */
+    private void readRange(long xid, CalWhereRes res, byte[] left, byte[] right, StringBuilder sb) throws Exception {
+        try(Cursor c = res.fd.scan(left, right)) {
+            while(c.hasNext()) {
+                byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, c.next()); // 通过VM去读一个Entry记录
+                if(raw == null) {
+                    continue;
+                }
+                Map<String, Object> entry = parseEntry(raw);
+                if(!matches(res, entry)) {
+                    continue;
+                }
+                sb.append(printEntry(entry)).append("\n");
+            }
+        }
+    }
+
     /**
      * 向表中插入数据
      */
     public void insert(long xid, Insert insert) throws Exception {
         Map<String, Object> entry = string2Entry(insert.values);
         byte[] raw = entry2Raw(entry);
+        ((TableManagerImpl)tbm).vm.lockTable(xid, this.uid, LockTable.LOCK_IX);
         long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+        indexInserted(xid, entry, uid);
+    }
+
+    /**
+     * 为新版本 uid 插入所有索引项，事务回滚时由 Vacuum 删除
+     */
+    private void indexInserted(long xid, Map<String, Object> entry, long uid) throws Exception {
         for (Field field : fields) {
             if(field.isIndexed()) {
-                field.insert(entry.get(field.fieldName), uid);
+                Object key = field.indexValue(entry);
+                field.insert(key, uid);
+                ((TableManagerImpl)tbm).vacuum.inserted(xid, field, key, uid);
+            }
+        }
+    }
+
+    /**
+     * 版本 uid 被删除，事务提交后它的索引项交给 Vacuum 回收
+     */
+    private void indexRemoved(long xid, Map<String, Object> entry, long uid) throws Exception {
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                ((TableManagerImpl)tbm).vacuum.removed(xid, field, field.indexValue(entry), uid);
             }
         }
     }
@@ -209,10 +277,24 @@ public class Table {
         return entry;
     }
 
-    private List<Long> parseWhere(Where where) throws Exception {
-        long l0=0, r0=0, l1=0, r1=0;
-        boolean single = false;
+    /**
+     * 删除和更新会修改索引，先读出所有 uid 再逐个处理，避免扫描到自己新插入的版本
+     */
+    private List<Long> search(CalWhereRes res) throws Exception {
+        List<Long> uids = res.fd.search(res.l0, res.r0);
+        if(!res.single) {
+            List<Long> tmp = res.fd.search(res.l1, res.r1);
+            uids.addAll(tmp);
+        }
+        return uids;
+    }
+
+    /**
+     * 解析 Where 语句，得到使用的索引字段和要查找的一个或两个范围
+     */
+    private CalWhereRes whereRange(Where where) throws Exception {
         Field fd = null;
+        CalWhereRes res;
         if(where == null) {
             for (Field field : fields) {
                 if(field.isIndexed()) {
@@ -220,37 +302,137 @@ public class Table {
                     break;
                 }
             }
-            l0 = 0;
-            r0 = Long.MAX_VALUE;
-            single = true;
+            res = new CalWhereRes();
+            res.l0 = Keys.MIN;
+            res.r0 = null;
+            res.single = true;
         } else {
-            for (Field field : fields) {
-                if(field.fieldName.equals(where.singleExp1.field)) {
-                    if(!field.isIndexed()) {
-                        throw Error.FieldNotIndexedException;
-                    }
-                    fd = field;
-                    break;
-                }
-            }
+            fd = field(where.singleExp1.field);
             if(fd == null) {
                 throw Error.FieldNotFoundException;
             }
-            CalWhereRes res = calWhere(fd, where);
-            l0 = res.l0; r0 = res.r0;
-            l1 = res.l1; r1 = res.r1;
-            single = res.single;
+            if(!fd.isIndexed()) {
+                // 第一个条件在多列索引的后面的列上时，用第二个条件所在的多列索引
+                Field fd2 = "and".equals(where.logicOp) ? field(where.singleExp2.field) : null;
+                if(fd2 == null || !fd2.isComposite()) {
+                    throw Error.FieldNotIndexedException;
+                }
+                fd = fd2;
+            }
+            res = fd.isComposite() ? calComposite(fd, where) : calWhere(fd, where);
+            res.where = where;
         }
-        List<Long> uids = fd.search(l0, r0);
-        if(!single) {
-            List<Long> tmp = fd.search(l1, r1);
-            uids.addAll(tmp);
+        res.fd = fd;
+        return res;
+    }
+
+    Field field(String name) {
+        for (Field field : fields) {
+            if(field.fieldName.equals(name)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 单列索引的范围正好是满足条件的记录；多列索引的范围可能只用到第一列，查找到的记录还要用原值比较一次
+     * 多列索引上的条件按各自的字段比较
+     */
+    private boolean matches(CalWhereRes res, Map<String, Object> entry) throws Exception {
+        Where where = res.where;
+        if(where == null || !res.fd.isComposite()) {
+            return true;
+        }
+        boolean m1 = matches(res.fd, where.singleExp1, entry);
+        switch(where.logicOp) {
+            case "or":
+                return m1 || matches(res.fd, where.singleExp2, entry);
+            case "and":
+                return m1 && matches(res.fd, where.singleExp2, entry);
+            default:
+                return m1;
         }
-        return uids;
     }
 
+    private boolean matches(Field fd, SingleExpression exp, Map<String, Object> entry) throws Exception {
+        Field f = fd.isComposite() ? field(exp.field) : fd;
+        if(f == null) {
+            throw Error.FieldNotFoundException;
+        }
+        return f.matches(entry.get(f.fieldName), exp);
+    }
+
+    /**
+     * 计算多列索引上的查找范围
+     * and 的两个条件都在第一列上时取交集，否则第一列的等值条件和第二列的条件组成前缀查找；
+     * or 只能用在第一列上
+     */
+    private CalWhereRes calComposite(Field fd, Where where) throws Exception {
+        CalWhereRes res = new CalWhereRes();
+        res.single = true;
+        FieldCalRes r;
+        switch(where.logicOp) {
+            case "":
+                r = fd.calPrefix(where.singleExp1, null);
+                break;
+            case "and":
+                SingleExpression lead = where.singleExp1, other = where.singleExp2;
+                if(!fd.fieldName.equals(lead.field)) {
+                    lead = where.singleExp2;
+                    other = where.singleExp1;
+                }
+                if(fd.fieldName.equals(other.field)) {
+                    r = fd.calPrefix(lead, null);
+                    FieldCalRes r2 = fd.calPrefix(other, null);
+                    r.left = maxLeft(r.left, r2.left);
+                    r.right = minRight(r.right, r2.right);
+                } else {
+                    r = fd.calPrefix(lead, other);
+                }
+                break;
+            case "or":
+                if(!fd.fieldName.equals(where.singleExp2.field)) {
+                    throw Error.FieldNotIndexedException;
+                }
+                res.single = false;
+                r = fd.calPrefix(where.singleExp1, null);
+                FieldCalRes r2 = fd.calPrefix(where.singleExp2, null);
+                res.l1 = r2.left;
+                res.r1 = r2.right;
+                break;
+            default:
+                throw Error.InvalidLogOpException;
+        }
+        res.l0 = r.left;
+        res.r0 = r.right;
+        return res;
+    }
+
+    /**
+     * 两个范围的交集的左端点
+     */
+    private static byte[] maxLeft(byte[] l0, byte[] l1) {
+        return Keys.compare(l0, l1) >= 0 ? l0 : l1;
+    }
+
+    /**
+     * 两个范围的交集的右端点，null 表示没有上界
+     */
+    private static byte[] minRight(byte[] r0, byte[] r1) {
+        if(r0 == null || r1 == null) {
+            return r0 == null ? r1 : r0;
+        }
+        return Keys.compare(r0, r1) <= 0 ? r0 : r1;
+    }
+
+    /**
+     * 索引字段和要查找的范围 [l0, r0)、[l1, r1)，右端点为 null 表示没有上界
+     */
     class CalWhereRes {
-        long l0, r0, l1, r1;
+        Field fd;
+        Where where;
+        byte[] l0, r0, l1, r1;
         boolean single;
     }
 
@@ -275,12 +457,8 @@ public class Table {
                 res.l0 = r.left; res.r0 = r.right;
                 r = fd.calExp(where.singleExp2);
                 res.l1 = r.left; res.r1 = r.right;
-                if(res.l1 > res.l0) {
-                    res.l0 = res.l1;
-                }
-                if(res.r1 < res.r0) {
-                    res.r0 = res.r1;
-                }
+                res.l0 = maxLeft(res.l0, res.l1);
+                res.r0 = minRight(res.r0, res.r1);
                 break;
             default:
                 throw Error.InvalidLogOpException;
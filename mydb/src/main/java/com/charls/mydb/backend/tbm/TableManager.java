@@ -24,6 +24,8 @@ public interface TableManager {
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
 
+    int vacuum();                                   // 回收不再被任何快照看到的索引项，返回回收的个数
+
     /**
      * 创建表管理器
      * @param path
@@ -4,6 +4,7 @@ package com.charls.mydb.backend.tbm;
 import com.charls.mydb.backend.dm.DataManager;
 import com.charls.mydb.backend.parser.statement.*;
 import com.charls.mydb.backend.utils.Parser;
+import com.charls.mydb.backend.vm.Transaction;
 import com.charls.mydb.backend.vm.VersionManager;
 import com.charls.mydb.common.Error;
 
@@ -24,6 +25,7 @@ public class TableManagerImpl implements TableManager{
 
     VersionManager vm;
     DataManager dm;
+    Vacuum vacuum;                                  // 回收失效的索引项
     private Booter booter;
     private Map<String, Table> tableCache;          // 表的缓存，key：表名；value：表
     private Map<Long, List<Table>> xidTableCache;   // 记录每个事务正在操作的表
@@ -39,6 +41,7 @@ public class TableManagerImpl implements TableManager{
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
         lock = new ReentrantLock();
+        this.vacuum = new Vacuum(vm);
         loadTables();
     }
 
@@ -60,6 +63,8 @@ public class TableManagerImpl implements TableManager{
     }
 
     private void updateFirstTableUid(long uid) {
+        // Booter 文件不受日志保护，先保证新表的日志已经落盘，再让 Booter 指向它
+        dm.flushLog();
         byte[] raw = Parser.long2Byte(uid);
         booter.update(raw);
     }
@@ -68,7 +73,13 @@ public class TableManagerImpl implements TableManager{
     public BeginRes begin(Begin begin) {
         BeginRes res = new BeginRes();
         int level = begin.isRepeatableRead?1:0; // 隔离等级
-        res.xid = vm.begin(level);              // 通过VM开始一个新事务，返回事务ID
+        if(begin.readOnly) {
+            res.xid = vm.beginReadOnly(level);  // 只读事务不分配 xid，返回负数的虚拟编号
+        } else if(begin.durability == null) {
+            res.xid = vm.begin(level);          // 通过VM开始一个新事务，返回事务ID，使用数据库默认的持久性模式
+        } else {
+            res.xid = vm.begin(level, Transaction.parseDurability(begin.durability));
+        }
         res.result = "begin".getBytes();        // 记录执行语句
         return res;
     }
@@ -76,15 +87,22 @@ public class TableManagerImpl implements TableManager{
     @Override
     public byte[] commit(long xid) throws Exception {
         vm.commit(xid);
+        vacuum.commit(xid);
         return "commit".getBytes();
     }
 
     @Override
     public byte[] abort(long xid) {
         vm.abort(xid);
+        vacuum.abort(xid);
         return "abort".getBytes();
     }
 
+    @Override
+    public int vacuum() {
+        return vacuum.run();
+    }
+
     @Override
     public byte[] show(long xid) {
         lock.lock();
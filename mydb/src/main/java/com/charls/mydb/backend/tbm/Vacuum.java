@@ -0,0 +1,166 @@
+package com.charls.mydb.backend.tbm;
+
+import com.charls.mydb.backend.utils.Panic;
+import com.charls.mydb.backend.vm.VersionManager;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 回收索引中失效的索引项
+ * B+ 树的修改不受事务保护，插入后立即生效，所以：
+ *      事务回滚时，它插入的版本对任何事务都不可见，这些版本的索引项立即删除；
+ *      事务提交时，它删除（包括 UPDATE 删除旧版本）的版本还可能被提交前开始的快照看到，
+ *      这些索引项进入待回收队列，等 VM 的 vacuumHorizon() 超过这个事务之后再删除。
+ * 待回收队列只在内存中，重启时还没有回收的索引项会留在索引中，查询时由可见性判断过滤。
+ */
+class Vacuum {
+    static final int BATCH = 1024;              // 待回收的索引项达到这个数量时，由提交的线程顺带回收一次
+
+    private VersionManager vm;
+    private Map<Long, Changes> changes;         // 每个事务插入和删除的索引项，只由执行这个事务的线程修改
+    private List<Dead> dead;                    // 已提交事务删除的索引项
+    private int pending;                        // dead 中索引项的总数
+    private Lock lock;                          // 保护 dead 和 pending
+    private Lock runLock;                       // 同一时间只有一个线程回收
+
+    Vacuum(VersionManager vm) {
+        this.vm = vm;
+        this.changes = new ConcurrentHashMap<>();
+        this.dead = new ArrayList<>();
+        this.lock = new ReentrantLock();
+        this.runLock = new ReentrantLock();
+    }
+
+    /**
+     * 事务 xid 为版本 uid 在 field 上插入了索引项
+     */
+    void inserted(long xid, Field field, Object key, long uid) {
+        changesOf(xid).inserted.add(new IndexEntry(field, key, uid));
+    }
+
+    /**
+     * 事务 xid 删除了版本 uid，它在 field 上的索引项在事务提交后失效
+     */
+    void removed(long xid, Field field, Object key, long uid) {
+        changesOf(xid).removed.add(new IndexEntry(field, key, uid));
+    }
+
+    private Changes changesOf(long xid) {
+        Changes c = changes.get(xid);
+        if(c == null) {
+            c = new Changes();
+            changes.put(xid, c);
+        }
+        return c;
+    }
+
+    /**
+     * 事务提交之后调用，删除的版本进入待回收队列
+     */
+    void commit(long xid) {
+        Changes c = changes.remove(xid);
+        if(c == null || c.removed.isEmpty()) {
+            return;
+        }
+        boolean full;
+        lock.lock();
+        try {
+            dead.add(new Dead(xid, c.removed));
+            pending += c.removed.size();
+            full = pending >= BATCH;
+        } finally {
+            lock.unlock();
+        }
+        if(full) {
+            run();
+        }
+    }
+
+    /**
+     * 事务回滚之后调用，立即删除它插入的索引项
+     */
+    void abort(long xid) {
+        Changes c = changes.remove(xid);
+        if(c == null) {
+            return;
+        }
+        for(IndexEntry e : c.inserted) {
+            remove(e);
+        }
+    }
+
+    /**
+     * 回收所有不再被任何快照看到的索引项
+     * @return 回收的索引项个数，已经有线程在回收时返回 0
+     */
+    int run() {
+        if(!runLock.tryLock()) {
+            return 0;
+        }
+        try {
+            List<IndexEntry> entries = new ArrayList<>();
+            long horizon = vm.vacuumHorizon();
+            lock.lock();
+            try {
+                Iterator<Dead> it = dead.iterator();
+                while(it.hasNext()) {
+                    Dead d = it.next();
+                    if(d.xid < horizon) {
+                        entries.addAll(d.entries);
+                        it.remove();
+                    }
+                }
+                pending -= entries.size();
+            } finally {
+                lock.unlock();
+            }
+            for(IndexEntry e : entries) {
+                remove(e);
+            }
+            return entries.size();
+        } finally {
+            runLock.unlock();
+        }
+    }
+
+    private void remove(IndexEntry e) {
+        try {
+            e.field.remove(e.key, e.uid);
+        } catch(Exception err) {
+            Panic.panic(err);
+        }
+    }
+
+    private static class IndexEntry {
+        Field field;
+        Object key;
+        long uid;
+
+        IndexEntry(Field field, Object key, long uid) {
+            this.field = field;
+            this.key = key;
+            this.uid = uid;
+        }
+    }
+
+    private static class Changes {
+        List<IndexEntry> inserted = new ArrayList<>();
+        List<IndexEntry> removed = new ArrayList<>();
+    }
+
+    private static class Dead {
+        long xid;
+        List<IndexEntry> entries;
+
+        Dead(long xid, List<IndexEntry> entries) {
+            this.xid = xid;
+            this.entries = entries;
+        }
+    }
+}
@@ -16,11 +16,17 @@ import java.nio.channels.FileChannel;
  */
 public interface TransactionManager {
     long begin();                       // 开启一个新事务
-    void commit(long xid);              // 提交一个事务
+    long lastXid();                     // 最后一个分配出去的xid
+    void commit(long xid);              // 提交一个事务，返回时提交状态已经落盘
+    void commitAsync(long xid);         // 提交一个事务，提交状态立即可见，但要等 persistCommits() 才落盘
+    long[] pendingCommits();            // 获取所有已经提交但还没有落盘的事务
+    void persistCommits(long[] xids);   // 将这些事务的提交状态落盘
     void abort(long xid);               // 取消一个事务
     boolean isActive(long xid);         // 查询一个事务的状态是否是正在进行的状态
     boolean isCommitted(long xid);      // 查询一个事务的状态是否是已提交
+    boolean isCommitPersisted(long xid); // 查询一个事务是否已提交，并且提交状态已经落盘
     boolean isAborted(long xid);        // 查询一个事务的状态是否是已取消
+    void freeze(long horizon);          // 冻结 xid 小于 horizon 的事务，这些事务必须都已经结束
     void close();                       // 关闭TM
 
 
@@ -56,7 +62,7 @@ public interface TransactionManager {
             Panic.panic(e);
         }
 
-        // 写一个空的XID文件头，记录管理了0个事务
+        // 写一个空的XID文件头，记录管理了0个事务，没有冻结的事务
         ByteBuffer buf = ByteBuffer.wrap(new byte[TransactionManagerImpl.LEN_XID_HEADER_LENGTH]);
         try {
             fc.position(0);
@@ -66,7 +72,7 @@ public interface TransactionManager {
         }
 
         // 开启事务管理模块
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(f, raf, fc);
     }
 
     /**
@@ -92,6 +98,6 @@ public interface TransactionManager {
             Panic.panic(e);
         }
 
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(f, raf, fc);
     }
 }
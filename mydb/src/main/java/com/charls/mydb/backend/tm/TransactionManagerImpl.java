@@ -4,27 +4,61 @@ import com.charls.mydb.backend.utils.Panic;
 import com.charls.mydb.backend.utils.Parser;
 import com.charls.mydb.common.Error;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * 事务管理模块（TM）
- * XID文件格式：头部用8字节存此XID文件管理的事务总数，后面用1字节存每个事务的状态
- * ｜Header｜ status ｜ status｜ ... ｜status｜
- *  [8Byte]  [1Byte]  [1Byte] [...]  [1Byte]
+ * XID文件格式：头部存此XID文件已经预留的事务总数、冻结线 Base 和冻结的回滚事务区间，后面用1字节存每个事务的状态
+ * ｜Reserved｜ Base ｜ RangeCount ｜ [From, To] ... ｜ status ｜ status｜ ... ｜status｜
+ *   [8Byte]  [8Byte]   [4Byte]     [16Byte] ...      [1Byte]  [1Byte] [...]  [1Byte]
+ * 状态部分只存 xid 为 (Base, Reserved] 的事务，第一个状态字节对应 Base+1。
+ *
+ * 开启事务不写文件：xid 由 AtomicLong 分配，文件按块预留 XID_RESERVE_BLOCK 个事务，
+ * 预留时将文件扩展并用 0（active）填充，再更新头部并刷盘，只有用完一块时才刷一次盘。
+ * active 状态不需要落盘：崩溃后没有提交的事务在文件中仍然是 0，有日志的由恢复过程回滚，没有日志的永远不可见。
+ * 重启后从预留的上界之后继续分配，没有用到的 xid 直接跳过。
  *
  * 构造函数需要检查XID文件是否合法，原理是用头部存的事务数量去计算最后一个事务在XID文件中的与起始位置的相对位置，再去对比XID文件的长度
  * 有个超级事务权限SUPER_XID，用于内部控制所有事务的操作。
  * 新建一个新事务的时候使用 ReentrantLock 保证线程安全性
+ *
+ * 所有事务的状态在打开时读入内存（XidStatusTable，每个事务 2 bit），查询状态是纯内存读，不访问文件；
+ * 修改状态时先改内存再写文件（write-through）。
+ *
+ * 事务状态部分通过 MappedByteBuffer 按块（MAP_CHUNK_SIZE 个事务）映射到内存，写状态就是一次按下标的字节写入，
+ * 不同事务写不同的字节，不需要加锁，也没有系统调用。只有需要持久化时才 force：
+ * 同步提交立即 force，异步/组提交由 persistCommits() 批量 force，回滚不需要 force（崩溃后未提交的事务本来就会被回滚）。
+ * 文件头通过按位置写入，不修改通道的 position。
+ *
+ * 冻结：比最老的活跃事务还老的事务状态不会再改变，freeze(horizon) 把它们移出状态表和文件。
+ * 冻结的事务中，回滚（包括崩溃时没有完成的）的事务合并成区间记在文件头，其余都是已提交。
+ * 压缩时把新文件写到临时文件，刷盘后原子地替换XID文件。复制状态和刷盘临时文件不加锁，
+ * 这期间被修改状态的事务记在 freezeDirty 中；最后持有 fileLock 的写锁补写这些事务和新预留的事务，
+ * 再替换文件、发布新的冻结线。所有写状态的操作持有读锁；查询状态不加锁，冻结信息通过 volatile 发布，先发布再释放状态表的段。
  */
 public class TransactionManagerImpl implements TransactionManager{
 
-    // XID文件头长度（使用8字节记录此XID文件管理的事务总数）
-    static final int LEN_XID_HEADER_LENGTH = 8;
+    // XID文件头的固定部分（8字节预留的事务总数，8字节冻结线，4字节回滚区间个数）
+    static final int LEN_XID_HEADER_LENGTH = 8 + 8 + 4;
+    private static final int OF_BASE = 8;
+    private static final int OF_RANGE_COUNT = 16;
+    // 每个回滚区间的长度
+    private static final int LEN_RANGE = 16;
     // 每个事务的占用长度（使用1字节记录每个事务的状态）
     private static final int XID_FIELD_SIZE = 1;
 
@@ -40,26 +74,56 @@ public class TransactionManagerImpl implements TransactionManager{
     static final String XID_SUFFIX = ".xid";
 
 
+    // XID 文件本身，压缩时需要替换
+    private File xidFile;
+
     // 支持“随机访问”的方式，程序快可以直接跳转到文件的任意地方来读写数据。
     private RandomAccessFile file;
 
     // 直接连接输入输出流的文件通道，将数据直接写入到目标文件中去。
     private FileChannel fc;
-    private long xidCounter;
-    private Lock counterLock;
+    static final int XID_RESERVE_BLOCK = 10000;            // 每次预留的事务数
+    static final int MAP_CHUNK_SIZE = 1 << 20;              // 每块映射的事务数
+
+    private volatile MappedByteBuffer[] chunks;             // 事务状态的内存映射，第 k 块对应 xid 为 fileBase + [k*MAP_CHUNK_SIZE+1, (k+1)*MAP_CHUNK_SIZE]
+    private long fileBase;                                  // 当前文件的冻结线，持有 fileLock 时读写，只有持有 freezeLock 的冻结过程修改
+    private int headerLength;                               // 当前文件头的长度，同 fileBase
+    private ReentrantReadWriteLock fileLock;                // 写状态加读锁，替换文件加写锁
+    private Lock freezeLock;                                // 同一时刻只有一个冻结过程
+    private volatile Map<Long, Boolean> freezeDirty;        // 冻结过程中状态被修改的事务，不在冻结时为 null
+
+    private volatile Frozen frozen;                         // 已经冻结的事务
+
+    private AtomicLong xidCounter;      // 最后一个分配出去的xid
+    private volatile long reservedXid;  // 文件中已经预留的xid上界，即文件头的值
+    private Lock counterLock;           // 预留新的一块xid时加锁
+
+    // 事务状态的内存缓存
+    private XidStatusTable statusTable;
+
+    // 已经提交但提交状态还没有落盘的事务（异步/组提交），内存中已经是已提交状态
+    private Map<Long, Boolean> pendingCommits;
 
     /**
      * 构造函数（需要检查XID文件是否合法）
+     * @param xidFile
      * @param file
      * @param fc
      */
-    public TransactionManagerImpl(RandomAccessFile file, FileChannel fc) {
+    public TransactionManagerImpl(File xidFile, RandomAccessFile file, FileChannel fc) {
+        this.xidFile = xidFile;
         this.file = file;
         this.fc = fc;
         // 初始化wield可重入锁
         counterLock=new ReentrantLock();
+        fileLock = new ReentrantReadWriteLock();
+        freezeLock = new ReentrantLock();
+        pendingCommits = new ConcurrentHashMap<>();
+        chunks = new MappedByteBuffer[0];
         // 检查XID文件是否合法
         checkXIDCounter();
+        // 将所有事务的状态读入内存
+        loadStatus();
     }
 
     /**
@@ -83,130 +147,277 @@ public class TransactionManagerImpl implements TransactionManager{
         // 读取xid文件中事务的个数
         ByteBuffer buf = ByteBuffer.allocate(LEN_XID_HEADER_LENGTH);
         try {
-            // 读取文件内容的开始位置
-            fc.position(0);
-            // 读取文件内容，存入到buffer缓冲空间中 =》读取XID文件的文件头
-            fc.read(buf);
+            // 从文件开始位置读取文件内容，存入到buffer缓冲空间中 =》读取XID文件的文件头
+            fc.read(buf, 0);
         }catch (IOException e){
             Panic.panic(e);
         }
 
         // Parser.parseLong(buffer.array()); 将字节数组包装到新的缓冲区中，并返回缓冲区位置对应位置数据内容
-        this.xidCounter=Parser.parseLong(buf.array());
+        byte[] header = buf.array();
+        this.reservedXid=Parser.parseLong(header);
+        this.xidCounter=new AtomicLong(reservedXid);
+        this.fileBase = Parser.parseLong(Arrays.copyOfRange(header, OF_BASE, OF_RANGE_COUNT));
+        int rangeCount = Parser.parseInt(Arrays.copyOfRange(header, OF_RANGE_COUNT, LEN_XID_HEADER_LENGTH));
+        if(rangeCount < 0 || fileBase < 0 || fileBase > reservedXid
+            || (long)LEN_XID_HEADER_LENGTH + (long)rangeCount * LEN_RANGE > fileLen) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        this.headerLength = LEN_XID_HEADER_LENGTH + rangeCount * LEN_RANGE;
+        this.frozen = new Frozen(fileBase, readRanges(rangeCount));
+
         // 取得最后一个事务在文件中的相对位置，也就是反推xid文件的长度
-        long end=getXidPosition(this.xidCounter+1);
-        // 文件实际长度和读取到的长度不一致，报错！！
-        if (end!=fileLen){
+        long end=getXidPosition(this.reservedXid+1);
+        // 文件实际长度不足以存下预留的事务，报错！！（映射是按块进行的，文件可能比预留的更长）
+        if (end>fileLen){
             Panic.panic(Error.BadXIDFileException);
         }
     }
 
+    /**
+     * 读取文件头中冻结的回滚事务区间
+     * @param rangeCount
+     * @return 依次存放每个区间的起点和终点
+     */
+    private long[] readRanges(int rangeCount) {
+        ByteBuffer buf = ByteBuffer.allocate(rangeCount * LEN_RANGE);
+        try {
+            fc.read(buf, LEN_XID_HEADER_LENGTH);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        byte[] raw = buf.array();
+        long[] ranges = new long[rangeCount * 2];
+        for(int i = 0; i < ranges.length; i ++) {
+            ranges[i] = Parser.parseLong(Arrays.copyOfRange(raw, i * 8, i * 8 + 8));
+        }
+        return ranges;
+    }
+
+    /**
+     * 映射XID文件并将没有冻结的事务的状态读入内存
+     */
+    private void loadStatus() {
+        mapChunks(reservedXid);
+        statusTable = new XidStatusTable(fileBase);
+        statusTable.ensureCapacity(reservedXid);
+        for(long xid = fileBase + 1; xid <= reservedXid; xid ++) {
+            statusTable.set(xid, chunkOf(xid).get(indexOf(xid)));
+        }
+    }
+
+    /**
+     * 映射足够多的块，使 xid 之前的事务状态都能通过映射访问，映射超出文件长度时文件会被扩展
+     * @param xid
+     */
+    private void mapChunks(long xid) {
+        int need = (int)((xid - fileBase + MAP_CHUNK_SIZE - 1) / MAP_CHUNK_SIZE);
+        if(need <= chunks.length) {
+            return;
+        }
+        MappedByteBuffer[] grown = Arrays.copyOf(chunks, need);
+        try {
+            for(int i = chunks.length; i < need; i ++) {
+                grown[i] = fc.map(FileChannel.MapMode.READ_WRITE, headerLength + (long)i * MAP_CHUNK_SIZE * XID_FIELD_SIZE, (long)MAP_CHUNK_SIZE * XID_FIELD_SIZE);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        chunks = grown;
+    }
+
+    private MappedByteBuffer chunkOf(long xid) {
+        return chunks[(int)((xid - fileBase - 1) / MAP_CHUNK_SIZE)];
+    }
+
+    private int indexOf(long xid) {
+        return (int)((xid - fileBase - 1) % MAP_CHUNK_SIZE) * XID_FIELD_SIZE;
+    }
+
     /**
      * 根据事务xid取得其在XID文件中对应的位置
      * @param xid
      * @return
      */
     private long getXidPosition(long xid) {
-        return LEN_XID_HEADER_LENGTH+(xid-1)*XID_FIELD_SIZE;
+        return headerLength+(xid-fileBase-1)*XID_FIELD_SIZE;
     }
 
     /**
-     * begin() 方法会开始一个事务，更具体的，首先设置 xidCounter+1 事务的状态为 committed，随后 xidCounter 自增，并更新文件头。
+     * begin() 方法会开始一个事务：xidCounter 自增得到新的 xid，它的状态在预留时已经是 active，不需要写文件。
+     * 只有预留的 xid 用完时，才需要扩展文件并刷盘。
      * @return
      */
     @Override
     public long begin() {
-        // 加锁，防止同事开启事务时，事务总数出现错误
+        long xid = xidCounter.incrementAndGet();
+        if(xid > reservedXid) {
+            reserveXID(xid);
+        }
+        return xid;
+    }
+
+    /**
+     * 最后一个分配出去的xid，重启后是文件中预留的上界
+     * @return
+     */
+    @Override
+    public long lastXid() {
+        return xidCounter.get();
+    }
+
+    /**
+     * 预留新的一块 xid，直到 xid 被包含在内
+     * 先把文件扩展并填充为 active，再更新文件头，最后刷盘；内存中的状态表也要扩容，之后才能发布新的上界
+     * @param xid
+     */
+    private void reserveXID(long xid) {
+        // 加锁，防止同时预留时，文件头出现错误
         counterLock.lock();
+        fileLock.readLock().lock();
         try {
-            // 设置 xidCounter+1 事务的状态为 committed
-            long xid=xidCounter+1;
-            updateXID(xid,FIELD_TRAN_ACTIVE);
-            
-            // xidCounter 自增，并更新文件头
-            incrXIDCounter();
-            return xid;
-        }finally {
+            while(reservedXid < xid) {
+                long newReserved = reservedXid + XID_RESERVE_BLOCK;
+                mapChunks(newReserved);
+                // 新预留的事务填充为 active
+                for(long x = reservedXid + 1; x <= newReserved; x ++) {
+                    writeXID(x, FIELD_TRAN_ACTIVE);
+                }
+                forceXID(reservedXid + 1, newReserved);
+                try {
+                    fc.write(ByteBuffer.wrap(Parser.long2Byte(newReserved)), 0);
+                    // 文件长度也可能发生了变化，连同元数据一起刷盘
+                    fc.force(true);
+                } catch (IOException e) {
+                    Panic.panic(e);
+                }
+                statusTable.ensureCapacity(newReserved);
+                reservedXid = newReserved;
+            }
+        } finally {
+            fileLock.readLock().unlock();
             counterLock.unlock();
         }
     }
 
     /**
-     * 更新xid事务的状态为status
+     * 将xid事务的状态status写入XID文件的映射，不刷盘，调用方需要持有 fileLock
      * @param xid 事务id
      * @param status 事务需要改变为的状态
      */
-    private void updateXID(long xid, byte status) {
-        // 获取当前xid事务的相对位置
-        long offset = getXidPosition(xid);
-        // 事务状态更新为status
-        byte[]temp=new byte[XID_FIELD_SIZE];
-        temp[0]=status;
+    private void writeXID(long xid, byte status) {
+        chunkOf(xid).put(indexOf(xid), status);
+    }
 
-        // 使用wrap将字符串转成ByteBuffer
-        ByteBuffer buffer = ByteBuffer.wrap(temp);
-        // 所有的文件操作在执行后都需要立刻刷入文件中，防止在崩溃后文件丢失数据
+    /**
+     * 修改事务状态：先改内存再写文件的映射，需要时刷盘
+     * @param xid
+     * @param status
+     * @param force
+     */
+    private void updateXID(long xid, byte status, boolean force) {
+        fileLock.readLock().lock();
         try {
-            // 将 buffer 数据写入文件的 offest 位置
-            fc.position(offset);
-            fc.write(buffer);
-        }catch (IOException e){
-            Panic.panic(e);
-        }
-        try {
-            /*
-             * force(); 强制同步缓存内容到文件中
-             * 参数为 boolean 类型，表示是否同步文件的元数据
-             * */
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+            statusTable.set(xid, status);
+            writeXID(xid, status);
+            markDirty(xid);
+            if(force) {
+                forceXID(xid, xid);
+            }
+        } finally {
+            fileLock.readLock().unlock();
         }
     }
 
     /**
-     * 将xid加一，并更新XID文件中Header的数据
+     * 冻结过程中记下状态被修改的事务，调用方需要持有 fileLock 的读锁
+     * @param xid
      */
-    private void incrXIDCounter() {
-        // 增加一个事务
-        xidCounter++;
-        // 分配缓存空间，将数据存入 buffer
-        ByteBuffer buffer = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
-        // 修改XID Header 更新事务个数
-        try {
-            fc.position(0);
-            fc.write(buffer);
-        }catch (IOException e){
-            Panic.panic(e);
+    private void markDirty(long xid) {
+        Map<Long, Boolean> dirty = freezeDirty;
+        if(dirty != null) {
+            dirty.put(xid, true);
         }
+    }
 
-        try {
-            // 注意，这里的所有文件操作，在执行后都需要立刻刷入文件中，防止在崩溃后文件丢失数据，
-            // fileChannel 的 force() 方法，强制同步缓存内容到文件中，类似于 BIO 中的 flush() 方法。
-            // force 方法的参数是一个布尔，表示是否同步文件的元数据（例如最后修改时间等）。
-            fc.force(false);
-        }catch (IOException e){
-            Panic.panic(e);
+    /**
+     * 将 [from, to] 之间事务的状态刷盘，每个涉及到的块只刷一次
+     * @param from
+     * @param to
+     */
+    private void forceXID(long from, long to) {
+        int first = (int)((from - fileBase - 1) / MAP_CHUNK_SIZE);
+        int last = (int)((to - fileBase - 1) / MAP_CHUNK_SIZE);
+        for(int i = first; i <= last; i ++) {
+            chunks[i].force();
         }
     }
 
-
     /**
      * 提交XID事务，更新XID文件中对应事务的状态即可
      * @param xid
      */
     @Override
     public void commit(long xid) {
-        updateXID(xid,FIELD_TRAN_COMMITTED);
+        // 同步提交，返回前提交状态必须落盘
+        updateXID(xid, FIELD_TRAN_COMMITTED, true);
+    }
+
+    /**
+     * 提交XID事务，但只在内存中记录，不写XID文件
+     * 调用方需要在日志落盘之后调用 persistCommits() 将提交状态落盘；在此之前崩溃，恢复时事务会被当作未完成事务回滚
+     * @param xid
+     */
+    @Override
+    public void commitAsync(long xid) {
+        pendingCommits.put(xid, true);
+        statusTable.set(xid, FIELD_TRAN_COMMITTED);
+    }
+
+    /**
+     * 获取所有已经提交但还没有落盘的事务
+     * @return
+     */
+    @Override
+    public long[] pendingCommits() {
+        return pendingCommits.keySet().stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * 将事务的提交状态写入XID文件，每个涉及到的块只刷一次盘
+     * @param xids
+     */
+    @Override
+    public void persistCommits(long[] xids) {
+        if(xids.length == 0) {
+            return;
+        }
+        fileLock.readLock().lock();
+        try {
+            long min = Long.MAX_VALUE, max = 0;
+            for (long xid : xids) {
+                writeXID(xid, FIELD_TRAN_COMMITTED);
+                markDirty(xid);
+                min = Math.min(min, xid);
+                max = Math.max(max, xid);
+            }
+            forceXID(min, max);
+            for (long xid : xids) {
+                pendingCommits.remove(xid);
+            }
+        } finally {
+            fileLock.readLock().unlock();
+        }
     }
 
     /**
      * 回滚XID事务，更新XID文件中对应事务的状态即可
+     * 回滚状态不需要立即落盘：崩溃后这个事务仍是 active，恢复时同样会被回滚
      * @param xid
      */
     @Override
     public void abort(long xid) {
-        updateXID(xid,FIELD_TRAN_ABORTED);
+        updateXID(xid, FIELD_TRAN_ABORTED, false);
     }
 
     /**
@@ -235,6 +446,17 @@ public class TransactionManagerImpl implements TransactionManager{
         return checkXID(xid,FIELD_TRAN_COMMITTED);
     }
 
+    /**
+     * 查询一个事务是否已提交，并且提交状态已经落盘
+     * 提交时先记入 pendingCommits 再修改状态，落盘后才移出，所以已提交且不在 pendingCommits 中就说明已经落盘
+     * @param xid
+     * @return
+     */
+    @Override
+    public boolean isCommitPersisted(long xid) {
+        return isCommitted(xid) && !pendingCommits.containsKey(xid);
+    }
+
     /**
      * 查询一个事务的状态是否是已取消
      * @param xid
@@ -255,17 +477,215 @@ public class TransactionManagerImpl implements TransactionManager{
      * @return
      */
     private boolean checkXID(long xid, byte status) {
-        // 获取当前xid事务的相对位置
-        long offset = getXidPosition(xid);
-        ByteBuffer buffer = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
+        return getStatus(xid)==status;
+    }
+
+    /**
+     * 查询事务的状态，冻结的事务按规则判断，其余直接查询内存中的状态表
+     * @param xid
+     * @return
+     */
+    private byte getStatus(long xid) {
+        while(true) {
+            Frozen f = frozen;
+            if(xid <= f.base) {
+                return f.isAborted(xid) ? FIELD_TRAN_ABORTED : FIELD_TRAN_COMMITTED;
+            }
+            byte status = statusTable.get(xid);
+            if(status >= 0) {
+                return status;
+            }
+            // 所在的段刚被释放，说明冻结线已经推进，重新读取冻结信息
+        }
+    }
+
+    /**
+     * 冻结所有 xid 小于 horizon 的事务，并压缩XID文件
+     * 调用方需要保证这些事务都已经结束；还有提交状态没有落盘的事务时，冻结线不会越过它
+     * 只在确定冻结线和替换文件时短暂持有锁，复制状态、写临时文件和刷盘都不阻塞开启和结束事务
+     * @param horizon
+     */
+    @Override
+    public void freeze(long horizon) {
+        freezeLock.lock();
         try {
-            fc.position(offset);
-            fc.read(buffer);
-        }catch (IOException e){
+            long newBase, reserved;
+            counterLock.lock();
+            fileLock.writeLock().lock();
+            try {
+                newBase = Math.min(horizon, reservedXid + 1) - 1;
+                for(long xid : pendingCommits.keySet()) {
+                    newBase = Math.min(newBase, xid - 1);
+                }
+                if(newBase <= fileBase) {
+                    return;
+                }
+                reserved = reservedXid;
+                // 之后修改状态的事务都会被记下，在替换文件前补写
+                freezeDirty = new ConcurrentHashMap<>();
+            } finally {
+                fileLock.writeLock().unlock();
+                counterLock.unlock();
+            }
+
+            // (fileBase, newBase] 中的事务都已经结束，状态不会再变
+            long[] ranges = freezeRanges(newBase);
+            File tmp = new File(xidFile.getPath() + ".tmp");
+            boolean locked = false;
+            try {
+                int newHeaderLength;
+                try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                    FileChannel tfc = raf.getChannel();
+                    newHeaderLength = writeFrozenFile(tfc, newBase, ranges, reserved);
+
+                    counterLock.lock();
+                    fileLock.writeLock().lock();
+                    locked = true;
+                    catchUp(tfc, newBase, newHeaderLength, reserved);
+                    tfc.force(true);
+                }
+                // 临时文件关闭之后仍持有锁，替换文件
+                replaceXIDFile(tmp, newBase, newHeaderLength);
+                frozen = new Frozen(newBase, ranges);
+                statusTable.release(newBase);
+            } catch (IOException e) {
+                Panic.panic(e);
+            } finally {
+                if(locked) {
+                    freezeDirty = null;
+                    fileLock.writeLock().unlock();
+                    counterLock.unlock();
+                }
+            }
+        } finally {
+            freezeLock.unlock();
+        }
+    }
+
+    /**
+     * 把 (fileBase, newBase] 中没有提交的事务合并进回滚区间
+     * 崩溃时没有完成的事务在文件中仍是 active，冻结后一律视为回滚
+     * @param newBase
+     * @return
+     */
+    private long[] freezeRanges(long newBase) {
+        long[] old = frozen.abortedRanges;
+        long[] ranges = Arrays.copyOf(old, old.length + 16);
+        int n = old.length;
+        for(long xid = fileBase + 1; xid <= newBase; xid ++) {
+            if(chunkOf(xid).get(indexOf(xid)) == FIELD_TRAN_COMMITTED) {
+                continue;
+            }
+            if(n > 0 && ranges[n - 1] == xid - 1) {
+                ranges[n - 1] = xid;
+                continue;
+            }
+            if(n == ranges.length) {
+                ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            }
+            ranges[n ++] = xid;
+            ranges[n ++] = xid;
+        }
+        return Arrays.copyOf(ranges, n);
+    }
+
+    /**
+     * 不加锁写出新的XID文件：新的文件头加上 (newBase, reserved] 的事务状态，并刷盘
+     * 状态从旧文件的映射中复制，复制期间被修改的事务由 catchUp() 补写
+     * @param tfc 临时文件
+     * @param newBase
+     * @param ranges
+     * @param reserved 开始冻结时预留的上界
+     * @return 新文件头的长度
+     */
+    private int writeFrozenFile(FileChannel tfc, long newBase, long[] ranges, long reserved) throws IOException {
+        int newHeaderLength = LEN_XID_HEADER_LENGTH + ranges.length / 2 * LEN_RANGE;
+        tfc.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(newHeaderLength);
+        header.putLong(reserved).putLong(newBase).putInt(ranges.length / 2);
+        for(long x : ranges) {
+            header.putLong(x);
+        }
+        header.flip();
+        tfc.write(header, 0);
+        copyStatus(tfc, newBase, newHeaderLength, newBase + 1, reserved);
+        tfc.force(true);
+        return newHeaderLength;
+    }
+
+    /**
+     * 持有锁补写写出新文件之后的变化：冻结过程中被修改状态的事务，新预留的事务，以及文件头中预留的上界
+     * @param tfc 临时文件
+     * @param newBase
+     * @param newHeaderLength
+     * @param reserved 开始冻结时预留的上界
+     */
+    private void catchUp(FileChannel tfc, long newBase, int newHeaderLength, long reserved) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        for(long xid : freezeDirty.keySet()) {
+            if(xid <= newBase || xid > reserved) {
+                continue;
+            }
+            one.clear();
+            one.put(chunkOf(xid).get(indexOf(xid)));
+            one.flip();
+            tfc.write(one, newHeaderLength + (xid - newBase - 1) * XID_FIELD_SIZE);
+        }
+        copyStatus(tfc, newBase, newHeaderLength, reserved + 1, reservedXid);
+        tfc.write(ByteBuffer.wrap(Parser.long2Byte(reservedXid)), 0);
+    }
+
+    /**
+     * 把 [from, to] 的事务状态从旧文件的映射复制到新文件
+     */
+    private void copyStatus(FileChannel tfc, long newBase, int newHeaderLength, long from, long to) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(MAP_CHUNK_SIZE);
+        long pos = newHeaderLength + (from - newBase - 1) * XID_FIELD_SIZE;
+        for(long xid = from; xid <= to; xid ++) {
+            buf.put(chunkOf(xid).get(indexOf(xid)));
+            if(!buf.hasRemaining() || xid == to) {
+                buf.flip();
+                while(buf.hasRemaining()) {
+                    pos += tfc.write(buf, pos);
+                }
+                buf.clear();
+            }
+        }
+    }
+
+    /**
+     * 用写好的临时文件原子地替换XID文件，重新映射，调用方需要持有 fileLock 的写锁
+     * @param tmp
+     * @param newBase
+     * @param newHeaderLength
+     */
+    private void replaceXIDFile(File tmp, long newBase, int newHeaderLength) {
+        try {
+            fc.close();
+            file.close();
+            Files.move(tmp.toPath(), xidFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory();
+            file = new RandomAccessFile(xidFile, "rw");
+            fc = file.getChannel();
+        } catch (IOException e) {
             Panic.panic(e);
         }
-        // 校对事务状态是否一致
-        return buffer.array()[0]==status;
+        fileBase = newBase;
+        headerLength = newHeaderLength;
+        chunks = new MappedByteBuffer[0];
+        mapChunks(reservedXid);
+    }
+
+    /**
+     * 替换文件后刷新所在目录，保证重命名本身落盘，不支持打开目录的平台上跳过
+     */
+    private void syncDirectory() {
+        File dir = xidFile.getAbsoluteFile().getParentFile();
+        try (FileChannel dfc = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            dfc.force(true);
+        } catch (IOException e) {
+            // 忽略
+        }
     }
 
     /**
@@ -273,6 +693,9 @@ public class TransactionManagerImpl implements TransactionManager{
      */
     @Override
     public void close() {
+        if(reservedXid > fileBase) {
+            forceXID(fileBase + 1, reservedXid);
+        }
         try {
             fc.close();
             file.close();
@@ -280,4 +703,36 @@ public class TransactionManagerImpl implements TransactionManager{
             Panic.panic(e);
         }
     }
+
+    /**
+     * 已经冻结的事务：xid 不超过 base 的事务，落在回滚区间内的是已回滚，其余是已提交
+     * 不可变对象，整体替换
+     */
+    static class Frozen {
+        final long base;
+        final long[] abortedRanges;     // 按顺序依次存放每个区间的起点和终点，区间互不相交
+
+        Frozen(long base, long[] abortedRanges) {
+            this.base = base;
+            this.abortedRanges = abortedRanges;
+        }
+
+        /**
+         * 二分查找 xid 是否落在某个回滚区间内
+         */
+        boolean isAborted(long xid) {
+            int lo = 0, hi = abortedRanges.length / 2 - 1;
+            while(lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if(abortedRanges[mid * 2 + 1] < xid) {
+                    lo = mid + 1;
+                } else if(abortedRanges[mid * 2] > xid) {
+                    hi = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
 }
@@ -0,0 +1,112 @@
+package com.charls.mydb.backend.tm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 事务状态在内存中的缓存，每个事务占 2 bit，状态取值与XID文件中的状态字节相同
+ * 一个 long 存 32 个事务的状态，按段分配，每段 32768 个事务，事务数增长时追加新段，已有的段不会移动。
+ * 段数组从冻结线所在的段开始，冻结线之前的段既不分配也不占用数组的位置。
+ *
+ * 查询状态是纯内存读，不加锁；修改状态使用 CAS，不同事务的状态可以并发修改。
+ * 扩容只在开启事务时发生，由 TM 的 counterLock 保证串行。
+ * 被冻结的事务不再需要逐个记录状态，所在的段可以整段释放。
+ */
+class XidStatusTable {
+    private static final int SEGMENT_SHIFT = 15;                        // 每段 2^15 个事务
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int XIDS_PER_WORD = 32;                        // 每个 long 存 32 个事务
+    private static final int WORDS_PER_SEGMENT = SEGMENT_SIZE / XIDS_PER_WORD;
+
+    private volatile Segments segments;
+
+    /**
+     * @param base 冻结线，只为 base 之后的事务分配段
+     */
+    XidStatusTable(long base) {
+        segments = new Segments((base + 1) >>> SEGMENT_SHIFT, new AtomicLongArray[0]);
+    }
+
+    /**
+     * 保证能够存下 xid 的状态，新事务的状态默认为 0，也就是 active
+     * @param xid
+     */
+    void ensureCapacity(long xid) {
+        Segments old = segments;
+        long seg = xid >>> SEGMENT_SHIFT;
+        if(seg < old.first + old.segs.length) {
+            return;
+        }
+        int n = (int)(seg - old.first + 1);
+        AtomicLongArray[] grown = Arrays.copyOf(old.segs, n);
+        for(int i = old.segs.length; i < n; i ++) {
+            grown[i] = new AtomicLongArray(WORDS_PER_SEGMENT);
+        }
+        segments = new Segments(old.first, grown);
+    }
+
+    /**
+     * 释放所有事务都不超过 xid 的段
+     * @param xid
+     */
+    void release(long xid) {
+        Segments old = segments;
+        long first = (xid + 1) >>> SEGMENT_SHIFT;     // first 之前的段中所有事务都不超过 xid
+        if(first <= old.first) {
+            return;
+        }
+        int from = (int)Math.min(first - old.first, old.segs.length);
+        segments = new Segments(first, Arrays.copyOfRange(old.segs, from, old.segs.length));
+    }
+
+    /**
+     * 获取xid的状态，超出范围的事务视为 active
+     * @param xid
+     * @return 事务状态，所在的段已经被释放时返回 -1
+     */
+    byte get(long xid) {
+        Segments s = segments;
+        long seg = xid >>> SEGMENT_SHIFT;
+        if(seg < s.first) {
+            return -1;
+        }
+        if(seg >= s.first + s.segs.length) {
+            return 0;
+        }
+        int i = (int)(xid & (SEGMENT_SIZE - 1));
+        long word = s.segs[(int)(seg - s.first)].get(i / XIDS_PER_WORD);
+        return (byte)((word >>> ((i % XIDS_PER_WORD) * 2)) & 3);
+    }
+
+    /**
+     * 设置xid的状态，调用前需要 ensureCapacity
+     * @param xid
+     * @param status
+     */
+    void set(long xid, byte status) {
+        Segments s = segments;
+        AtomicLongArray seg = s.segs[(int)((xid >>> SEGMENT_SHIFT) - s.first)];
+        int i = (int)(xid & (SEGMENT_SIZE - 1));
+        int shift = (i % XIDS_PER_WORD) * 2;
+        while(true) {
+            long word = seg.get(i / XIDS_PER_WORD);
+            long newWord = (word & ~(3L << shift)) | ((long)(status & 3) << shift);
+            if(seg.compareAndSet(i / XIDS_PER_WORD, word, newWord)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 段数组和它的第一段的编号，不可变对象，整体替换
+     */
+    private static class Segments {
+        final long first;
+        final AtomicLongArray[] segs;
+
+        Segments(long first, AtomicLongArray[] segs) {
+            this.first = first;
+            this.segs = segs;
+        }
+    }
+}
@@ -34,6 +34,45 @@ public class Parser {
         return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
     }
 
+    /**
+     * 直接从 buf 的 offset 处读取大端序的 long，不分配内存
+     */
+    public static long parseLong(byte[] buf, int offset) {
+        return ((long)buf[offset] << 56)
+            | ((long)(buf[offset+1] & 0xff) << 48)
+            | ((long)(buf[offset+2] & 0xff) << 40)
+            | ((long)(buf[offset+3] & 0xff) << 32)
+            | ((long)(buf[offset+4] & 0xff) << 24)
+            | ((long)(buf[offset+5] & 0xff) << 16)
+            | ((long)(buf[offset+6] & 0xff) << 8)
+            | ((long)(buf[offset+7] & 0xff));
+    }
+
+    /**
+     * 直接向 buf 的 offset 处写入大端序的 long，不分配内存
+     */
+    public static void putLong(byte[] buf, int offset, long value) {
+        for(int i = 7; i >= 0; i --) {
+            buf[offset+i] = (byte)value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * 直接从 buf 的 offset 处读取大端序的 short，不分配内存
+     */
+    public static short parseShort(byte[] buf, int offset) {
+        return (short)((buf[offset] << 8) | (buf[offset+1] & 0xff));
+    }
+
+    /**
+     * 直接向 buf 的 offset 处写入大端序的 short，不分配内存
+     */
+    public static void putShort(byte[] buf, int offset, short value) {
+        buf[offset] = (byte)(value >>> 8);
+        buf[offset+1] = (byte)value;
+    }
+
     public static ParseStringRes parseString(byte[] raw) {
         int length = parseInt(Arrays.copyOf(raw, 4));
         String str = new String(Arrays.copyOfRange(raw, 4, 4+length));
@@ -45,13 +84,4 @@ public class Parser {
         return Bytes.concat(l, str.getBytes());
     }
 
-    public static long str2Uid(String key) {
-        long seed = 13331;
-        long res = 0;
-        for(byte b : key.getBytes()) {
-            res = res * seed + (long)b;
-        }
-        return res;
-    }
-
 }
@@ -0,0 +1,194 @@
+package com.charls.mydb.backend.vm;
+
+import com.charls.mydb.backend.tm.TransactionManager;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 活跃事务集合，每个读写事务在槽位数组中占一个槽位，开启和结束事务只修改自己的槽位，互相之间不阻塞，也不复制数组
+ *
+ * 开启事务时先用 CAS 占用一个空槽位并标记为 PENDING，再分配 xid 写入槽位；结束时把槽位清零。
+ * 因此分配出去的 xid 在分配之前，它的槽位就已经不是空的：先读取下一个将要分配的 xid 作为上界 xmax，
+ * 再扫描槽位，比 xmax 小的活跃事务一定会被扫描到（遇到 PENDING 时等待它分配完成）。
+ *
+ * 有序的 xip 数组只在取快照时生成。扫描不是原子的，扫描期间有事务结束时重新扫描，
+ * 保证快照中已经结束的事务都在扫描开始之前结束，不会出现看到后提交的事务、却看不到它之前提交的事务的情况。
+ * 事务结束得很频繁时重新扫描可能一直失败，连续失败 MAX_OPTIMISTIC_SCANS 次后持有 endLock 的写锁再扫描一次，
+ * 结束事务持有它的读锁，互相之间不阻塞，只在这次扫描期间等待，保证开启事务总能完成。
+ * 冻结线只需要 xmin，由 xmin() 扫描一遍得到，不生成数组。
+ *
+ * 槽位按块分配，所有槽位都被占用时追加新的一块，已有的块不会移动。
+ */
+class ActiveSet {
+    private static final int BLOCK_SIZE = 64;              // 每块的槽位数
+    private static final long PENDING = -1;                 // 槽位已经被占用，xid 还没有分配
+    private static final int MAX_OPTIMISTIC_SCANS = 3;      // 取快照时不阻止事务结束的扫描次数
+    private static final int PENDING_SPINS = 64;            // 等待 xid 分配时让出 CPU 的次数，之后改为短暂休眠
+    private static final long PENDING_PARK_NANOS = 10_000;
+
+    private TransactionManager tm;
+    private volatile AtomicLongArray[] blocks;
+    private AtomicLong removed;                             // 结束的事务数，取快照时用来判断扫描期间是否有事务结束
+    private Lock growLock;                                  // 追加新的一块时加锁
+    private ReentrantReadWriteLock endLock;                 // 结束事务持有读锁，多次扫描失败后取快照持有写锁
+
+    ActiveSet(TransactionManager tm) {
+        this.tm = tm;
+        this.blocks = new AtomicLongArray[]{ new AtomicLongArray(BLOCK_SIZE) };
+        this.removed = new AtomicLong();
+        this.growLock = new ReentrantLock();
+        this.endLock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * 在 claim() 占用的槽位上分配一个新的 xid
+     * @param slot
+     * @return
+     */
+    long begin(int slot) {
+        long xid = tm.begin();
+        slotBlock(slot).set(slot % BLOCK_SIZE, xid);
+        return xid;
+    }
+
+    /**
+     * 占用一个空槽位，从按线程分散的位置开始找，找不到时追加新的一块
+     * @return 槽位，事务结束时交给 remove()
+     */
+    int claim() {
+        while(true) {
+            AtomicLongArray[] bs = blocks;
+            int total = bs.length * BLOCK_SIZE;
+            int start = (int)(Thread.currentThread().getId() % total);
+            for(int k = 0; k < total; k ++) {
+                int slot = (start + k) % total;
+                AtomicLongArray b = bs[slot / BLOCK_SIZE];
+                if(b.get(slot % BLOCK_SIZE) == 0 && b.compareAndSet(slot % BLOCK_SIZE, 0, PENDING)) {
+                    return slot;
+                }
+            }
+            growLock.lock();
+            try {
+                if(blocks == bs) {
+                    AtomicLongArray[] grown = Arrays.copyOf(bs, bs.length + 1);
+                    grown[bs.length] = new AtomicLongArray(BLOCK_SIZE);
+                    blocks = grown;
+                }
+            } finally {
+                growLock.unlock();
+            }
+        }
+    }
+
+    private AtomicLongArray slotBlock(int slot) {
+        return blocks[slot / BLOCK_SIZE];
+    }
+
+    /**
+     * 将结束的事务移出集合
+     * @param slot 事务占用的槽位
+     */
+    void remove(int slot) {
+        endLock.readLock().lock();
+        try {
+            slotBlock(slot).set(slot % BLOCK_SIZE, 0);
+            removed.incrementAndGet();
+        } finally {
+            endLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 不分配 xid 生成快照，只读事务使用：下一个将要分配的 xid 之前开始的活跃事务都在快照中，之后开始的事务视为正在进行
+     * @return
+     */
+    Snapshot snapshot() {
+        return snapshot(tm.lastXid() + 1);
+    }
+
+    /**
+     * 生成 xmax 之前开始的活跃事务的快照，读写事务的 xmax 是自己的 xid
+     * @param xmax 调用前已经分配出去的 xid 之后的一个 xid
+     * @return
+     */
+    Snapshot snapshot(long xmax) {
+        for(int k = 0; k < MAX_OPTIMISTIC_SCANS; k ++) {
+            long seq = removed.get();
+            long[] xip = scan(xmax);
+            if(removed.get() == seq) {
+                return new Snapshot(xmax, xip);
+            }
+        }
+        // 扫描期间总有事务结束，阻止事务结束后再扫描一次
+        endLock.writeLock().lock();
+        try {
+            return new Snapshot(xmax, scan(xmax));
+        } finally {
+            endLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 扫描所有槽位，得到 xmax 之前开始的活跃事务
+     * @return 有序的 xid 数组
+     */
+    private long[] scan(long xmax) {
+        long[] xip = new long[BLOCK_SIZE];
+        int n = 0;
+        for(AtomicLongArray b : blocks) {
+            for(int i = 0; i < BLOCK_SIZE; i ++) {
+                long xid = waitAssigned(b, i);
+                if(xid == 0 || xid >= xmax) {
+                    continue;
+                }
+                if(n == xip.length) {
+                    xip = Arrays.copyOf(xip, xip.length * 2);
+                }
+                xip[n ++] = xid;
+            }
+        }
+        long[] sorted = Arrays.copyOf(xip, n);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * 最老的活跃事务，没有活跃事务时返回下一个将要分配的 xid，比它老的事务都已经结束
+     * @return
+     */
+    long xmin() {
+        long min = tm.lastXid() + 1;
+        for(AtomicLongArray b : blocks) {
+            for(int i = 0; i < BLOCK_SIZE; i ++) {
+                long xid = waitAssigned(b, i);
+                if(xid != 0 && xid < min) {
+                    min = xid;
+                }
+            }
+        }
+        return min;
+    }
+
+    /**
+     * 读取槽位，槽位正在分配 xid 时等待分配完成
+     * 分配通常很快，先让出 CPU；预留 xid 需要刷盘时等待较久，之后改为短暂休眠，不占满 CPU
+     */
+    private static long waitAssigned(AtomicLongArray b, int i) {
+        long xid = b.get(i);
+        for(int spins = 0; xid == PENDING; spins ++) {
+            if(spins < PENDING_SPINS) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PENDING_PARK_NANOS);
+            }
+            xid = b.get(i);
+        }
+        return xid;
+    }
+}
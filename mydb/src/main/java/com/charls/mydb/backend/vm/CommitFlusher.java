@@ -0,0 +1,103 @@
+package com.charls.mydb.backend.vm;
+
+import com.charls.mydb.backend.dm.DataManager;
+import com.charls.mydb.backend.tm.TransactionManager;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台刷盘线程，负责组提交和异步提交的事务落盘
+ *
+ * 每一轮刷盘：先取出 TM 中所有已提交但未落盘的事务，再把日志刷盘，最后把这些事务的提交状态写入XID文件并刷盘。
+ * 顺序不能颠倒：提交状态落盘时，事务的日志必须已经落盘，否则崩溃后无法回滚或重做。
+ *
+ * 异步提交的事务提交后直接返回，最多 flushInterval 毫秒后被刷盘；
+ * 组提交的事务调用 waitFlush() 唤醒刷盘线程并等待下一轮刷盘完成，同一轮内提交的事务共享一次刷盘。
+ */
+public class CommitFlusher implements Runnable {
+    private TransactionManager tm;
+    private DataManager dm;
+    private long flushInterval;
+
+    private Lock lock;
+    private Condition wakeUp;       // 唤醒刷盘线程
+    private Condition flushed;      // 一轮刷盘完成
+    private long started;           // 已经开始的刷盘轮数
+    private long finished;          // 已经完成的刷盘轮数
+    private boolean requested;      // 是否有组提交的事务在等待刷盘
+
+    public CommitFlusher(TransactionManager tm, DataManager dm, long flushInterval) {
+        this.tm = tm;
+        this.dm = dm;
+        this.flushInterval = flushInterval;
+        this.lock = new ReentrantLock();
+        this.wakeUp = lock.newCondition();
+        this.flushed = lock.newCondition();
+    }
+
+    public void start() {
+        Thread t = new Thread(this, "commit-flusher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            lock.lock();
+            try {
+                if(!requested) {
+                    wakeUp.await(flushInterval, TimeUnit.MILLISECONDS);
+                }
+                requested = false;
+                started ++;
+            } catch(InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            flush();
+
+            lock.lock();
+            try {
+                finished ++;
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 一轮刷盘，先取出待落盘的事务，再刷日志
+     */
+    private void flush() {
+        long[] xids = tm.pendingCommits();
+        if(xids.length == 0) {
+            return;
+        }
+        dm.flushLog();
+        tm.persistCommits(xids);
+    }
+
+    /**
+     * 等待一轮在调用之后才开始的刷盘完成，组提交使用
+     */
+    public void waitFlush() {
+        lock.lock();
+        try {
+            long target = started + 1;
+            requested = true;
+            wakeUp.signal();
+            while(finished < target) {
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
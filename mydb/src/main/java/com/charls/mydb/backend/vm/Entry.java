@@ -2,6 +2,7 @@ package com.charls.mydb.backend.vm;
 
 import com.charls.mydb.backend.common.SubArray;
 import com.charls.mydb.backend.dm.dataItem.DataItem;
+import com.charls.mydb.backend.tm.TransactionManager;
 import com.charls.mydb.backend.utils.Parser;
 import com.google.common.primitives.Bytes;
 
@@ -10,17 +11,29 @@ import java.util.Arrays;
 /**
  * VM向上层抽象出Entry类
  * entry结构：
- * [XMIN] [XMAX] [data]
- * 8byte  8byte
+ * [XMIN] [XMAX] [HINT] [data]
+ * 8byte  8byte  1byte
  * XMIN：创建该条记录（版本）的事务编号
  * XMAX：是删除该条记录（版本）的事务编号
+ * HINT：提示位，缓存 XMIN、XMAX 对应事务的最终状态（已提交/已回滚）
+ *
+ * 提示位由读者在第一次从 TM 查到最终状态时顺手设置，之后的可见性判断直接使用，不再查询 TM。
+ * 提示位只是缓存，丢失了可以重新查询，所以设置时不记日志，只把页面标脏；
+ * 已提交的提示位要等提交状态落盘后才能设置，否则页面先于提交状态落盘，崩溃后被回滚的事务会被当成已提交。
  *
  * Entry 记录
  */
 public class Entry {
     private static final int OF_XMIN = 0;
     private static final int OF_XMAX = OF_XMIN+8;
-    private static final int OF_DATA = OF_XMAX+8;
+    private static final int OF_HINT = OF_XMAX+8;
+    private static final int OF_DATA = OF_HINT+1;
+
+    // 提示位
+    static final byte HINT_XMIN_COMMITTED = 1;
+    static final byte HINT_XMIN_ABORTED   = 1 << 1;
+    static final byte HINT_XMAX_COMMITTED = 1 << 2;
+    static final byte HINT_XMAX_ABORTED   = 1 << 3;
 
     private long uid;           // 版本id
     private DataItem dataItem;  // 数据项
@@ -55,7 +68,8 @@ public class Entry {
     public static byte[] wrapEntryRaw(long xid, byte[] data) {
         byte[] xmin = Parser.long2Byte(xid);
         byte[] xmax = new byte[8];
-        return Bytes.concat(xmin, xmax, data);
+        byte[] hint = new byte[1];
+        return Bytes.concat(xmin, xmax, hint, data);
     }
 
     /**
@@ -117,7 +131,7 @@ public class Entry {
     }
 
     /**
-     * 设置 删除该条记录（版本）的事务编号
+     * 设置 删除该条记录（版本）的事务编号，旧的 XMAX 提示位一并清除
      * @param xid
      */
     public void setXmax(long xid) {
@@ -125,11 +139,74 @@ public class Entry {
         try {
             SubArray sa = dataItem.data();
             System.arraycopy(Parser.long2Byte(xid), 0, sa.raw, sa.start+OF_XMAX, 8);
+            sa.raw[sa.start+OF_HINT] &= ~(HINT_XMAX_COMMITTED | HINT_XMAX_ABORTED);
         } finally {
             dataItem.after(xid);
         }
     }
 
+    /**
+     * 创建该版本的事务是否已提交，优先使用提示位
+     * @param tm
+     * @param xmin 调用方读到的 XMIN
+     * @return
+     */
+    public boolean isXminCommitted(TransactionManager tm, long xmin) {
+        return checkCommitted(tm, xmin, OF_XMIN, HINT_XMIN_COMMITTED, HINT_XMIN_ABORTED);
+    }
+
+    /**
+     * 删除该版本的事务是否已提交，优先使用提示位
+     * @param tm
+     * @param xmax 调用方读到的 XMAX
+     * @return
+     */
+    public boolean isXmaxCommitted(TransactionManager tm, long xmax) {
+        return checkCommitted(tm, xmax, OF_XMAX, HINT_XMAX_COMMITTED, HINT_XMAX_ABORTED);
+    }
+
+    /**
+     * 查询 offset 处记录的事务是否已提交：有提示位直接返回，否则查询 TM，查到最终状态时设置提示位
+     * 持有读锁时 XMIN、XMAX 不会被修改；多个读者同时设置提示位可能互相覆盖，只会导致之后多查一次 TM
+     */
+    private boolean checkCommitted(TransactionManager tm, long xid, int offset, byte committedHint, byte abortedHint) {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            if(Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+offset, sa.start+offset+8)) != xid) {
+                // 调用方读取之后 XMAX 已经被修改，提示位不再对应 xid
+                return tm.isCommitted(xid);
+            }
+            byte hint = sa.raw[sa.start+OF_HINT];
+            if((hint & committedHint) != 0) {
+                return true;
+            }
+            if((hint & abortedHint) != 0) {
+                return false;
+            }
+            if(tm.isCommitted(xid)) {
+                if(tm.isCommitPersisted(xid)) {
+                    setHint(sa, committedHint);
+                }
+                return true;
+            }
+            if(tm.isAborted(xid)) {
+                setHint(sa, abortedHint);
+            }
+            return false;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    /**
+     * 设置提示位，不记日志，只标记脏页面
+     */
+    private void setHint(SubArray sa, byte hint) {
+        sa.raw[sa.start+OF_HINT] |= hint;
+        dataItem.page().setDirty(true);
+    }
+
     /**
      * 获取版本id
      * @return
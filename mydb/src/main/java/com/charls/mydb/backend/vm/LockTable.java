@@ -2,244 +2,794 @@ package com.charls.mydb.backend.vm;
 
 import com.charls.mydb.common.Error;
 
-import java.util.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * 维护了一个依赖等待图，以进行死锁检测
+ * 行锁表，维护了一个依赖等待图，以进行死锁检测
+ *
+ * 锁表按 uid 的哈希分成 STRIPES 个分区，每个分区有自己的锁和 uid -> 锁记录 的表，不同分区的加锁、释放互不影响。
+ * 每个锁记录保存持有者和等待队列；没有竞争时加锁只是在分区内放入一条记录，释放只是删除它，都是 O(1)。
+ * 每个事务的状态（持有的 uid、正在等待的 uid）放在 TxnLocks 中，释放时按持有列表逐个处理，不需要查找。
+ * 等待通过 LockSupport.park 实现，释放者把锁直接交给队首的等待者，再 unpark 它。
+ *
+ * 每个事务最多等待一个 UID，每个 UID 最多被一个事务持有，所以等待图中每个节点最多只有一条出边。
+ * 加入等待之前图中没有环，如果加入后出现环，环上一定有新的等待者，因此只需要从新的等待者出发沿等待链走一遍。
+ * 沿等待链前进时不加锁，读到的可能不是同一时刻的图；发现环之后再锁住所有分区确认一遍，确认后撤销自己的等待。
+ * 后台还有一个检测线程定期检查整个等待图，作为兜底：发现环时选择环上最年轻的事务作为牺牲者，唤醒它并让它回滚。
+ *
+ * 除了死锁检测，还可以按 xid 的新旧（xid 越小越老）预防死锁，这时等待时不再检测环，后台检测只作为兜底：
+ *      wait-die：老事务等待年轻事务，年轻事务请求老事务持有的锁时直接失败；
+ *      wound-wait：年轻事务等待老事务，老事务请求年轻事务持有的锁时“刺伤”持有者，
+ *                  持有者在等待中会被立即唤醒并失败，正在运行的则在下一次请求锁时失败，老事务继续等待它释放。
+ * 等待还可以设置超时，超时后退出等待队列并失败，限制热点行上的等待时间。
+ *
+ * 除了行锁，还有表级的 IS/IX/S/X 锁，放在同一个分区结构中（按表的 uid 分区），等待、超时、策略和行锁相同。
+ * 修改行之前先加表的 IX 锁，再加行锁；一个事务在一张表上请求的行锁超过 ESCALATE_THRESHOLD 个时，
+ * 尝试把这张表的锁升级为 X，成功后释放已经加的行锁，这张表上后续的行锁也都不再加，失败（有其他事务持有这张表的锁）则继续加行锁，
+ * 每再请求 ESCALATE_THRESHOLD 个行锁重试一次。升级只尝试不等待，两个事务同时升级不会互相等待形成死锁。
+ * 表锁可能有多个持有者，死锁检测沿等待链前进时取第一个不相容的持有者。
+ *
+ * 使用方式：add() 返回 false 表示需要等待，随后由同一个线程调用 await() 阻塞到获得锁为止。
  */
 public class LockTable {
-    private Map<Long, List<Long>> x2u;  // 某个XID已经获得的资源的UID列表
-    private Map<Long, Long> u2x;        // UID被某个XID持有
-    private Map<Long, List<Long>> wait; // 正在等待UID的XID列表
-    private Map<Long, Lock> waitLock;   // 正在等待资源的XID的锁
-    private Map<Long, Long> waitU;      // XID正在等待的UID
-    private Lock lock;
+    private static final int STRIPES = 64;              // 分区数，2 的幂
+    static final long DETECT_INTERVAL = 1000;           // 后台死锁检测的间隔，毫秒
 
-    private Map<Long, Integer> xidStamp;
-    private int stamp;
+    // 死锁处理策略
+    public static final int POLICY_DETECT = 0;          // 等待时检测死锁
+    public static final int POLICY_WAIT_DIE = 1;        // wait-die
+    public static final int POLICY_WOUND_WAIT = 2;      // wound-wait
+
+    // 表锁的模式
+    public static final int LOCK_IS = 0;                // 意向共享
+    public static final int LOCK_IX = 1;                // 意向排他
+    public static final int LOCK_S = 2;                 // 共享
+    public static final int LOCK_X = 3;                 // 排他
+    private static final boolean[][] COMPATIBLE = {
+        //  IS     IX     S      X
+        {true,  true,  true,  false},   // IS
+        {true,  true,  false, false},   // IX
+        {true,  false, true,  false},   // S
+        {false, false, false, false},   // X
+    };
+    static final int ESCALATE_THRESHOLD = 1000;         // 一个事务在一张表上的行锁数超过它时尝试升级为表锁
+
+    private Stripe[] stripes;
+    private Map<Long, TxnLocks> txns;                   // 每个事务的加锁状态
+    private int policy;                                 // 死锁处理策略
+    private long waitTimeout;                           // 等待超时，毫秒，0 表示一直等待
+
+    private Lock detectorLock;
+    private volatile boolean detectorStarted;
 
     /**
-     * 构造函数
+     * 解析死锁处理策略的名称 detect | wait-die | wound-wait
+     * @return 策略，名称不合法时返回 -1
+     */
+    public static int parsePolicy(String name) {
+        switch(name) {
+            case "detect":
+                return POLICY_DETECT;
+            case "wait-die":
+                return POLICY_WAIT_DIE;
+            case "wound-wait":
+                return POLICY_WOUND_WAIT;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * 构造函数，等待时检测死锁，不超时
      */
     public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
-        lock = new ReentrantLock();
+        this(POLICY_DETECT, 0);
+    }
+
+    /**
+     * 构造函数
+     * @param policy 死锁处理策略
+     * @param waitTimeout 等待超时，毫秒，0 表示一直等待
+     */
+    public LockTable(int policy, long waitTimeout) {
+        this.policy = policy;
+        this.waitTimeout = waitTimeout;
+        stripes = new Stripe[STRIPES];
+        for(int i = 0; i < STRIPES; i ++) {
+            stripes[i] = new Stripe();
+        }
+        txns = new ConcurrentHashMap<>();
+        detectorLock = new ReentrantLock();
     }
 
     /**
-     * 向依赖等待图中添加一个等待记录
-     * 事务xid 阻塞等待 数据项uid，如果会造成死锁则抛出异常
+     * 事务 xid 请求数据项 uid 的锁，如果需要等待并且会造成死锁（或按策略不允许等待）则抛出异常
      * @param xid 事务id
      * @param uid 数据项key
-     * @return 不需要等待则返回null，否则返回锁对象
+     * @return 已经获得锁返回 true；需要等待返回 false，调用方随后调用 await()
      * @throws Exception
      */
-    public Lock add(long xid, long uid) throws Exception {
-        lock.lock();
+    public boolean add(long xid, long uid) throws Exception {
+        return add(xid, 0, uid);
+    }
+
+    /**
+     * 事务 xid 请求表 tableUid 中数据项 uid 的锁
+     * 已经持有表的 X 锁时不需要行锁；行锁数达到阈值时尝试升级为表的 X 锁
+     * @param xid 事务id
+     * @param tableUid 数据项所在的表，0 表示不使用表锁
+     * @param uid 数据项key
+     * @return 已经获得锁返回 true；需要等待返回 false，调用方随后调用 await()
+     * @throws Exception
+     */
+    public boolean add(long xid, long tableUid, long uid) throws Exception {
+        TxnLocks t = txnOf(xid);
+        TableHold h = null;
+        if(tableUid != 0) {
+            h = t.tables == null ? null : t.tables.get(tableUid);
+            if(h != null && h.mode == LOCK_X) {
+                return true;
+            }
+            if(h != null && ++ h.rows % ESCALATE_THRESHOLD == 0 && escalate(t, tableUid)) {
+                // 表锁已经覆盖了这张表上的所有行，释放之前加的行锁
+                releaseRows(t, h);
+                return true;
+            }
+        }
+        Stripe s = stripeOf(uid);
+        s.lock.lock();
         try {
-            // 1.判断当前XID需要的UID资源是否已获取（dataItem数据已经被事务xid获取到，不需要等待，返回null）
-            if(isInList(x2u, xid, uid)) {
-                return null;
-            }
-            // 2.如果没有获取，判断当前map集合里是否有该键key
-            // fasle ==> 占用该 UID
-            // containsKey 判断当前 map 集合里是否有该键 key
-            if(!u2x.containsKey(uid)) {
-                u2x.put(uid, xid);
-                // 更新 x2u 集合, UID 资源已获取
-                putIntoList(x2u, xid, uid);
-                return null;
-            }
-            // 3. 如果已被其他 XID 占用， 进入等待
-            waitU.put(xid, uid);
-            putIntoList(wait, xid, uid);
-            // 4. 死锁判断 true ==> 回滚，抛出异常
-            if(hasDeadLock()) {
-                waitU.remove(xid);
-                removeFromList(wait, uid, xid);
+            LockEntry e = s.locks.get(uid);
+            // 1. 没有人持有，直接占用
+            if(e == null) {
+                s.locks.put(uid, new LockEntry(xid));
+                t.hold(uid);
+                if(h != null) {
+                    h.hold(uid);
+                }
+                return true;
+            }
+            // 2. 已经持有
+            if(e.owner == xid) {
+                return true;
+            }
+            // 3. 被其他事务持有，按策略决定能否等待
+            if(policy == POLICY_WAIT_DIE && xid > e.owner) {
                 throw Error.DeadlockException;
             }
-            // 5. 加锁，并等待
-            Lock l = new ReentrantLock();
-            l.lock();
-            waitLock.put(xid, l);
-            return l;
+            if(policy == POLICY_WOUND_WAIT && xid < e.owner) {
+                wound(e.owner);
+            }
+            // 进入等待队列
+            t.granted = false;
+            t.victim = false;
+            t.thread = Thread.currentThread();
+            t.waitingFor = uid;
+            e.enqueue(t);
+            if(h != null) {
+                // 等待失败时事务会被回滚，这里提前记下
+                h.hold(uid);
+            }
         } finally {
-            lock.unlock();
+            s.lock.unlock();
         }
+
+        // 4. 死锁判断，确认有环则撤销等待，抛出异常
+        if(policy == POLICY_DETECT && inCycle(t) && cancelIfInCycle(t)) {
+            throw Error.DeadlockException;
+        }
+        startDetector();
+        return false;
     }
 
     /**
-     * 删除XID相关内容
+     * 获取 xid 的加锁状态，没有则新建；被老事务刺伤的事务不能再加锁
+     */
+    private TxnLocks txnOf(long xid) throws Exception {
+        TxnLocks t = txns.get(xid);
+        if(t == null) {
+            t = new TxnLocks(xid);
+            txns.put(xid, t);
+        }
+        if(t.wounded) {
+            // 已经被老事务刺伤，必须回滚
+            throw Error.DeadlockException;
+        }
+        return t;
+    }
+
+    /**
+     * 事务 xid 请求表 tableUid 的 mode 模式的锁，已经持有其他模式时升级为能覆盖二者的模式
      * @param xid
+     * @param tableUid
+     * @param mode LOCK_IS | LOCK_IX | LOCK_S | LOCK_X
+     * @return 已经获得锁返回 true；需要等待返回 false，调用方随后调用 await()
+     * @throws Exception
      */
-    public void remove(long xid) {
-        lock.lock();
+    public boolean addTable(long xid, long tableUid, int mode) throws Exception {
+        TxnLocks t = txnOf(xid);
+        Stripe s = stripeOf(tableUid);
+        s.lock.lock();
         try {
-            // 获取当前 XID 占用的 UID 资源列表
-            List<Long> l = x2u.get(xid);
-            // 删除
-            if(l != null) {
-                while(l.size() > 0) {
-                    Long uid = l.remove(0);
-                    selectNewXID(uid);
+            TableLock tl = s.tables.get(tableUid);
+            if(tl == null) {
+                tl = new TableLock();
+                s.tables.put(tableUid, tl);
+            }
+            Integer held = tl.holders.get(xid);
+            int want = held == null ? mode : combine(held, mode);
+            if(held != null && held == want) {
+                return true;
+            }
+            // 没有人排队（或者是升级）并且和其他持有者相容，直接获得
+            if((held != null || tl.waiters.isEmpty()) && tl.blocker(xid, want) == 0) {
+                grantTable(t, tableUid, tl, want);
+                return true;
+            }
+            // 按策略决定能否等待
+            for(Map.Entry<Long, Integer> h : tl.holders.entrySet()) {
+                long holder = h.getKey();
+                if(holder == xid || COMPATIBLE[h.getValue()][want]) {
+                    continue;
+                }
+                if(policy == POLICY_WAIT_DIE && xid > holder) {
+                    throw Error.DeadlockException;
+                }
+                if(policy == POLICY_WOUND_WAIT && xid < holder) {
+                    wound(holder);
                 }
             }
-            waitU.remove(xid);
-            x2u.remove(xid);
-            waitLock.remove(xid);
+            t.granted = false;
+            t.victim = false;
+            t.thread = Thread.currentThread();
+            t.waitingTable = true;
+            t.waitMode = want;
+            t.waitingFor = tableUid;
+            tl.waiters.addLast(t);
+        } finally {
+            s.lock.unlock();
+        }
 
+        if(policy == POLICY_DETECT && inCycle(t) && cancelIfInCycle(t)) {
+            throw Error.DeadlockException;
+        }
+        startDetector();
+        return false;
+    }
+
+    /**
+     * 同时持有两种模式时需要的模式，IX 和 S 合并为 X
+     */
+    private static int combine(int a, int b) {
+        if(a == b) {
+            return a;
+        }
+        int hi = Math.max(a, b), lo = Math.min(a, b);
+        if(lo == LOCK_IS) {
+            return hi;
+        }
+        return LOCK_X;
+    }
+
+    /**
+     * 把表锁交给 t，调用方需要持有表所在分区的锁
+     */
+    private void grantTable(TxnLocks t, long tableUid, TableLock tl, int mode) {
+        tl.holders.put(t.xid, mode);
+        if(t.tables == null) {
+            t.tables = new HashMap<>();
+        }
+        TableHold h = t.tables.get(tableUid);
+        if(h == null) {
+            t.tables.put(tableUid, new TableHold(mode));
+        } else {
+            h.mode = mode;
+        }
+    }
+
+    /**
+     * 尝试把 t 在表上的锁升级为 X，只尝试不等待
+     * @return 是否升级成功
+     */
+    private boolean escalate(TxnLocks t, long tableUid) {
+        Stripe s = stripeOf(tableUid);
+        s.lock.lock();
+        try {
+            TableLock tl = s.tables.get(tableUid);
+            if(tl == null || tl.blocker(t.xid, LOCK_X) != 0) {
+                return false;
+            }
+            grantTable(t, tableUid, tl, LOCK_X);
+            return true;
         } finally {
-            lock.unlock();
+            s.lock.unlock();
         }
     }
 
     /**
-     * 从等待队列中选择一个xid来占用uid
-     * @param uid
+     * 升级为表锁之后，释放 t 在这张表上的行锁，并从 t 持有的 uid 中删除
+     * 只在 t 自己的线程中、没有等待时调用，不会和把锁交给 t 的释放者同时修改 held
      */
-    private void selectNewXID(long uid) {
-        u2x.remove(uid);
-        List<Long> l = wait.get(uid);
-        if(l == null) {
-            return;
+    private void releaseRows(TxnLocks t, TableHold h) {
+        Set<Long> rows = new HashSet<>();
+        for(int i = 0; i < h.count; i ++) {
+            rows.add(h.uids[i]);
+        }
+        int n = 0;
+        for(int i = 0; i < t.heldCount; i ++) {
+            long uid = t.held[i];
+            if(rows.contains(uid)) {
+                release(uid);
+            } else {
+                t.held[n ++] = uid;
+            }
+        }
+        t.heldCount = n;
+        h.uids = null;
+        h.count = 0;
+    }
+
+    /**
+     * 释放 xid 持有的表锁，按顺序唤醒等待队列中相容的事务
+     */
+    private void releaseTable(long xid, long tableUid) {
+        Stripe s = stripeOf(tableUid);
+        s.lock.lock();
+        try {
+            TableLock tl = s.tables.get(tableUid);
+            tl.holders.remove(xid);
+            grantTableWaiters(tableUid, tl);
+            if(tl.holders.isEmpty() && tl.waiters.isEmpty()) {
+                s.tables.remove(tableUid);
+            }
+        } finally {
+            s.lock.unlock();
         }
-        assert l.size() > 0;
+    }
+
+    /**
+     * 从队首开始把表锁交给相容的等待者，遇到第一个不相容的就停止，调用方需要持有表所在分区的锁
+     */
+    private void grantTableWaiters(long tableUid, TableLock tl) {
+        while(!tl.waiters.isEmpty()) {
+            TxnLocks next = tl.waiters.peekFirst();
+            if(tl.blocker(next.xid, next.waitMode) != 0) {
+                return;
+            }
+            tl.waiters.pollFirst();
+            grantTable(next, tableUid, tl, next.waitMode);
+            next.waitingTable = false;
+            next.waitingFor = 0;
+            next.granted = true;
+            LockSupport.unpark(next.thread);
+        }
+    }
 
-        while(l.size() > 0) {
-            long xid = l.remove(0);
-            if(!waitLock.containsKey(xid)) {
+    /**
+     * 阻塞直到 add() 返回 false 的那次请求获得锁
+     * 被选为死锁的牺牲者、等待中被刺伤时抛出死锁异常，超时抛出超时异常
+     * @param xid
+     * @throws Exception
+     */
+    public void await(long xid) throws Exception {
+        TxnLocks t = txns.get(xid);
+        long deadline = waitTimeout > 0 ? System.nanoTime() + waitTimeout * 1000000 : 0;
+        while(!t.granted) {
+            if(t.victim) {
+                throw Error.DeadlockException;
+            }
+            if(t.wounded) {
+                if(giveUp(t)) {
+                    throw Error.DeadlockException;
+                }
                 continue;
-            } else {
-                u2x.put(uid, xid);
-                Lock lo = waitLock.remove(xid);
-                waitU.remove(xid);
-                lo.unlock();
-                break;
             }
+            if(deadline == 0) {
+                LockSupport.park(this);
+                continue;
+            }
+            long left = deadline - System.nanoTime();
+            if(left <= 0) {
+                if(giveUp(t)) {
+                    throw Error.LockTimeoutException;
+                }
+                continue;
+            }
+            LockSupport.parkNanos(this, left);
         }
+    }
 
-        if(l.size() == 0) {
-            wait.remove(uid);
+    /**
+     * 放弃等待
+     * @param t
+     * @return 是否放弃成功，锁已经交给 t 时返回 false
+     */
+    private boolean giveUp(TxnLocks t) {
+        long uid = t.waitingFor;
+        if(uid == 0) {
+            return false;
+        }
+        Stripe s = stripeOf(uid);
+        s.lock.lock();
+        try {
+            if(t.waitingFor != uid) {
+                return false;
+            }
+            cancelWait(s, t);
+            return true;
+        } finally {
+            s.lock.unlock();
         }
     }
 
     /**
-     * 死锁检测
+     * 刺伤年轻的持有者：它在等待就唤醒它，让它自己退出等待并失败；正在运行则在下一次请求锁时失败
+     * 这里只设置标记，不去拿它等待的分区的锁
+     * @param owner
+     */
+    private void wound(long owner) {
+        TxnLocks o = txns.get(owner);
+        if(o == null || o.wounded) {
+            return;
+        }
+        o.wounded = true;
+        Thread thread = o.thread;
+        if(thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * 删除XID相关内容，释放它持有的所有锁，如果还在等待则退出等待队列并唤醒
+     * @param xid
+     */
+    public void remove(long xid) {
+        TxnLocks t = txns.remove(xid);
+        if(t == null) {
+            return;
+        }
+        long uid = t.waitingFor;
+        if(uid != 0) {
+            Stripe s = stripeOf(uid);
+            s.lock.lock();
+            try {
+                cancelWait(s, t);
+            } finally {
+                s.lock.unlock();
+            }
+            // 等待中的事务被其他线程回滚，唤醒它
+            t.victim = true;
+            LockSupport.unpark(t.thread);
+        }
+        for(int i = 0; i < t.heldCount; i ++) {
+            release(t.held[i]);
+        }
+        t.heldCount = 0;
+        if(t.tables != null) {
+            for(long tableUid : t.tables.keySet()) {
+                releaseTable(xid, tableUid);
+            }
+        }
+    }
+
+    /**
+     * 释放 uid，从等待队列中选择下一个事务来占用它
+     * @param uid
+     */
+    private void release(long uid) {
+        Stripe s = stripeOf(uid);
+        s.lock.lock();
+        try {
+            LockEntry e = s.locks.get(uid);
+            TxnLocks next = e.poll();
+            if(next == null) {
+                s.locks.remove(uid);
+                return;
+            }
+            e.owner = next.xid;
+            next.hold(uid);
+            next.waitingFor = 0;
+            next.granted = true;
+            LockSupport.unpark(next.thread);
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    /**
+     * 让 t 退出等待队列，调用方需要持有 t 所等待的 uid 所在分区的锁
+     */
+    private void cancelWait(Stripe s, TxnLocks t) {
+        long uid = t.waitingFor;
+        if(uid == 0) {
+            return;
+        }
+        if(t.waitingTable) {
+            TableLock tl = s.tables.get(uid);
+            tl.waiters.remove(t);
+            t.waitingTable = false;
+            t.waitingFor = 0;
+            // 排在它后面的事务可能已经可以获得锁了
+            grantTableWaiters(uid, tl);
+            return;
+        }
+        LockEntry e = s.locks.get(uid);
+        if(e != null) {
+            e.waiters.remove(t);
+        }
+        t.waitingFor = 0;
+    }
+
+    private Stripe stripeOf(long uid) {
+        long h = uid * 0x9E3779B97F4A7C15L;
+        return stripes[(int)(h >>> 58) & (STRIPES - 1)];
+    }
+
+    /**
+     * 从 t 出发沿等待链前进，判断是否会回到 t
+     * 走了 txns.size() 步还没有结束说明链进入了一个不包含 t 的环，或者读到了不一致的图
+     * @param t
      * @return
      */
-    private boolean hasDeadLock() {
-        xidStamp = new HashMap<>();
-        stamp = 1;
-        for(long xid : x2u.keySet()) {
-            // 查询已获得资源的XID的锁标记
-            Integer s = xidStamp.get(xid);
-            // 锁标记>0  => 有锁且合法
-            if(s != null && s > 0) {
-                continue;
+    private boolean inCycle(TxnLocks t) {
+        TxnLocks cur = t;
+        for(int i = 0, limit = txns.size(); i <= limit; i ++) {
+            long owner = blockerOf(cur);
+            if(owner == 0) {
+                return false;
             }
-            // 死锁判断
-            stamp++;
-            if(dfs(xid)) {
+            if(owner == t.xid) {
                 return true;
             }
+            cur = txns.get(owner);
+            if(cur == null) {
+                return false;
+            }
         }
         return false;
     }
 
     /**
-     * 死锁判断
-     * @param xid
-     * @return
+     * t 正在等待的事务：行锁的持有者，或者表锁第一个不相容的持有者；没有等待时返回 0
      */
-    private boolean dfs(long xid) {
-        Integer stp = xidStamp.get(xid);
-        // 死锁标记判断
-        // 获得的锁标记重复 =》 死锁
-        if(stp != null && stp == stamp) {
+    private long blockerOf(TxnLocks t) {
+        long uid = t.waitingFor;
+        if(uid == 0) {
+            return 0;
+        }
+        Stripe s = stripeOf(uid);
+        if(t.waitingTable) {
+            TableLock tl = s.tables.get(uid);
+            return tl == null ? 0 : tl.blocker(t.xid, t.waitMode);
+        }
+        LockEntry e = s.locks.get(uid);
+        return e == null ? 0 : e.owner;
+    }
+
+    /**
+     * 锁住所有分区再确认一次，t 仍在环上则撤销它的等待
+     * @param t
+     * @return 是否撤销了等待
+     */
+    private boolean cancelIfInCycle(TxnLocks t) {
+        lockAll();
+        try {
+            if(t.waitingFor == 0 || !inCycle(t)) {
+                return false;
+            }
+            cancelWait(stripeOf(t.waitingFor), t);
             return true;
+        } finally {
+            unlockAll();
         }
-        // 获得的锁标记合法 =》 ！死锁
-        if(stp != null && stp < stamp) {
-            return false;
+    }
+
+    /**
+     * 按顺序锁住所有分区，单个分区的操作不会同时持有两个分区的锁，所以不会和它们形成死锁
+     */
+    private void lockAll() {
+        for(Stripe s : stripes) {
+            s.lock.lock();
         }
-        // 当前XID锁标记为null，添加锁标记
-        xidStamp.put(xid, stamp);
-        Long uid = waitU.get(xid);
-        // 当前XID没有等待的资源 ==》 ！死锁
-        if(uid == null) {
-            return false;
+    }
+
+    private void unlockAll() {
+        for(int i = STRIPES - 1; i >= 0; i --) {
+            stripes[i].lock.unlock();
         }
-        // 等待的资源UID正在被哪个XID占用
-        Long x = u2x.get(uid);
-        // 如果该XID不存在  报错
-        assert x != null;
-        // 循环判断该XID 是否死锁
-        return dfs(x);
     }
 
     /**
-     * 将集合中下标为 uid0 位置上的 uid1 删除
-     * @param listMap
-     * @param uid0
-     * @param uid1
+     * 第一次有事务等待时启动后台死锁检测线程
      */
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if(l == null) {
+    private void startDetector() {
+        if(detectorStarted) {
             return;
         }
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
-                i.remove();
-                break;
+        detectorLock.lock();
+        try {
+            if(detectorStarted) {
+                return;
             }
-        }
-        if(l.size() == 0) {
-            listMap.remove(uid0);
+            Thread t = new Thread(() -> {
+                while(true) {
+                    try {
+                        Thread.sleep(DETECT_INTERVAL);
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                    detect();
+                }
+            }, "deadlock-detector");
+            t.setDaemon(true);
+            t.start();
+            detectorStarted = true;
+        } finally {
+            detectorLock.unlock();
         }
     }
 
     /**
-     * 将 uid1 放入到集合中 下标为 uid0 的位置
-     * @param listMap
-     * @param uid0
-     * @param uid1
+     * 检查整个等待图，打破所有的环
      */
-    private void putIntoList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        if(!listMap.containsKey(uid0)) {
-            listMap.put(uid0, new ArrayList<>());
+    void detect() {
+        lockAll();
+        try {
+            boolean found = true;
+            while(found) {
+                found = false;
+                for(TxnLocks t : txns.values()) {
+                    if(t.waitingFor != 0 && inCycle(t)) {
+                        abortVictim(youngestInCycle(t));
+                        found = true;
+                        break;
+                    }
+                }
+            }
+        } finally {
+            unlockAll();
         }
-        listMap.get(uid0).add(0, uid1);
     }
 
     /**
-     * 判断集合里是否存在 uid1
-     * @param listMap
-     * @param uid0
-     * @param uid1
+     * 环上 xid 最大（最年轻）的事务，回滚它损失的工作最少，调用方需要锁住所有分区
+     * @param t 环上的一个事务
      * @return
      */
-    private boolean isInList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if(l == null) {
-            return false;
+    private TxnLocks youngestInCycle(TxnLocks t) {
+        TxnLocks youngest = t;
+        TxnLocks cur = txns.get(blockerOf(t));
+        while(cur != t) {
+            if(cur.xid > youngest.xid) {
+                youngest = cur;
+            }
+            cur = txns.get(blockerOf(cur));
         }
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
-                return true;
+        return youngest;
+    }
+
+    /**
+     * 让牺牲者放弃等待，唤醒后由 await() 抛出死锁异常，调用方需要锁住所有分区
+     * @param t
+     */
+    private void abortVictim(TxnLocks t) {
+        cancelWait(stripeOf(t.waitingFor), t);
+        t.victim = true;
+        LockSupport.unpark(t.thread);
+    }
+
+    /**
+     * 一个分区：分区锁保护 locks、tables 的修改和其中所有锁记录的等待队列
+     * 使用并发的表，死锁检测可以不加锁地读取
+     */
+    private static class Stripe {
+        final Lock lock = new ReentrantLock();
+        final Map<Long, LockEntry> locks = new ConcurrentHashMap<>();
+        final Map<Long, TableLock> tables = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 一张表上的锁：所有持有者及其模式，和等待队列
+     */
+    private static class TableLock {
+        final Map<Long, Integer> holders = new ConcurrentHashMap<>();
+        final ArrayDeque<TxnLocks> waiters = new ArrayDeque<>();
+
+        /**
+         * 第一个和 xid 请求的 mode 不相容的其他持有者，没有时返回 0
+         */
+        long blocker(long xid, int mode) {
+            for(Map.Entry<Long, Integer> h : holders.entrySet()) {
+                if(h.getKey() != xid && !COMPATIBLE[h.getValue()][mode]) {
+                    return h.getKey();
+                }
             }
+            return 0;
+        }
+    }
+
+    /**
+     * 一个事务在一张表上持有的锁模式，在这张表上请求过的行锁数，以及这些行的 uid（升级时释放）
+     */
+    private static class TableHold {
+        int mode;
+        int rows;
+        long[] uids;
+        int count;
+
+        TableHold(int mode) {
+            this.mode = mode;
+        }
+
+        void hold(long uid) {
+            if(uids == null) {
+                uids = new long[4];
+            } else if(count == uids.length) {
+                uids = Arrays.copyOf(uids, uids.length * 2);
+            }
+            uids[count ++] = uid;
+        }
+    }
+
+    /**
+     * 一个 uid 上的锁：持有者和等待队列，等待队列在第一次有人等待时才创建
+     */
+    private static class LockEntry {
+        volatile long owner;
+        ArrayDeque<TxnLocks> waiters;
+
+        LockEntry(long owner) {
+            this.owner = owner;
+        }
+
+        void enqueue(TxnLocks t) {
+            if(waiters == null) {
+                waiters = new ArrayDeque<>();
+            }
+            waiters.addLast(t);
+        }
+
+        TxnLocks poll() {
+            return waiters == null ? null : waiters.pollFirst();
+        }
+    }
+
+    /**
+     * 一个事务的加锁状态
+     * held 只由事务自己的线程修改，或者在它等待时由把锁交给它的释放者修改，二者不会同时发生；
+     * 交接通过 granted 的 volatile 写读保证可见性。
+     */
+    private static class TxnLocks {
+        final long xid;
+        long[] held = new long[4];          // 持有的 uid
+        int heldCount;
+        volatile long waitingFor;           // 正在等待的 uid（或表的 uid），0 表示没有等待
+        volatile boolean waitingTable;      // 等待的是表锁
+        int waitMode;                       // 等待的表锁模式
+        Map<Long, TableHold> tables;        // 持有的表锁，和 held 一样只由自己或交给它锁的释放者修改
+        volatile boolean granted;           // 等待的锁已经交给了这个事务
+        volatile boolean victim;            // 被选为死锁的牺牲者
+        volatile boolean wounded;           // 被老事务刺伤，需要回滚
+        volatile Thread thread;             // 等待的线程
+
+        TxnLocks(long xid) {
+            this.xid = xid;
+        }
+
+        void hold(long uid) {
+            if(heldCount == held.length) {
+                held = Arrays.copyOf(held, held.length * 2);
+            }
+            held[heldCount ++] = uid;
         }
-        return false;
     }
 }
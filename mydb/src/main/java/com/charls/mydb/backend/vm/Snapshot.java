@@ -0,0 +1,47 @@
+package com.charls.mydb.backend.vm;
+
+/**
+ * 可重复读事务开始时的快照
+ * [xmin, xmax) 之间的事务是否正在进行由有序数组 xip 二分查找得到：
+ *      xid < xmin：快照时已经结束
+ *      xid >= xmax：快照时还没有开始，视为正在进行
+ * xip 在取快照时由 ActiveSet 扫描槽位生成；判断时不分配内存。
+ * 读写事务的 xmax 是自己的 xid，只读事务的 xmax 是快照时下一个将要分配的 xid。
+ */
+public class Snapshot {
+    final long xmin;        // 快照时最老的活跃事务
+    final long xmax;        // 不小于它的事务都在快照之后开始
+    final long[] xip;       // 快照时所有活跃事务，有序
+
+    Snapshot(long xmax, long[] active) {
+        this.xmax = xmax;
+        this.xip = active;
+        this.xmin = active.length == 0 ? xmax : Math.min(active[0], xmax);
+    }
+
+    /**
+     * 快照时 xid 是否正在进行
+     * @param xid
+     * @return
+     */
+    public boolean isInProgress(long xid) {
+        if(xid < xmin) {
+            return false;
+        }
+        if(xid >= xmax) {
+            return true;
+        }
+        int lo = 0, hi = xip.length - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if(xip[mid] < xid) {
+                lo = mid + 1;
+            } else if(xip[mid] > xid) {
+                hi = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -2,43 +2,75 @@ package com.charls.mydb.backend.vm;
 
 import com.charls.mydb.backend.tm.TransactionManagerImpl;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  *  vm对其他模块提供的一个抽象的事务数据结构
  */
 public class Transaction {
+    // 事务提交的持久性模式
+    public static final int DURABILITY_SYNC = 0;    // 同步提交：提交时立即刷盘，返回时已经持久化
+    public static final int DURABILITY_GROUP = 1;   // 组提交：提交时等待后台刷盘线程把一批事务一起刷盘，返回时已经持久化
+    public static final int DURABILITY_ASYNC = 2;   // 异步提交：提交后立即返回，由后台刷盘线程定期刷盘，崩溃时可能丢失最近提交的事务
+
     public long xid;                    // 事务id
     public int level;                   // 事务隔离等级，0：读已提交；1：可重复读
-    public Map<Long, Boolean> snapshot; // 活跃事务的快照，用于实现可重复读
+    public int durability;              // 事务提交的持久性模式
+    public volatile Snapshot snapshot;  // 活跃事务的快照，用于实现可重复读；VM 在事务登记到活跃事务表之后才设置
+    public boolean readOnly;            // 只读事务，没有分配 xid，xid 是一个负数的虚拟编号
+    public int slot;                    // 读写事务在 ActiveSet 中占用的槽位
     public Exception err;
     public boolean autoAborted;         // 自动回滚标记
 
     /**
-     *构造方法中的active，保存着当前所有 active 的事务
+     * 解析持久性模式的名称 sync | group | async
+     * @return 持久性模式，名称不合法时返回 -1
+     */
+    public static int parseDurability(String name) {
+        switch(name) {
+            case "sync":
+                return DURABILITY_SYNC;
+            case "group":
+                return DURABILITY_GROUP;
+            case "async":
+                return DURABILITY_ASYNC;
+            default:
+                return -1;
+        }
+    }
+
+    public static Transaction newTransaction(long xid, int level) {
+        return newTransaction(xid, level, DURABILITY_SYNC);
+    }
+
+    /**
+     * 可重复读的快照由 VM 在事务登记到活跃事务表之后设置
      */
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
+    public static Transaction newTransaction(long xid, int level, int durability) {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
-        // 只有可重复读才需要 活跃事务列表
-        if(level != 0) {
-            t.snapshot = new HashMap<>();
-            for(Long x : active.keySet()) {
-                t.snapshot.put(x, true);
-            }
-        }
+        t.durability = durability;
+        return t;
+    }
+
+    /**
+     * 只读事务：不分配 xid，不进入锁表，也不写XID文件，可重复读时直接使用 ActiveSet 生成的快照
+     * @param vxid 虚拟编号，只用于在活跃事务表中标识这个事务
+     */
+    public static Transaction newReadOnlyTransaction(long vxid, int level) {
+        Transaction t = new Transaction();
+        t.xid = vxid;
+        t.level = level;
+        t.readOnly = true;
         return t;
     }
 
     /**
-     *   判断xid是否是活跃事务
+     *   判断xid在快照时是否是活跃事务，在本事务之后开始的事务也视为活跃
      */
     public boolean isInSnapshot(long xid) {
         if(xid == TransactionManagerImpl.SUPER_XID) {
             return false;
         }
-        return snapshot.containsKey(xid);
+        return snapshot.isInProgress(xid);
     }
 }
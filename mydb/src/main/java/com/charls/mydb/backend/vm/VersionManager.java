@@ -15,13 +15,34 @@ public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;       // 保证可见性的条件下，读取数据DataItem
     long insert(long xid, byte[] data) throws Exception;    // 通过事务xid插入数据
     boolean delete(long xid, long uid) throws Exception;    // 通过事务xid删除数据
+    boolean delete(long xid, long tableUid, long uid) throws Exception; // 删除表中的数据，行锁可能升级为表锁
+    void lockTable(long xid, long tableUid, int mode) throws Exception; // 对表加 IS/IX/S/X 锁
 
     // 事务管理
-    long begin(int level);                                  // 事务开启隔离级别
+    long begin(int level);                                  // 事务开启隔离级别，使用数据库默认的持久性模式
+    long begin(int level, int durability);                  // 事务开启隔离级别，并指定提交的持久性模式
+    long beginReadOnly(int level);                          // 开启只读事务，返回负数的虚拟编号，不分配 xid
     void commit(long xid) throws Exception;                 // 提交事务
     void abort(long xid);                                   // 撤销事务
+    long vacuumHorizon();                                   // 小于它的事务删除的版本不再被任何快照看到
 
     public static VersionManager newVersionManager(TransactionManager tm, DataManager dm){
         return new VersionManagerImpl(tm,dm);
     }
+
+    /**
+     * @param durability 数据库默认的持久性模式
+     * @param flushInterval 后台刷盘的间隔，毫秒
+     */
+    public static VersionManager newVersionManager(TransactionManager tm, DataManager dm, int durability, long flushInterval){
+        return new VersionManagerImpl(tm, dm, durability, flushInterval);
+    }
+
+    /**
+     * @param lockPolicy 行锁的死锁处理策略 LockTable.POLICY_*
+     * @param lockTimeout 行锁等待超时，毫秒，0 表示一直等待
+     */
+    public static VersionManager newVersionManager(TransactionManager tm, DataManager dm, int durability, long flushInterval, int lockPolicy, long lockTimeout){
+        return new VersionManagerImpl(tm, dm, durability, flushInterval, lockPolicy, lockTimeout);
+    }
 }
@@ -7,8 +7,9 @@ import com.charls.mydb.backend.tm.TransactionManagerImpl;
 import com.charls.mydb.backend.utils.Panic;
 import com.charls.mydb.common.Error;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -21,24 +22,61 @@ import java.util.concurrent.locks.ReentrantLock;
 public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager {
     TransactionManager tm;
     DataManager dm;
-    Map<Long, Transaction> activeTransaction;
-    Lock lock;
+    Map<Long, Transaction> activeTransaction;               // 活跃事务，并发读写不加锁
+    ActiveSet activeSet;                                    // 活跃事务的 xid，用于生成快照
+    AtomicLong readOnlyIds;                                 // 只读事务的虚拟编号，从 -1 开始递减
+    Lock lock;                                              // 只用于延迟启动后台线程
     LockTable lt;
 
+    public static final long DEFAULT_FLUSH_INTERVAL = 200;  // 默认的后台刷盘间隔，毫秒
+    static final long FREEZE_INTERVAL = 1 << 20;            // 每开启这么多个事务，冻结一次已经结束的老事务
+    int durability;                                         // 数据库默认的持久性模式
+    long flushInterval;                                     // 后台刷盘间隔
+    private volatile CommitFlusher flusher;                 // 后台刷盘线程，第一次组提交或异步提交时才启动
+    private volatile XidFreezer freezer;                    // 后台冻结线程，第一次需要冻结时才启动
+
     /**
      * 构造函数
      * @param tm
      * @param dm
      */
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
+        this(tm, dm, Transaction.DURABILITY_SYNC, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * 构造函数
+     * @param tm
+     * @param dm
+     * @param durability 数据库默认的持久性模式
+     * @param flushInterval 后台刷盘间隔，毫秒
+     */
+    public VersionManagerImpl(TransactionManager tm, DataManager dm, int durability, long flushInterval) {
+        this(tm, dm, durability, flushInterval, LockTable.POLICY_DETECT, 0);
+    }
+
+    /**
+     * 构造函数
+     * @param tm
+     * @param dm
+     * @param durability 数据库默认的持久性模式
+     * @param flushInterval 后台刷盘间隔，毫秒
+     * @param lockPolicy 行锁的死锁处理策略
+     * @param lockTimeout 行锁等待超时，毫秒，0 表示一直等待
+     */
+    public VersionManagerImpl(TransactionManager tm, DataManager dm, int durability, long flushInterval, int lockPolicy, long lockTimeout) {
         super(0);
+        this.durability = durability;
+        this.flushInterval = flushInterval;
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>();
+        this.activeTransaction = new ConcurrentHashMap<>();
+        this.activeSet = new ActiveSet(tm);
+        this.readOnlyIds = new AtomicLong(0);
         // 超级事务
-        activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
+        activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0));
         this.lock = new ReentrantLock();
-        this.lt = new LockTable();
+        this.lt = new LockTable(lockPolicy, lockTimeout);
     }
 
     /**
@@ -50,9 +88,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public byte[] read(long xid, long uid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
@@ -88,19 +124,49 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
         }
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
 
         // 包裹成entry交给dm处理
         byte[] raw = Entry.wrapEntryRaw(xid, data);
         return dm.insert(xid, raw);
     }
 
+    /**
+     * 对表加 mode 模式的锁，等待失败时和行锁一样自动回滚事务
+     * @param xid
+     * @param tableUid
+     * @param mode LockTable.LOCK_*
+     * @throws Exception
+     */
+    @Override
+    public void lockTable(long xid, long tableUid, int mode) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+
+        if(t.err != null) {
+            throw t.err;
+        }
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
+        try {
+            if(!lt.addTable(xid, tableUid, mode)) {
+                lt.await(xid);
+            }
+        } catch(Exception e) {
+            t.err = Error.ConcurrentUpdateException;
+            internAbort(xid, true);
+            t.autoAborted = true;
+            throw t.err;
+        }
+    }
+
     /**
      * 删除数据版本链中的一个版本，设置XMAX即可
      * 实际上主要是前置的三件事：一是可见性判断，二是获取资源的锁，三是版本跳跃判断。    删除的操作只有一个:设置 XMAX。
@@ -111,13 +177,27 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public boolean delete(long xid, long uid) throws Exception {
-        lock.lock();
+        return delete(xid, 0, uid);
+    }
+
+    /**
+     * 删除表 tableUid 中的数据，行锁可能被升级为表锁，调用前需要持有表的 IX 锁
+     * @param xid
+     * @param tableUid 数据所在的表，0 表示不使用表锁
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public boolean delete(long xid, long tableUid, long uid) throws Exception {
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
         }
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
         Entry entry = null;
         try {
             entry = super.get(uid);
@@ -132,19 +212,16 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             if(!Visibility.isVisible(tm, t, entry)) {
                 return false;
             }
-            Lock l = null;
             try {
-                l = lt.add(xid, uid);                       // 添加到死锁检测
+                if(!lt.add(xid, tableUid, uid)) {           // 添加到死锁检测
+                    lt.await(xid);                          // 等待期间可能被后台检测选为死锁的牺牲者
+                }
             } catch(Exception e) {
                 t.err = Error.ConcurrentUpdateException;
                 internAbort(xid, true);         // 自动回滚
                 t.autoAborted = true;
                 throw t.err;
             }
-            if(l != null) {
-                l.lock();
-                l.unlock();
-            }
 
             if(entry.getXmax() == xid) {
                 return false;
@@ -172,18 +249,72 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public long begin(int level) {
-        lock.lock();
-        try {
-            // 开启一个新事务
-            long xid = tm.begin();
-            // 初始化事务的结构
-            Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
-            // 将其存放在 activeTransaction 中，用于检查和快照使用
-            activeTransaction.put(xid, t);
-            return xid;
-        } finally {
-            lock.unlock();
+        return begin(level, durability);
+    }
+
+    /**
+     * 开启一个事务，并指定提交的持久性模式
+     * @param level 隔离等级
+     * @param durability 持久性模式
+     * @return
+     */
+    @Override
+    public long begin(int level, int durability) {
+        // 开启一个新事务，同时加入活跃事务集合
+        int slot = activeSet.claim();
+        long xid = activeSet.begin(slot);
+        // 初始化事务的结构
+        Transaction t = Transaction.newTransaction(xid, level, durability);
+        t.slot = slot;
+        // 将其存放在 activeTransaction 中，用于检查使用
+        activeTransaction.put(xid, t);
+        // 登记之后再取快照，见 vacuumHorizon()；只有可重复读才需要，读已提交不生成 xip
+        if(level != 0) {
+            t.snapshot = activeSet.snapshot(xid);
+        }
+        if(xid % FREEZE_INTERVAL == 0) {
+            // 比最老的活跃事务还老的事务不会出现在任何快照中，状态也不会再改变，交给后台线程冻结
+            getFreezer().request();
+        }
+        return xid;
+    }
+
+    /**
+     * 开启一个只读事务：不分配 xid，不写XID文件，快照由 ActiveSet 直接生成
+     * @param level 隔离等级
+     * @return 负数的虚拟编号
+     */
+    @Override
+    public long beginReadOnly(int level) {
+        long vxid = readOnlyIds.decrementAndGet();
+        Transaction t = Transaction.newReadOnlyTransaction(vxid, level);
+        activeTransaction.put(vxid, t);
+        if(level != 0) {
+            t.snapshot = activeSet.snapshot();
+        }
+        return vxid;
+    }
+
+    /**
+     * 被 xid 小于返回值的已提交事务删除的版本，不会再被任何活跃事务的快照看到，它们的索引项可以回收
+     * 取所有活跃快照的 xmin 的最小值；读已提交的事务总是读最新的版本，不限制回收。
+     * 事务先登记再取快照，这里看不到快照的事务一定在之后才取快照，那时已经结束的事务中，
+     * 只有不小于它自己 xid 的会被它视为正在进行；只读事务快照的上界是取快照时下一个 xid，不受影响。
+     */
+    @Override
+    public long vacuumHorizon() {
+        long horizon = Long.MAX_VALUE;
+        for(Transaction t : activeTransaction.values()) {
+            Snapshot s = t.snapshot;
+            long h = Long.MAX_VALUE;
+            if(s != null) {
+                h = s.xmin;
+            } else if(t.level != 0 && !t.readOnly) {
+                h = t.xid;
+            }
+            horizon = Math.min(horizon, h);
         }
+        return horizon;
     }
 
     /**
@@ -193,9 +324,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public void commit(long xid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         try {
             if(t.err != null) {
@@ -207,12 +336,70 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             Panic.panic(n);
         }
 
-        lock.lock();
         activeTransaction.remove(xid);
-        lock.unlock();
+        if(t.readOnly) {
+            // 只读事务没有修改，也不在锁表和活跃事务集合中
+            return;
+        }
 
+        // 提交状态可见之后才能释放锁，否则等待的事务拿到锁时仍把 xmax 当成活跃事务，会覆盖掉已经提交的删除
+        tm.commitAsync(xid);
         lt.remove(xid);
-        tm.commit(xid);
+        commitDurably(t);
+        // 提交状态可见之后才能移出活跃事务集合，否则这之间生成的快照会把它当成快照前就已经结束的事务
+        activeSet.remove(t.slot);
+    }
+
+    /**
+     * 按事务的持久性模式将已经可见的提交状态落盘
+     * 日志必须先于提交状态落盘：同步提交先刷日志再写提交状态；组提交和异步提交由 CommitFlusher 按同样的顺序刷盘。
+     * 同步提交时顺带把之前异步提交的事务一起落盘，这样落盘的事务不会依赖一个崩溃后被回滚的事务。
+     * @param t
+     */
+    private void commitDurably(Transaction t) {
+        if(t.durability == Transaction.DURABILITY_SYNC) {
+            long[] pending = tm.pendingCommits();
+            dm.flushLog();
+            tm.persistCommits(pending);
+            return;
+        }
+        if(t.durability == Transaction.DURABILITY_GROUP) {
+            getFlusher().waitFlush();
+        } else {
+            getFlusher();
+        }
+    }
+
+    private CommitFlusher getFlusher() {
+        if(flusher == null) {
+            lock.lock();
+            try {
+                if(flusher == null) {
+                    CommitFlusher f = new CommitFlusher(tm, dm, flushInterval);
+                    f.start();
+                    flusher = f;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return flusher;
+    }
+
+    private XidFreezer getFreezer() {
+        if(freezer == null) {
+            lock.lock();
+            try {
+                if(freezer == null) {
+                    XidFreezer f = new XidFreezer(tm, activeSet);
+                    f.start();
+                    freezer = f;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return freezer;
     }
 
     // abort 事务的方法则有两种，手动和自动。
@@ -233,12 +420,15 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      * @param autoAborted 是否自动回滚
      */
     private void internAbort(long xid, boolean autoAborted) {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
+        if(t.readOnly) {
+            activeTransaction.remove(xid);
+            return;
+        }
         if(!autoAborted) {
             activeTransaction.remove(xid);
+            activeSet.remove(t.slot);
         }
-        lock.unlock();
 
         if(t.autoAborted) {
             return;
@@ -4,6 +4,7 @@ import com.charls.mydb.backend.tm.TransactionManager;
 
 /**
  * MVCC 的代码实现：实现了  读已提交  和  可重复度  两个事务隔离级别
+ * 事务是否已提交通过 Entry 的提示位判断，只有提示位还没有设置时才查询 TM
  *
  */
 public class Visibility {
@@ -24,7 +25,8 @@ public class Visibility {
             return false;
         } else {
             // 已提交删除当前事务版本，并且这个删除的事务id是在此事务之后发生 或者 是一个未提交的活跃事务操作删除的，就是版本跳跃
-            return tm.isCommitted(xmax) && (xmax > t.xid || t.isInSnapshot(xmax));
+            // 快照把在此事务之后开始的事务也视为活跃
+            return t.isInSnapshot(xmax) && e.isXmaxCommitted(tm, xmax);
         }
     }
 
@@ -59,14 +61,14 @@ public class Visibility {
         }
 
         // 由一个已经提交的事务创建
-        if(tm.isCommitted(xmin)) {
+        if(e.isXminCommitted(tm, xmin)) {
             // 如果没有被删除，则对事务t可见
             if(xmax == 0) {
                 return true;
             }
             // 如果由一个未提交的事务删除当前版本，也对事务t可见
             if(xmax != xid) {
-                if(!tm.isCommitted(xmax)) {
+                if(!e.isXmaxCommitted(tm, xmax)) {
                     return true;
                 }
             }
@@ -94,14 +96,15 @@ public class Visibility {
         }
 
         // 大范围，只能读取在本事务开始前就已经提交的事务，并且没有在活跃事务列表里面
-        if(tm.isCommitted(xmin) && xmin < xid && !t.isInSnapshot(xmin)) {
+        // 快照把在此事务之后开始的事务也视为活跃，只读事务没有自己的 xid，只能通过快照判断先后
+        if(!t.isInSnapshot(xmin) && e.isXminCommitted(tm, xmin)) {
             // 当前版本还不能被删除
             if(xmax == 0) {
                 return true;
             }
             // 删除的事务在本事务之后开始，或者未提交，再或者是活跃事务也是对当前事务可见的
             if(xmax != xid) {
-                if(!tm.isCommitted(xmax) || xmax > xid || t.isInSnapshot(xmax)) {
+                if(t.isInSnapshot(xmax) || !e.isXmaxCommitted(tm, xmax)) {
                     return true;
                 }
             }
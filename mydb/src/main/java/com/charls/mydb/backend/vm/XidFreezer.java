@@ -0,0 +1,67 @@
+package com.charls.mydb.backend.vm;
+
+import com.charls.mydb.backend.tm.TransactionManager;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台冻结线程，把比所有活跃事务都老的事务冻结，并压缩XID文件
+ *
+ * 开启事务时只调用 request() 唤醒它，冻结（复制状态、写新文件、刷盘）不在开启事务的线程中进行。
+ * 冻结线取 ActiveSet 的 xmin：比最老的活跃事务还老的事务一定已经结束。
+ * 冻结期间又有请求时，冻结完成后再进行一轮。
+ */
+class XidFreezer implements Runnable {
+    private TransactionManager tm;
+    private ActiveSet activeSet;
+
+    private Lock lock;
+    private Condition wakeUp;
+    private boolean requested;      // 是否有还没有开始的冻结请求
+
+    XidFreezer(TransactionManager tm, ActiveSet activeSet) {
+        this.tm = tm;
+        this.activeSet = activeSet;
+        this.lock = new ReentrantLock();
+        this.wakeUp = lock.newCondition();
+    }
+
+    void start() {
+        Thread t = new Thread(this, "xid-freezer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            lock.lock();
+            try {
+                while(!requested) {
+                    wakeUp.await();
+                }
+                requested = false;
+            } catch(InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            tm.freeze(activeSet.xmin());
+        }
+    }
+
+    /**
+     * 请求冻结一次，不等待
+     */
+    void request() {
+        lock.lock();
+        try {
+            requested = true;
+            wakeUp.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
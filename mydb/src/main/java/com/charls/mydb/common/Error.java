@@ -21,8 +21,14 @@ public class Error {
 
     // vm
     public static final Exception DeadlockException = new RuntimeException("Deadlock!");
+    public static final Exception LockTimeoutException = new RuntimeException("Lock wait timeout!");
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
+    public static final Exception ReadOnlyTransactionException = new RuntimeException("Transaction is read only!");
+
+    // im
+    public static final Exception InvalidFillFactorException = new RuntimeException("Invalid fill factor!");
+    public static final Exception KeyTooLongException = new RuntimeException("Index key is too long!");
 
     // tbm
     public static final Exception InvalidFieldException = new RuntimeException("Invalid field type!");
@@ -46,4 +52,8 @@ public class Error {
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
+    public static final Exception InvalidDurabilityException = new RuntimeException("Invalid durability mode!");
+    public static final Exception InvalidFlushIntervalException = new RuntimeException("Invalid flush interval!");
+    public static final Exception InvalidLockPolicyException = new RuntimeException("Invalid lock policy!");
+    public static final Exception InvalidLockTimeoutException = new RuntimeException("Invalid lock timeout!");
 }
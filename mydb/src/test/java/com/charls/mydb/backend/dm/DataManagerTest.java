@@ -149,6 +149,8 @@ public class DataManagerTest {
                 new Thread(r).run();
             }
             cdl.await();
+            // 日志只在提交时落盘，模拟崩溃前先刷盘
+            dm0.flushLog();
         }
         dm0.close(); mdm.close();
         
@@ -157,4 +159,34 @@ public class DataManagerTest {
         new File("C:/Users/TDB/tmp/TestRecoverySimple.xid").delete();
 
     }
+
+    @Test
+    public void testWalBeforePageWrite() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:/Users/TDB/tmp/TestWalBeforePageWrite", PageCache.PAGE_SIZE*10, tm);
+        byte[] data = RandomUtil.randomBytes(60);
+        long uid = dm.insert(0, data);
+        DataItem di = dm.read(uid);
+        di.before();
+        SubArray sa = di.data();
+        for(int i = sa.start; i < sa.end; i ++) {
+            sa.raw[i] = (byte)(sa.raw[i] + 1);
+        }
+        di.after(0);
+        byte[] expected = Arrays.copyOfRange(sa.raw, sa.start, sa.end);
+        // 引用计数归零，页面立即写回，插入和更新日志都没有显式刷盘
+        di.release();
+
+        // 不关闭 dm，模拟崩溃，重新打开时由日志恢复
+        DataManager dm2 = DataManager.open("C:/Users/TDB/tmp/TestWalBeforePageWrite", PageCache.PAGE_SIZE*10, tm);
+        DataItem di2 = dm2.read(uid);
+        assert di2 != null;
+        SubArray sa2 = di2.data();
+        assert Arrays.equals(Arrays.copyOfRange(sa2.raw, sa2.start, sa2.end), expected);
+        di2.release();
+        dm2.close();
+
+        assert new File("C:/Users/TDB/tmp/TestWalBeforePageWrite.db").delete();
+        assert new File("C:/Users/TDB/tmp/TestWalBeforePageWrite.log").delete();
+    }
 }
@@ -51,6 +51,19 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public long insertWithoutLog(long xid, byte[] data) throws Exception {
+        return insert(xid, data);
+    }
+
+    @Override
+    public void flushLog() {}
+
+    @Override
+    public int getMaxPages() {
+        return Integer.MAX_VALUE;
+    }
+
     @Override
     public void close() {}
     
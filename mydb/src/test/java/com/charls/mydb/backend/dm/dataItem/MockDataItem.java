@@ -49,6 +49,11 @@ public class MockDataItem implements DataItem {
         wLock.unlock();
     }
 
+    @Override
+    public void afterLogical(byte[] log) {
+        wLock.unlock();
+    }
+
     @Override
     public void release() {}
 
@@ -72,6 +77,17 @@ public class MockDataItem implements DataItem {
         rLock.unlock();
     }
 
+    @Override
+    public long optimisticRead() {
+        // 不支持乐观读，读者总是加读锁
+        return 0;
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return false;
+    }
+
     @Override
     public Page page() {
         return null;
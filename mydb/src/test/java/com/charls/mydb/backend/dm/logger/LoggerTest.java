@@ -1,8 +1,12 @@
 package com.charls.mydb.backend.dm.logger;
 
+import com.charls.mydb.backend.utils.Parser;
+import com.google.common.primitives.Bytes;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.CountDownLatch;
 
 public class LoggerTest {
     @Test
@@ -45,4 +49,125 @@ public class LoggerTest {
 
         assert new File("C:/Users/TDB/tmp/logger_test.log").delete();
     }
+
+    @Test
+    public void testConcurrentLogger() throws Exception {
+        Logger lg = Logger.create("C:/Users/TDB/tmp/logger_concurrent_test");
+        int threads = 8, perThread = 500;
+        CountDownLatch cdl = new CountDownLatch(threads);
+        for(int i = 0; i < threads; i ++) {
+            final int t = i;
+            new Thread(() -> {
+                for(int j = 0; j < perThread; j ++) {
+                    String s = t + ":" + j;
+                    if(j % 2 == 0) {
+                        lg.log(s.getBytes());
+                    } else {
+                        lg.flush(lg.append(s.getBytes()));
+                    }
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        lg.close();
+
+        Logger lg2 = Logger.open("C:/Users/TDB/tmp/logger_concurrent_test");
+        lg2.rewind();
+        // 每个线程内的日志保持追加顺序
+        int[] next = new int[threads];
+        int count = 0;
+        byte[] log;
+        while((log = lg2.next()) != null) {
+            String[] parts = new String(log).split(":");
+            int t = Integer.parseInt(parts[0]);
+            assert Integer.parseInt(parts[1]) == next[t];
+            next[t] ++;
+            count ++;
+        }
+        assert count == threads * perThread;
+        lg2.close();
+
+        assert new File("C:/Users/TDB/tmp/logger_concurrent_test.log").delete();
+    }
+
+    @Test
+    public void testTruncateAtDurableEnd() {
+        Logger lg = Logger.create("C:/Users/TDB/tmp/logger_durable_test");
+        lg.log("aaa".getBytes());
+        lg.log("bbb".getBytes());
+        // 追加但没有落盘，不关闭日志，模拟崩溃
+        lg.append("ccc".getBytes());
+
+        Logger lg2 = Logger.open("C:/Users/TDB/tmp/logger_durable_test");
+        lg2.rewind();
+        assert "aaa".equals(new String(lg2.next()));
+        assert "bbb".equals(new String(lg2.next()));
+        assert lg2.next() == null;
+        // 截断之后继续追加
+        lg2.log("ddd".getBytes());
+        lg2.close();
+
+        Logger lg3 = Logger.open("C:/Users/TDB/tmp/logger_durable_test");
+        lg3.rewind();
+        assert "aaa".equals(new String(lg3.next()));
+        assert "bbb".equals(new String(lg3.next()));
+        assert "ddd".equals(new String(lg3.next()));
+        assert lg3.next() == null;
+        lg3.close();
+
+        assert new File("C:/Users/TDB/tmp/logger_durable_test.log").delete();
+    }
+
+    @Test
+    public void testUpgradeOldHeader() throws Exception {
+        // 旧格式：文件头只有 XChecksum，日志从第 4 个字节开始，末尾有一段没写完的日志
+        String path = "C:/Users/TDB/tmp/logger_upgrade_test";
+        byte[] logs = new byte[0];
+        int xChecksum = 0;
+        for(String s : new String[]{"aaa", "bbb"}) {
+            byte[] data = s.getBytes();
+            byte[] log = Bytes.concat(Parser.int2Byte(data.length), Parser.int2Byte(LoggerImpl.calChecksum(0, data)), data);
+            logs = Bytes.concat(logs, log);
+            xChecksum = LoggerImpl.calChecksum(xChecksum, log);
+        }
+        byte[] badTail = Bytes.concat(Parser.int2Byte(100), Parser.int2Byte(0), "cc".getBytes());
+        try(FileOutputStream out = new FileOutputStream(path + ".log")) {
+            out.write(Bytes.concat(Parser.int2Byte(xChecksum), logs, badTail));
+        }
+
+        Logger lg = Logger.open(path);
+        lg.rewind();
+        assert "aaa".equals(new String(lg.next()));
+        assert "bbb".equals(new String(lg.next()));
+        assert lg.next() == null;
+        lg.log("ddd".getBytes());
+        lg.close();
+        assert new File(path + ".log").length() == LoggerImpl.HEADER_SIZE + 3 * (8 + 3);
+
+        // 转换之后按当前格式打开，不再转换
+        lg = Logger.open(path);
+        lg.rewind();
+        assert "aaa".equals(new String(lg.next()));
+        assert "bbb".equals(new String(lg.next()));
+        assert "ddd".equals(new String(lg.next()));
+        assert lg.next() == null;
+        lg.close();
+
+        // 只有文件头的旧日志
+        try(FileOutputStream out = new FileOutputStream(path + ".log")) {
+            out.write(Parser.int2Byte(0));
+        }
+        lg = Logger.open(path);
+        lg.rewind();
+        assert lg.next() == null;
+        lg.log("eee".getBytes());
+        lg.close();
+        lg = Logger.open(path);
+        lg.rewind();
+        assert "eee".equals(new String(lg.next()));
+        lg.close();
+
+        assert new File(path + ".log").delete();
+    }
 }
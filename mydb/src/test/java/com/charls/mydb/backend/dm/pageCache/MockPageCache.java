@@ -1,5 +1,6 @@
 package com.charls.mydb.backend.dm.pageCache;
 
+import com.charls.mydb.backend.dm.logger.Logger;
 import com.charls.mydb.backend.dm.page.MockPage;
 import com.charls.mydb.backend.dm.page.Page;
 
@@ -54,5 +55,13 @@ public class MockPageCache implements PageCache {
 
     @Override
     public void flushPage(Page pg) {}
+
+    @Override
+    public void setLogger(Logger lg) {}
+
+    @Override
+    public int getMaxPages() {
+        return Integer.MAX_VALUE;
+    }
     
 }
@@ -1,13 +1,20 @@
 package com.charls.mydb.backend.im;
 
+import com.charls.mydb.backend.common.SubArray;
 import com.charls.mydb.backend.dm.DataManager;
 import com.charls.mydb.backend.dm.pageCache.PageCache;
 import com.charls.mydb.backend.tm.MockTransactionManager;
 import com.charls.mydb.backend.tm.TransactionManager;
+import com.charls.mydb.common.Error;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BPlusTreeTest {
     @Test
@@ -32,4 +39,671 @@ public class BPlusTreeTest {
         assert new File("C:/Users/TDB/tmp/TestTreeSingle.db").delete();
         assert new File("C:/Users/TDB/tmp/TestTreeSingle.log").delete();
     }
+
+    @Test
+    public void testTreeRecover() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:/Users/TDB/tmp/TestTreeRecover", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int lim = 5000;
+        for(int i = 0; i < lim; i ++) {
+            long key = (i * 7919L) % lim;
+            tree.insert(key, key);
+        }
+
+        // 日志刷盘后不关闭 dm，模拟崩溃，重新打开时节点由逻辑日志重建
+        dm.flushLog();
+        DataManager dm2 = DataManager.open("C:/Users/TDB/tmp/TestTreeRecover", PageCache.PAGE_SIZE*10, tm);
+        BPlusTree tree2 = BPlusTree.load(root, dm2);
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree2.search(i);
+            assert uids.size() == 1;
+            assert uids.get(0) == i;
+        }
+        dm2.close();
+
+        assert new File("C:/Users/TDB/tmp/TestTreeRecover.db").delete();
+        assert new File("C:/Users/TDB/tmp/TestTreeRecover.log").delete();
+    }
+
+    @Test
+    public void testTreeDelete() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:/Users/TDB/tmp/TestTreeDelete", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 每个 key 两个 uid，模拟更新留下的旧版本；乱序插入，父节点中的上界会比孩子实际的 key 宽
+        int lim = 5000;
+        for(int i = 0; i < lim; i ++) {
+            long key = (i * 7919L) % lim;
+            tree.insert(key, key);
+            tree.insert(key, key + lim);
+        }
+        for(int i = 0; i < lim; i ++) {
+            assert tree.delete(i, i);
+            if(i % 3 != 0) {
+                assert tree.delete(i, i + lim);
+            }
+        }
+        assert !tree.delete(0, 0);
+
+        // 日志刷盘后不关闭 dm，模拟崩溃，删除和合并由日志重做
+        dm.flushLog();
+        DataManager dm2 = DataManager.open("C:/Users/TDB/tmp/TestTreeDelete", PageCache.PAGE_SIZE*10, tm);
+        BPlusTree tree2 = BPlusTree.load(root, dm2);
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree2.search(i);
+            if(i % 3 == 0) {
+                assert uids.size() == 1;
+                assert uids.get(0) == i + lim;
+            } else {
+                assert uids.isEmpty();
+            }
+        }
+        assert tree2.searchRange(0, lim).size() == (lim + 2) / 3;
+        dm2.close();
+
+        assert new File("C:/Users/TDB/tmp/TestTreeDelete.db").delete();
+        assert new File("C:/Users/TDB/tmp/TestTreeDelete.log").delete();
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:/Users/TDB/tmp/TestScan", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int lim = 3000;
+        for(int i = 0; i < lim; i ++) {
+            long key = (i * 7919L) % lim;
+            tree.insert(key, key);
+        }
+
+        long expect = 100;
+        try(Cursor c = tree.scan(100, 2500)) {
+            while(c.hasNext()) {
+                assert c.next() == expect;
+                expect ++;
+            }
+        }
+        assert expect == 2501;
+
+        // 游标不持有结构锁；扫描途中删除引起合并和借用，游标沿清空的叶子向右，不重复也不遗漏留下的分支
+        Cursor c = tree.scan(0, Long.MAX_VALUE);
+        assert tree.structLock.getReadLockCount() == 0;
+        for(int i = 0; i < 10; i ++) {
+            assert c.next() == i;
+        }
+        for(int i = 0; i < lim; i ++) {
+            if(i % 10 != 0) {
+                assert tree.delete(i, i);
+            }
+        }
+        // 已经读入缓冲区的分支在删除之后仍然会返回
+        long prev = 9;
+        expect = 10;
+        while(c.hasNext()) {
+            long uid = c.next();
+            assert uid > prev;
+            prev = uid;
+            if(uid == expect) {
+                expect += 10;
+            }
+        }
+        assert expect == lim;
+        c.close();
+        assert !c.hasNext();
+        for(int i = 0; i < lim; i += 10) {
+            assert tree.delete(i, i);
+        }
+        assert !tree.scan(0, Long.MAX_VALUE).hasNext();
+
+        assert new File("C:/Users/TDB/tmp/TestScan.db").delete();
+        assert new File("C:/Users/TDB/tmp/TestScan.log").delete();
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:/Users/TDB/tmp/TestConcurrentAccess", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 偶数 key 预先插入，并发插入奇数 key 引起的分裂过程中，读线程必须一直能读到它们
+        int lim = 4000;
+        for(int i = 0; i < lim; i += 2) {
+            tree.insert(i, i);
+        }
+        int writers = 4;
+        AtomicBoolean failed = new AtomicBoolean(false);
+        AtomicInteger running = new AtomicInteger(writers);
+        List<Thread> threads = new ArrayList<>();
+        for(int w = 0; w < writers; w ++) {
+            final int no = w;
+            threads.add(new Thread(() -> {
+                try {
+                    for(int i = 2 * no + 1; i < lim; i += 2 * writers) {
+                        tree.insert(i, i);
+                    }
+                } catch(Exception e) {
+                    failed.set(true);
+                } finally {
+                    running.decrementAndGet();
+                }
+            }));
+        }
+        for(int r = 0; r < 2; r ++) {
+            threads.add(new Thread(() -> {
+                try {
+                    Random random = new Random();
+                    while(running.get() > 0) {
+                        long key = random.nextInt(lim / 2) * 2L;
+                        List<Long> uids = tree.search(key);
+                        if(uids.size() != 1 || uids.get(0) != key) {
+                            failed.set(true);
+                        }
+                    }
+                } catch(Exception e) {
+                    failed.set(true);
+                }
+            }));
+        }
+        for(Thread t : threads) {
+            t.start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+        assert !failed.get();
+        List<Long> uids = tree.searchRange(0, lim);
+        assert uids.size() == lim;
+        for(int i = 0; i < lim; i ++) {
+            assert uids.get(i) == i;
+        }
+
+        assert new File("C:/Users/TDB/tmp/TestConcurrentAccess.db").delete();
+        assert new File("C:/Users/TDB/tmp/TestConcurrentAccess.log").delete();
+    }
+
+    @Test
+    public void testConcurrentRootSplit() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:/Users/TDB/tmp/TestConcurrentRootSplit", PageCache.PAGE_SIZE*20, tm);
+
+        // 从空树开始并发插入，多个线程同时分裂根节点所在的层，每个分裂出的节点都必须在上一层中有父节点
+        int writers = 8, perWriter = 400;
+        for(int round = 0; round < 10; round ++) {
+            BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+            AtomicBoolean failed = new AtomicBoolean(false);
+            List<Thread> threads = new ArrayList<>();
+            for(int w = 0; w < writers; w ++) {
+                final int no = w;
+                threads.add(new Thread(() -> {
+                    try {
+                        for(int i = 0; i < perWriter; i ++) {
+                            long key = (i * writers + no) * 7919L % (writers * perWriter);
+                            tree.insert(key, key);
+                        }
+                    } catch(Throwable e) {
+                        failed.set(true);
+                    }
+                }));
+            }
+            for(Thread t : threads) {
+                t.start();
+            }
+            for(Thread t : threads) {
+                t.join();
+            }
+            assert !failed.get();
+
+            // 每一层沿兄弟指针得到的节点，和上一层节点中的孩子一一对应
+            List<Long> level = new ArrayList<>();
+            level.add(tree.rootUid);
+            while(true) {
+                Node first = Node.loadNode(tree, level.get(0));
+                boolean isLeaf = first.isLeaf();
+                first.release();
+                if(isLeaf) {
+                    break;
+                }
+                List<Long> sons = new ArrayList<>();
+                for(long uid : level) {
+                    Node node = Node.loadNode(tree, uid);
+                    for(int i = 0; i < node.getNoKeys(); i ++) {
+                        sons.add(node.getKthSon(i));
+                    }
+                    node.release();
+                }
+                List<Long> chain = new ArrayList<>();
+                for(long uid = sons.get(0); uid != 0; ) {
+                    chain.add(uid);
+                    Node node = Node.loadNode(tree, uid);
+                    uid = node.getSibling();
+                    node.release();
+                }
+                assert chain.equals(sons);
+                level = sons;
+            }
+            List<Long> uids = tree.searchRange(0, writers * perWriter);
+            assert uids.size() == writers * perWriter;
+            for(int i = 0; i < uids.size(); i ++) {
+                assert uids.get(i) == i;
+            }
+            tree.close();
+        }
+        dm.close();
+
+        assert new File("C:/Users/TDB/tmp/TestConcurrentRootSplit.db").delete();
+        assert new File("C:/Users/TDB/tmp/TestConcurrentRootSplit.log").delete();
+    }
+
+    @Test
+    public void testConcurrentDelete() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:/Users/TDB/tmp/TestConcurrentDelete", PageCache.PAGE_SIZE*20, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 并发删除不是 4 的倍数的 key，同时在右边插入引起分裂；合并和借用过程中，读线程必须一直能读到留下的 key
+        int lim = 8000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+        }
+        int writers = 4;
+        AtomicBoolean failed = new AtomicBoolean(false);
+        AtomicInteger running = new AtomicInteger(writers + 1);
+        List<Thread> threads = new ArrayList<>();
+        for(int w = 0; w < writers; w ++) {
+            final int no = w;
+            threads.add(new Thread(() -> {
+                try {
+                    for(int i = no; i < lim; i += writers) {
+                        if(i % 4 != 0 && !tree.delete(i, i)) {
+                            failed.set(true);
+                        }
+                    }
+                } catch(Exception e) {
+                    failed.set(true);
+                } finally {
+                    running.decrementAndGet();
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            try {
+                for(int i = lim; i < lim * 2; i ++) {
+                    tree.insert(i, i);
+                }
+            } catch(Exception e) {
+                failed.set(true);
+            } finally {
+                running.decrementAndGet();
+            }
+        }));
+        for(int r = 0; r < 2; r ++) {
+            threads.add(new Thread(() -> {
+                try {
+                    Random random = new Random();
+                    while(running.get() > 0) {
+                        long key = random.nextInt(lim / 4) * 4L;
+                        List<Long> uids = tree.search(key);
+                        if(uids.size() != 1 || uids.get(0) != key) {
+                            failed.set(true);
+                        }
+                    }
+                } catch(Exception e) {
+                    failed.set(true);
+                }
+            }));
+        }
+        for(Thread t : threads) {
+            t.start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+        assert !failed.get();
+        List<Long> uids = tree.searchRange(0, lim * 2);
+        assert uids.size() == lim / 4 + lim;
+        for(int i = 0; i < lim / 4; i ++) {
+            assert uids.get(i) == i * 4;
+        }
+        for(int i = 0; i < lim; i ++) {
+            assert uids.get(lim / 4 + i) == lim + i;
+        }
+        dm.close();
+
+        assert new File("C:/Users/TDB/tmp/TestConcurrentDelete.db").delete();
+        assert new File("C:/Users/TDB/tmp/TestConcurrentDelete.log").delete();
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:/Users/TDB/tmp/TestBulkLoad", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        tree.insert(-1, -1);
+
+        // 乱序加入，每个 key 两个 uid，内存上限很小，需要多路归并
+        int lim = 10000;
+        BulkLoader loader = new BulkLoader(dm, 0.7, 1000);
+        for(int i = 0; i < lim * 2; i ++) {
+            long v = (i * 7919L) % (lim * 2);
+            loader.add(v / 2, v);
+        }
+        tree.bulkLoad(loader);
+        assert tree.search(-1).isEmpty();
+        // 每层最左边的节点也至少有半个节点的数据
+        long first = tree.rootUid;
+        while(first != 0) {
+            Node node = Node.loadNode(tree, first);
+            first = node.isLeaf() ? 0 : node.getKthSon(0);
+            for(long uid = node.uid; uid != 0; ) {
+                Node n = Node.loadNode(tree, uid);
+                assert uid == tree.rootUid || Node.usedBytes(n.raw) >= Node.MIN_FILL;
+                uid = n.getSibling();
+                n.release();
+            }
+            node.release();
+        }
+        tree.insert(lim, lim * 2);
+        assert tree.delete(0, 0);
+
+        dm.flushLog();
+        DataManager dm2 = DataManager.open("C:/Users/TDB/tmp/TestBulkLoad", PageCache.PAGE_SIZE*10, tm);
+        BPlusTree tree2 = BPlusTree.load(root, dm2);
+        for(int i = 1; i < lim; i ++) {
+            List<Long> uids = tree2.search(i);
+            assert uids.size() == 2;
+            assert uids.contains(i * 2L) && uids.contains(i * 2L + 1);
+        }
+        assert tree2.searchRange(0, lim).size() == lim * 2;
+        dm2.close();
+
+        assert new File("C:/Users/TDB/tmp/TestBulkLoad.db").delete();
+        assert new File("C:/Users/TDB/tmp/TestBulkLoad.log").delete();
+    }
+
+    @Test
+    public void testNodeInsertUndo() {
+        SubArray raw = new SubArray(Node.newRootRaw(1, 2, Keys.of(10L)), 0, Node.NODE_SIZE);
+        int used = Node.usedBytes(raw);
+
+        Node.insertRawKth(raw, 0, new byte[]{5}, 3);
+        assert Node.getRawNoKeys(raw) == 3;
+        assert Arrays.equals(Node.getRawKthKey(raw, 0), new byte[]{5});
+        assert Node.getRawKthSon(raw, 1) == 3;
+        assert Arrays.equals(Node.getRawKthKey(raw, 1), Keys.of(10L));
+        assert Node.getRawKthKey(raw, 2) == null;
+        assert Node.usedBytes(raw) == used + Node.SLOT_SIZE + 1;
+
+        // 撤销后插入的 key 成为堆中的空洞
+        Node.removeRawKth(raw, 0);
+        assert Node.getRawNoKeys(raw) == 2;
+        assert Node.getRawKthSon(raw, 0) == 1 && Node.getRawKthSon(raw, 1) == 2;
+        assert Arrays.equals(Node.getRawKthKey(raw, 0), Keys.of(10L));
+        assert Node.getRawKthKey(raw, 1) == null;
+        assert Node.usedBytes(raw) == used && Node.getRawGarbage(raw) == 1;
+
+        // 空间不够时整理堆，去掉空洞
+        SubArray leaf = new SubArray(Node.newNilRootRaw(), 0, Node.NODE_SIZE);
+        byte[] key = new byte[Node.MAX_KEY_SIZE];
+        int n = 0;
+        for(; Node.usedBytes(leaf) <= Node.SPLIT_LIMIT; n ++) {
+            key[0] = (byte)n;
+            Node.insertRawKth(leaf, n, key, n);
+        }
+        for(int i = 0; i < 3; i ++) {
+            Node.removeRawKth(leaf, 0);
+        }
+        for(int i = 0; i < 3; i ++) {
+            key[0] = (byte)(n + i);
+            Node.insertRawKth(leaf, n - 3 + i, key, n + i);
+        }
+        assert Node.getRawNoKeys(leaf) == n && Node.getRawGarbage(leaf) < 3 * Node.MAX_KEY_SIZE;
+        for(int i = 0; i < n; i ++) {
+            assert Node.getRawKthSon(leaf, i) == i + 3 && Node.getRawKthKey(leaf, i)[0] == (byte)(i + 3);
+        }
+    }
+
+    @Test
+    public void testNodeBinarySearch() {
+        SubArray raw = new SubArray(Node.newNilRootRaw(), 0, Node.NODE_SIZE);
+        long[] keys = {-5, 1, 3, 3, 3, 8, Long.MAX_VALUE};
+        for(int i = 0; i < keys.length; i ++) {
+            Node.insertRawKth(raw, i, Keys.of(keys[i]), i);
+        }
+        int n = keys.length;
+        assert Node.lowerBound(raw, n, Keys.of(3L)) == 2;
+        assert Node.lowerBound(raw, n, Keys.of(4L)) == 5;
+        assert Node.lowerBound(raw, n, Keys.of(-10L)) == 0;
+        assert Node.lowerBound(raw, n, Keys.of(9L)) == 6;
+        assert Node.lowerBound(raw, n, Keys.of(Long.MAX_VALUE)) == 6;
+        assert Node.lowerBound(raw, n, Keys.successor(Keys.of(Long.MAX_VALUE))) == 7;
+        assert Arrays.equals(Node.getRawKthKey(raw, 0), Keys.of(-5L));
+
+        // 孩子在 lowerBound 附近或者右边，不在节点中时返回 -1
+        assert Node.indexOfSon(raw, n, 4, Keys.of(3L)) == 4;
+        assert Node.indexOfSon(raw, n, 2, Keys.of(1L)) == 2;
+        assert Node.indexOfSon(raw, n, 6, Keys.of(9L)) == 6;
+        assert Node.indexOfSon(raw, n, 9, Keys.of(3L)) == -1;
+
+        // 变长的 key 按无符号字节的字典序比较，较短的前缀在前
+        SubArray strs = new SubArray(Node.newNilRootRaw(), 0, Node.NODE_SIZE);
+        String[] words = {"", "a", "ab", "abc", "b", "\u00e9"};
+        for(int i = 0; i < words.length; i ++) {
+            Node.insertRawKth(strs, i, StringKey.of(words[i]), i);
+        }
+        assert Node.lowerBound(strs, words.length, StringKey.of("aa")) == 2;
+        assert Node.lowerBound(strs, words.length, StringKey.of("abc")) == 3;
+        assert Node.lowerBound(strs, words.length, StringKey.of("z")) == 5;
+        assert Node.lowerBound(strs, words.length, Keys.MIN) == 0;
+    }
+
+    @Test
+    public void testPinnedLevels() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:/Users/TDB/tmp/TestPinnedLevels", PageCache.PAGE_SIZE*100, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int lim = 20000;
+        for(int i = 0; i < lim; i ++) {
+            long key = (i * 7919L) % lim;
+            tree.insert(key, key);
+        }
+        for(int i = 0; i < lim; i ++) {
+            assert tree.search(i).get(0) == i;
+        }
+        // 只有内部节点常驻内存
+        assert tree.pinned.size() > 1;
+        for(Node node : tree.pinned.values()) {
+            assert !node.isLeaf();
+        }
+        // 分裂修改过的常驻节点，解码后的内容与字节一致
+        for(int i = lim; i < lim * 2; i ++) {
+            tree.insert(i, i);
+        }
+        for(Node node : tree.pinned.values()) {
+            int n = Node.getRawNoKeys(node.raw);
+            assert node.getNoKeys() == n;
+            for(int i = 0; i < n; i ++) {
+                assert Arrays.equals(node.getKthKey(i), Node.getRawKthKey(node.raw, i));
+                assert node.getKthSon(i) == Node.getRawKthSon(node.raw, i);
+            }
+        }
+        // 降低树高后的旧根节点和合并清空的节点都不再常驻，数据项也已经释放
+        for(int i = 0; i < lim * 2; i ++) {
+            assert tree.delete(i, i);
+        }
+        assert tree.pinned.isEmpty() && tree.retired.isEmpty();
+        assert tree.searchRange(0, lim * 2).isEmpty();
+        tree.close();
+        dm.close();
+
+        assert new File("C:/Users/TDB/tmp/TestPinnedLevels.db").delete();
+        assert new File("C:/Users/TDB/tmp/TestPinnedLevels.log").delete();
+    }
+
+    @Test
+    public void testSequentialAppend() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:/Users/TDB/tmp/TestSequentialAppend", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int lim = 10000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+        }
+        // 单调递增插入时，除了最右边的叶子，其他叶子都在靠右的位置分裂
+        long uid = tree.rootUid;
+        while(true) {
+            Node node = Node.loadNode(tree, uid);
+            boolean leaf = node.isLeaf();
+            long son = node.getKthSon(0);
+            node.release();
+            if(leaf) {
+                break;
+            }
+            uid = son;
+        }
+        int leaves = 0, perLeaf = 0;
+        while(uid != 0) {
+            Node node = Node.loadNode(tree, uid);
+            uid = Node.getRawSibling(node.raw);
+            if(perLeaf == 0) {
+                perLeaf = node.getNoKeys();
+            }
+            assert uid == 0 || node.getNoKeys() == perLeaf && Node.usedBytes(node.raw) >= Node.SPLIT_LIMIT * Node.APPEND_SPLIT_FILL;
+            node.release();
+            leaves ++;
+        }
+        assert leaves == (lim + perLeaf - 1) / perLeaf;
+
+        // 日志刷盘后不关闭 dm，模拟崩溃，追加和分裂由日志重做
+        dm.flushLog();
+        DataManager dm2 = DataManager.open("C:/Users/TDB/tmp/TestSequentialAppend", PageCache.PAGE_SIZE*10, tm);
+        BPlusTree tree2 = BPlusTree.load(root, dm2);
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree2.search(i);
+            assert uids.size() == 1;
+            assert uids.get(0) == i;
+        }
+        dm2.close();
+
+        assert new File("C:/Users/TDB/tmp/TestSequentialAppend.db").delete();
+        assert new File("C:/Users/TDB/tmp/TestSequentialAppend.log").delete();
+    }
+
+    @Test
+    public void testVariableLengthKeys() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("C:/Users/TDB/tmp/TestVariableLengthKeys", PageCache.PAGE_SIZE*20, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 长度不同、共享很长前缀的字符串，乱序插入
+        int lim = 4000;
+        String[] words = new String[lim];
+        for(int i = 0; i < lim; i ++) {
+            int v = (int)((i * 7919L) % lim);
+            words[v] = "customer/" + v + "/" + new String(new char[v % 40]).replace('\0', 'z');
+            tree.insert(StringKey.of(words[v]), v);
+        }
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree.search(StringKey.of(words[i]));
+            assert uids.size() == 1 && uids.get(0) == i;
+        }
+        // 只是前缀的 key 不相等
+        assert tree.search(StringKey.of("customer/12")).isEmpty();
+        try {
+            tree.insert(new byte[Node.MAX_KEY_SIZE + 1], 1);
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.KeyTooLongException;
+        }
+
+        // 叶子中保存完整的 key，内部节点中是截断后的分界，平均比完整的 key 短
+        long leafBytes = 0, leafKeys = 0, innerBytes = 0, innerKeys = 0;
+        for(long first = tree.rootUid; first != 0; ) {
+            Node node = Node.loadNode(tree, first);
+            boolean leaf = node.isLeaf();
+            first = leaf ? 0 : node.getKthSon(0);
+            node.release();
+            for(long uid = node.uid; uid != 0; ) {
+                Node n = Node.loadNode(tree, uid);
+                for(int i = 0; i < n.getNoKeys(); i ++) {
+                    byte[] key = n.getKthKey(i);
+                    if(key == null) {
+                        continue;
+                    }
+                    if(leaf) {
+                        leafBytes += key.length;
+                        leafKeys ++;
+                    } else {
+                        innerBytes += key.length;
+                        innerKeys ++;
+                    }
+                }
+                uid = n.getSibling();
+                n.release();
+            }
+        }
+        assert leafKeys == lim && innerKeys > 0;
+        assert innerBytes * leafKeys < leafBytes * innerKeys;
+
+        // 前缀匹配和范围查找按字节序返回
+        List<String> sorted = new ArrayList<>(Arrays.asList(words));
+        sorted.sort(StringKey::compare);
+        byte[] prefix = StringKey.of("customer/12");
+        List<Long> uids = tree.searchRange(prefix, Keys.prefixEnd(prefix));
+        List<Long> expect = new ArrayList<>();
+        for(String w : sorted) {
+            if(w.startsWith("customer/12")) {
+                expect.add(Long.parseLong(w.split("/")[1]));
+            }
+        }
+        assert uids.equals(expect) && expect.size() == 111;
+        uids = tree.searchRange(StringKey.of(words[100]), StringKey.of(words[200]));
+        expect.clear();
+        for(String w : sorted) {
+            if(StringKey.compare(w, words[100]) >= 0 && StringKey.compare(w, words[200]) < 0) {
+                expect.add(Long.parseLong(w.split("/")[1]));
+            }
+        }
+        assert uids.equals(expect) && !expect.isEmpty();
+
+        // 删除一半引起合并和借用，日志刷盘后模拟崩溃，由日志重做
+        for(int i = 0; i < lim; i += 2) {
+            assert tree.delete(StringKey.of(words[i]), i);
+        }
+        dm.flushLog();
+        DataManager dm2 = DataManager.open("C:/Users/TDB/tmp/TestVariableLengthKeys", PageCache.PAGE_SIZE*20, tm);
+        BPlusTree tree2 = BPlusTree.load(root, dm2);
+        for(int i = 0; i < lim; i ++) {
+            uids = tree2.search(StringKey.of(words[i]));
+            assert i % 2 == 0 ? uids.isEmpty() : uids.size() == 1 && uids.get(0) == i;
+        }
+        assert tree2.searchRange(Keys.MIN, null).size() == lim / 2;
+        dm2.close();
+
+        assert new File("C:/Users/TDB/tmp/TestVariableLengthKeys.db").delete();
+        assert new File("C:/Users/TDB/tmp/TestVariableLengthKeys.log").delete();
+    }
 }
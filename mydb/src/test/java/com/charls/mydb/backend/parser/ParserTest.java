@@ -21,6 +21,15 @@ public class ParserTest {
         System.out.println("======================");
     }
 
+    @Test
+    public void testCreateCompositeIndex() throws Exception {
+        String stat = "create table orders tenant int32, created int64, note string (index note (tenant created))";
+        Create create = (Create)Parser.Parse(stat.getBytes());
+        assert Arrays.equals(create.index, new String[]{"note"});
+        assert create.compositeIndex.length == 1;
+        assert Arrays.equals(create.compositeIndex[0], new String[]{"tenant", "created"});
+    }
+
     @Test
     public void testBegin() throws Exception {
         String stat = "begin isolation level read committed";
@@ -37,6 +46,25 @@ public class ParserTest {
         res = Parser.Parse(stat.getBytes());
         begin = (Begin)res;
         assert begin.isRepeatableRead;
+        assert begin.durability == null;
+
+        stat = "begin async";
+        res = Parser.Parse(stat.getBytes());
+        begin = (Begin)res;
+        assert "async".equals(begin.durability);
+
+        stat = "begin group isolation level repeatable read";
+        res = Parser.Parse(stat.getBytes());
+        begin = (Begin)res;
+        assert "group".equals(begin.durability);
+        assert begin.isRepeatableRead;
+        assert !begin.readOnly;
+
+        stat = "begin read only isolation level repeatable read";
+        res = Parser.Parse(stat.getBytes());
+        begin = (Begin)res;
+        assert begin.readOnly;
+        assert begin.isRepeatableRead;
     }
 
     @Test
@@ -4,6 +4,7 @@ import com.charls.mydb.backend.dm.DataManager;
 import com.charls.mydb.backend.tbm.TableManager;
 import com.charls.mydb.backend.tm.TransactionManager;
 import com.charls.mydb.backend.vm.VersionManager;
+import com.charls.mydb.common.Error;
 import org.junit.Test;
 
 import java.io.File;
@@ -74,4 +75,185 @@ public class ExecutorTest {
         new File(path + ".log").delete();
         new File(path + ".xid").delete();
     }
+
+    @Test
+    public void testDurabilityModes() throws Exception {
+        Executor exe = testCreate();
+        int id = 0;
+        for(String mode : new String[]{"sync", "group", "async"}) {
+            exe.execute(("begin " + mode).getBytes());
+            for(int i = 0; i < 100; i ++) {
+                id ++;
+                exe.execute(("insert into test_table values " + id).getBytes());
+            }
+            exe.execute("commit".getBytes());
+        }
+        byte[] res = exe.execute("select * from test_table where id > 0".getBytes());
+        assert new String(res).split("\n").length == 300;
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testDeleteVisibility() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("insert into test_table values 1".getBytes());
+        exe.execute("insert into test_table values 2".getBytes());
+        // 回滚的删除不生效，重复读取时走提示位
+        exe.execute("begin".getBytes());
+        exe.execute("delete from test_table where id = 1".getBytes());
+        exe.execute("abort".getBytes());
+        for(int i = 0; i < 2; i ++) {
+            byte[] res = exe.execute("select * from test_table where id > 0".getBytes());
+            assert new String(res).split("\n").length == 2;
+        }
+        exe.execute("delete from test_table where id = 1".getBytes());
+        for(int i = 0; i < 2; i ++) {
+            byte[] res = exe.execute("select * from test_table where id > 0".getBytes());
+            assert new String(res).split("\n").length == 1;
+        }
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testRepeatableRead() throws Exception {
+        Executor exe1 = testCreate();
+        Executor exe2 = new Executor(exe1.tbm);
+        exe1.execute("insert into test_table values 1".getBytes());
+        exe1.execute("begin isolation level repeatable read".getBytes());
+        exe2.execute("begin".getBytes());
+        exe2.execute("insert into test_table values 2".getBytes());
+        exe2.execute("commit".getBytes());
+        exe2.execute("insert into test_table values 3".getBytes());
+        // 快照之后开始和快照时正在进行的事务都不可见
+        byte[] res = exe1.execute("select * from test_table where id > 0".getBytes());
+        assert new String(res).split("\n").length == 1;
+        exe1.execute("commit".getBytes());
+        res = exe1.execute("select * from test_table where id > 0".getBytes());
+        assert new String(res).split("\n").length == 3;
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testReadOnly() throws Exception {
+        Executor exe1 = testCreate();
+        Executor exe2 = new Executor(exe1.tbm);
+        exe1.execute("insert into test_table values 1".getBytes());
+        exe1.execute("begin read only isolation level repeatable read".getBytes());
+        exe2.execute("insert into test_table values 2".getBytes());
+        byte[] res = exe1.execute("select * from test_table where id > 0".getBytes());
+        assert new String(res).split("\n").length == 1;
+        try {
+            exe1.execute("insert into test_table values 3".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.ReadOnlyTransactionException;
+        }
+        exe1.execute("commit".getBytes());
+        res = exe1.execute("select * from test_table where id > 0".getBytes());
+        assert new String(res).split("\n").length == 2;
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testStringIndex() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table str_table name string (index name)".getBytes());
+        // 前三个共享很长的前缀，只在最后几个字节上不同
+        for(String name : new String[]{"'apple pie'", "'apple pies'", "'apple pier'", "apple", "banana", "b", "cherry"}) {
+            exe.execute(("insert into str_table values " + name).getBytes());
+        }
+        byte[] res = exe.execute("select * from str_table where name = 'apple pies'".getBytes());
+        assert new String(res).equals("[apple pies]\n");
+        res = exe.execute("select * from str_table where name = apple".getBytes());
+        assert new String(res).equals("[apple]\n");
+        // 索引中保存完整的 key，结果按字节序返回
+        res = exe.execute("select * from str_table where name > 'apple pie' and name < banana".getBytes());
+        assert new String(res).equals("[apple pier]\n[apple pies]\n[b]\n");
+        res = exe.execute("select * from str_table where name like 'apple%'".getBytes());
+        assert new String(res).equals("[apple]\n[apple pie]\n[apple pier]\n[apple pies]\n");
+        exe.execute("delete from str_table where name like 'apple pie%'".getBytes());
+        res = exe.execute("select * from str_table where name < c".getBytes());
+        assert new String(res).equals("[apple]\n[b]\n[banana]\n");
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testCompositeIndex() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table orders tenant int32, created int64, note string (index (tenant created))".getBytes());
+        for(int t = 1; t <= 3; t ++) {
+            for(int c = 0; c < 100; c ++) {
+                exe.execute(("insert into orders values " + t + " " + (c * 1000L) + " n" + c).getBytes());
+            }
+        }
+        // 第一列等值、第二列范围，在完整的前缀上查找
+        byte[] res = exe.execute("select * from orders where tenant = 2 and created < 3000".getBytes());
+        assert new String(res).equals("[2, 0, n0]\n[2, 1000, n1]\n[2, 2000, n2]\n");
+        res = exe.execute("select note from orders where created > 97000 and tenant = 3".getBytes());
+        assert new String(res).split("\n").length == 2;
+        // 只有第一列的条件
+        res = exe.execute("select * from orders where tenant > 2".getBytes());
+        assert new String(res).split("\n").length == 100;
+        res = exe.execute("select * from orders where tenant = 1 or tenant = 3".getBytes());
+        assert new String(res).split("\n").length == 200;
+        exe.execute("update orders set note = x where tenant = 1 and created = 5000".getBytes());
+        res = exe.execute("select * from orders where tenant = 1 and created = 5000".getBytes());
+        assert new String(res).equals("[1, 5000, x]\n");
+        exe.execute("delete from orders where tenant = 2 and created > 0".getBytes());
+        res = exe.execute("select * from orders where tenant = 2".getBytes());
+        assert new String(res).equals("[2, 0, n0]\n");
+        try {
+            exe.execute("select * from orders where created = 0".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.FieldNotIndexedException;
+        }
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testVacuum() throws Exception {
+        Executor exe1 = testCreate();
+        Executor exe2 = new Executor(exe1.tbm);
+        exe1.execute("insert into test_table values 1".getBytes());
+        exe1.execute("insert into test_table values 2".getBytes());
+        exe2.execute("begin isolation level repeatable read".getBytes());
+        exe1.execute("update test_table set id = 10 where id = 1".getBytes());
+        // 旧版本还在 exe2 的快照中，索引项不能回收
+        assert exe1.tbm.vacuum() == 0;
+        byte[] res = exe2.execute("select * from test_table where id = 1".getBytes());
+        assert new String(res).equals("[1]\n");
+        exe2.execute("commit".getBytes());
+        assert exe1.tbm.vacuum() == 1;
+        res = exe1.execute("select * from test_table where id < 5".getBytes());
+        assert new String(res).equals("[2]\n");
+        // 回滚的插入立即删除索引项
+        exe1.execute("begin".getBytes());
+        exe1.execute("insert into test_table values 3".getBytes());
+        exe1.execute("abort".getBytes());
+        res = exe1.execute("select * from test_table where id > 0".getBytes());
+        assert new String(res).split("\n").length == 2;
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
 }
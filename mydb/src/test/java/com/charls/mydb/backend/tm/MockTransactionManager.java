@@ -10,12 +10,31 @@ public class MockTransactionManager implements TransactionManager {
         return 0;
     }
 
+    @Override
+    public long lastXid() {
+        return 0;
+    }
+
     @Override
     public void commit(long xid) {}
 
+    @Override
+    public void commitAsync(long xid) {}
+
+    @Override
+    public long[] pendingCommits() {
+        return new long[0];
+    }
+
+    @Override
+    public void persistCommits(long[] xids) {}
+
     @Override
     public void abort(long xid) {}
 
+    @Override
+    public void freeze(long horizon) {}
+
     @Override
     public boolean isActive(long xid) {
         return false;
@@ -26,6 +45,11 @@ public class MockTransactionManager implements TransactionManager {
         return false;
     }
 
+    @Override
+    public boolean isCommitPersisted(long xid) {
+        return false;
+    }
+
     @Override
     public boolean isAborted(long xid) {
         return false;
@@ -93,4 +93,172 @@ public class TransactionManagerTest {
         }
         cdl.countDown();
     }
+
+    @Test
+    public void testStatusTable() throws Exception {
+        XidStatusTable table = new XidStatusTable(0);
+        long max = 3 * 32768 + 5;
+        table.ensureCapacity(max);
+        // 多个线程交错修改，同一个 long 中相邻事务的状态被不同线程并发修改
+        int threads = 4;
+        CountDownLatch latch = new CountDownLatch(threads);
+        for(int k = 0; k < threads; k ++) {
+            final int start = k + 1;
+            new Thread(() -> {
+                for(long xid = start; xid <= max; xid += threads) {
+                    table.set(xid, (byte)(xid % 3));
+                }
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+        for(long xid = 1; xid <= max; xid ++) {
+            assert table.get(xid) == xid % 3;
+        }
+        // 超出范围的事务视为 active
+        assert table.get(max + 32768) == 0;
+
+        // 释放前两段之后，段内的事务返回 -1，之后的段不受影响
+        table.release(2 * 32768 - 1);
+        assert table.get(1) == -1;
+        assert table.get(2 * 32768 - 1) == -1;
+        assert table.get(2 * 32768) == (2 * 32768) % 3;
+        assert table.get(max) == max % 3;
+
+        // 从冻结线开始的表，冻结线之前的事务没有段
+        XidStatusTable based = new XidStatusTable(5 * 32768 + 7);
+        based.ensureCapacity(6 * 32768 + 1);
+        assert based.get(4 * 32768) == -1;
+        based.set(6 * 32768 + 1, (byte)1);
+        assert based.get(6 * 32768 + 1) == 1;
+        assert based.get(5 * 32768 + 8) == 0;
+    }
+
+    @Test
+    public void testStatusAfterReopen() {
+        String path = "C:/Users/TDB/tmp/tranmger_mmap_test";
+        TransactionManager tm = TransactionManager.create(path);
+        // 跨过第一个映射块，状态分布在两个块中
+        int n = TransactionManagerImpl.MAP_CHUNK_SIZE + TransactionManagerImpl.XID_RESERVE_BLOCK;
+        for(int i = 0; i < n; i ++) {
+            long xid = tm.begin();
+            if(xid % 1000 == 1) {
+                tm.commit(xid);
+            } else if(xid % 1000 == 2) {
+                tm.abort(xid);
+            }
+        }
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        for(long xid = 1; xid <= n; xid ++) {
+            byte expected = (byte)(xid % 1000 == 1 ? 1 : xid % 1000 == 2 ? 2 : 0);
+            assert expected == 1 ? tm.isCommitted(xid) : expected == 2 ? tm.isAborted(xid) : tm.isActive(xid);
+        }
+        // 同步提交的状态在映射上立即刷盘，不关闭直接重新打开也能看到
+        long boundary = TransactionManagerImpl.MAP_CHUNK_SIZE;
+        tm.commit(boundary);
+        tm.commit(boundary + 1);
+        TransactionManager reopened = TransactionManager.open(path);
+        assert reopened.isCommitted(boundary);
+        assert reopened.isCommitted(boundary + 1);
+        assert reopened.isActive(boundary + 3);
+        reopened.close();
+        tm.close();
+
+        assert new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testCommitAsync() {
+        TransactionManager tm = TransactionManager.create("C:/Users/TDB/tmp/tranmger_async_test");
+        long xid1 = tm.begin();
+        long xid2 = tm.begin();
+        tm.commitAsync(xid1);
+        tm.commitAsync(xid2);
+        // 提交状态立即可见
+        assert tm.isCommitted(xid1) && !tm.isActive(xid1);
+        assert tm.pendingCommits().length == 2;
+
+        tm.persistCommits(new long[]{xid1});
+        assert tm.pendingCommits().length == 1;
+        tm.close();
+
+        // 没有落盘的提交在重启后仍是活跃状态，由恢复过程回滚
+        tm = TransactionManager.open("C:/Users/TDB/tmp/tranmger_async_test");
+        assert tm.isCommitted(xid1);
+        assert tm.isActive(xid2);
+        tm.close();
+
+        assert new File("C:/Users/TDB/tmp/tranmger_async_test.xid").delete();
+    }
+
+    @Test
+    public void testReserveXID() {
+        TransactionManager tm = TransactionManager.create("C:/Users/TDB/tmp/tranmger_reserve_test");
+        long xid1 = tm.begin();
+        long xid2 = tm.begin();
+        tm.commit(xid1);
+        tm.close();
+
+        // 重启后从预留的上界之后继续分配
+        tm = TransactionManager.open("C:/Users/TDB/tmp/tranmger_reserve_test");
+        assert tm.isCommitted(xid1);
+        assert tm.isActive(xid2);
+        long xid3 = tm.begin();
+        assert xid3 > xid2;
+        tm.abort(xid3);
+        assert tm.isAborted(xid3);
+        tm.close();
+
+        assert new File("C:/Users/TDB/tmp/tranmger_reserve_test.xid").delete();
+    }
+
+    @Test
+    public void testFreeze() {
+        TransactionManager tm = TransactionManager.create("C:/Users/TDB/tmp/tranmger_freeze_test");
+        long[] xids = new long[100];
+        for(int i = 0; i < xids.length; i ++) {
+            xids[i] = tm.begin();
+            if(i % 3 == 0) {
+                tm.abort(xids[i]);
+            } else if(i % 3 == 1) {
+                tm.commit(xids[i]);
+            }
+            // i % 3 == 2 的事务模拟崩溃时没有完成的事务
+        }
+        long active = tm.begin();
+        tm.freeze(active);
+        for(int i = 0; i < xids.length; i ++) {
+            assert i % 3 == 1 ? tm.isCommitted(xids[i]) : tm.isAborted(xids[i]);
+        }
+        assert tm.isActive(active);
+        tm.commit(active);
+        tm.close();
+
+        // 冻结信息和没有冻结的事务状态在重启后保持不变
+        tm = TransactionManager.open("C:/Users/TDB/tmp/tranmger_freeze_test");
+        for(int i = 0; i < xids.length; i ++) {
+            assert i % 3 == 1 ? tm.isCommitted(xids[i]) : tm.isAborted(xids[i]);
+        }
+        assert tm.isCommitted(active);
+        long xid = tm.begin();
+        assert xid > active && tm.isActive(xid);
+
+        // 在已经冻结过的文件上再次冻结，没有结束的 xid 冻结后视为回滚
+        long older = tm.begin();
+        tm.abort(older);
+        long next = tm.begin();
+        tm.freeze(next);
+        tm.commit(next);
+        assert tm.isAborted(xid) && tm.isAborted(older) && tm.isCommitted(next);
+        tm.close();
+
+        tm = TransactionManager.open("C:/Users/TDB/tmp/tranmger_freeze_test");
+        assert tm.isAborted(xid) && tm.isAborted(older) && tm.isCommitted(next);
+        assert tm.isCommitted(xids[1]) && tm.isAborted(xids[2]);
+        tm.close();
+
+        assert new File("C:/Users/TDB/tmp/tranmger_freeze_test.xid").delete();
+    }
 }
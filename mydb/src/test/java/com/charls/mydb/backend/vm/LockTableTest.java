@@ -1,10 +1,12 @@
 package com.charls.mydb.backend.vm;
 
 import com.charls.mydb.backend.utils.Panic;
+import com.charls.mydb.common.Error;
 import org.junit.Test;
 
 
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertThrows;
 
@@ -39,14 +41,7 @@ public class LockTableTest {
         LockTable lt = new LockTable();
         for(long i = 1; i <= 100; i ++) {
             try {
-                Lock o = lt.add(i, i);
-                if(o != null) {
-                    Runnable r = () -> {
-                        o.lock();
-                        o.unlock();
-                    };
-                    new Thread(r).run();
-                }
+                assert lt.add(i, i);
             } catch (Exception e) {
                 Panic.panic(e);
             }
@@ -54,14 +49,7 @@ public class LockTableTest {
 
         for(long i = 1; i <= 99; i ++) {
             try {
-                Lock o = lt.add(i, i+1);
-                if(o != null) {
-                    Runnable r = () -> {
-                        o.lock();
-                        o.unlock();
-                    };
-                    new Thread(r).run();
-                }
+                assert !lt.add(i, i+1);
             } catch (Exception e) {
                 Panic.panic(e);
             }
@@ -76,4 +64,215 @@ public class LockTableTest {
             Panic.panic(e);
         }
     }
+
+    @Test
+    public void testWaitAndGrant() throws Exception {
+        LockTable lt = new LockTable();
+        assert lt.add(1, 1);
+        assert lt.add(1, 1);
+        CountDownLatch cdl = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                if(!lt.add(2, 1)) {
+                    lt.await(2);
+                }
+                cdl.countDown();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        });
+        waiter.start();
+        while(waiter.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        assert cdl.getCount() == 1;
+        // 释放后锁直接交给等待者
+        lt.remove(1);
+        cdl.await();
+        assert !lt.add(3, 1);
+        lt.remove(2);
+        lt.await(3);
+    }
+
+    @Test
+    public void testThreeWayCycle() throws Exception {
+        LockTable lt = new LockTable();
+        assert lt.add(1, 1);
+        assert lt.add(2, 2);
+        assert lt.add(3, 3);
+        // 1 -> 2 -> 3，3 再等待 1 时沿等待链回到自己
+        assert !lt.add(1, 2);
+        assert !lt.add(2, 3);
+        try {
+            lt.add(3, 1);
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.DeadlockException;
+        }
+        // 3 已经退出等待，回滚后环上其余事务依次获得锁
+        lt.remove(3);
+        lt.await(2);
+        lt.remove(2);
+        lt.await(1);
+        lt.remove(1);
+    }
+
+    @Test
+    public void testDetectorBreaksCycle() throws Exception {
+        // wait-die 下等待时不检测环，锁交接之后年轻事务可能在等待老事务，环只能由后台检测发现
+        LockTable lt = new LockTable(LockTable.POLICY_WAIT_DIE, 0);
+        long a = 1, b = 2, c = 3;
+        assert lt.add(5, a);
+        assert lt.add(2, b);
+        assert lt.add(3, c);
+
+        AtomicReference<Exception> err1 = new AtomicReference<>(), err2 = new AtomicReference<>(), err3 = new AtomicReference<>();
+        CountDownLatch gotA = new CountDownLatch(1);
+        Thread t1 = new Thread(() -> {
+            try {
+                if(!lt.add(1, a)) {
+                    lt.await(1);
+                }
+                gotA.countDown();
+                if(!lt.add(1, b)) {
+                    lt.await(1);
+                }
+            } catch (Exception e) {
+                err1.set(e);
+            }
+        });
+        Thread t3 = new Thread(() -> {
+            try {
+                if(!lt.add(3, a)) {
+                    lt.await(3);
+                }
+            } catch (Exception e) {
+                err3.set(e);
+                // 牺牲者回滚，释放它持有的锁
+                lt.remove(3);
+            }
+        });
+        Thread t2 = new Thread(() -> {
+            try {
+                if(!lt.add(2, c)) {
+                    lt.await(2);
+                }
+            } catch (Exception e) {
+                err2.set(e);
+            }
+        });
+
+        t1.start();
+        waitParked(t1);
+        t3.start();
+        waitParked(t3);
+        // 5 释放 a，a 交给队首的 1，3 改为等待 1
+        lt.remove(5);
+        gotA.await();
+        waitParked(t1);
+        t2.start();
+        waitParked(t2);
+        // 1 -> 2 -> 3 -> 1，后台检测选择最年轻的 3 作为牺牲者
+        t3.join(LockTable.DETECT_INTERVAL * 5);
+        assert !t3.isAlive();
+        assert err3.get() == Error.DeadlockException;
+
+        t2.join(1000);
+        assert !t2.isAlive() && err2.get() == null;
+        lt.remove(2);
+        t1.join(1000);
+        assert !t1.isAlive() && err1.get() == null;
+        lt.remove(1);
+    }
+
+    private static void waitParked(Thread t) throws InterruptedException {
+        while(t.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testWaitDie() throws Exception {
+        LockTable lt = new LockTable(LockTable.POLICY_WAIT_DIE, 0);
+        assert lt.add(1, 1);
+        assert lt.add(2, 2);
+        // 老事务等待年轻事务
+        assert !lt.add(1, 2);
+        // 年轻事务请求老事务的锁直接失败
+        assertThrows(RuntimeException.class, ()->lt.add(2, 1));
+    }
+
+    @Test
+    public void testWoundWait() throws Exception {
+        LockTable lt = new LockTable(LockTable.POLICY_WOUND_WAIT, 0);
+        assert lt.add(1, 1);
+        assert lt.add(2, 2);
+        // 年轻事务等待老事务
+        assert !lt.add(2, 1);
+        // 老事务刺伤年轻的持有者，等待中的年轻事务失败
+        assert !lt.add(1, 2);
+        try {
+            lt.await(2);
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.DeadlockException;
+        }
+        lt.remove(2);
+        lt.await(1);
+    }
+
+    @Test
+    public void testWaitTimeout() throws Exception {
+        LockTable lt = new LockTable(LockTable.POLICY_DETECT, 50);
+        assert lt.add(1, 1);
+        assert !lt.add(2, 1);
+        try {
+            lt.await(2);
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.LockTimeoutException;
+        }
+        // 超时的事务已经退出等待队列，释放后锁交给后来的等待者
+        assert !lt.add(3, 1);
+        lt.remove(1);
+        lt.await(3);
+    }
+
+    @Test
+    public void testTableLock() throws Exception {
+        LockTable lt = new LockTable();
+        long table = 1000;
+        assert lt.addTable(1, table, LockTable.LOCK_IX);
+        assert lt.addTable(2, table, LockTable.LOCK_IX);
+        // S 和 IX 不相容
+        assert !lt.addTable(3, table, LockTable.LOCK_S);
+        // 死锁检测同样覆盖表锁：1 等 2 的行锁，2 升级为 X 等 1 的 IX
+        assert lt.add(2, table, 1);
+        assert !lt.add(1, table, 1);
+        assertThrows(RuntimeException.class, ()->lt.addTable(2, table, LockTable.LOCK_X));
+        lt.remove(2);
+        lt.await(1);
+        lt.remove(1);
+        lt.await(3);
+    }
+
+    @Test
+    public void testEscalation() throws Exception {
+        LockTable lt = new LockTable();
+        long table = 1000;
+        assert lt.addTable(1, table, LockTable.LOCK_IX);
+        for(long uid = 1; uid <= LockTable.ESCALATE_THRESHOLD; uid ++) {
+            assert lt.add(1, table, uid);
+        }
+        // 升级为表的 X 锁之后，原来的行锁已经释放
+        for(long uid = 1; uid < LockTable.ESCALATE_THRESHOLD; uid ++) {
+            assert lt.add(3, uid);
+        }
+        lt.remove(3);
+        // 其他事务无法再加意向锁，也不再需要行锁
+        assert !lt.addTable(2, table, LockTable.LOCK_IS);
+        assert lt.add(1, table, LockTable.ESCALATE_THRESHOLD + 1);
+        lt.remove(1);
+        lt.await(2);
+    }
 }
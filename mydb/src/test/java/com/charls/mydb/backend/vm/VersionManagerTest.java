@@ -0,0 +1,164 @@
+package com.charls.mydb.backend.vm;
+
+import com.charls.mydb.backend.dm.DataManager;
+import com.charls.mydb.backend.dm.pageCache.PageCache;
+import com.charls.mydb.backend.tm.TransactionManager;
+import com.charls.mydb.backend.utils.RandomUtil;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class VersionManagerTest {
+
+    @Test
+    public void testConcurrentInsertDelete() throws Exception {
+        String path = "C:/Users/TDB/tmp/TestVMConcurrent";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE*64, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+
+        int workers = 8, rounds = 200;
+        Map<Long, byte[]> alive = new ConcurrentHashMap<>();
+        Map<Long, Boolean> deleted = new ConcurrentHashMap<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch cdl = new CountDownLatch(workers);
+        for(int w = 0; w < workers; w ++) {
+            new Thread(() -> {
+                // 每个线程删除自己插入的行，不同线程之间没有锁冲突，只并发地开启、提交事务和读写数据
+                List<Long> mine = new ArrayList<>();
+                try {
+                    for(int i = 0; i < rounds; i ++) {
+                        long xid = vm.begin(1);
+                        byte[] data = RandomUtil.randomBytes(32);
+                        long uid = vm.insert(xid, data);
+                        assert Arrays.equals(vm.read(xid, uid), data);
+                        long victim = 0;
+                        if(i % 3 == 2) {
+                            victim = mine.remove(0);
+                            assert vm.delete(xid, victim);
+                            assert vm.read(xid, victim) == null;
+                        }
+                        vm.commit(xid);
+                        mine.add(uid);
+                        alive.put(uid, data);
+                        if(victim != 0) {
+                            alive.remove(victim);
+                            deleted.put(victim, true);
+                        }
+                    }
+                } catch(Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        assert failure.get() == null : failure.get();
+
+        // 所有事务结束之后，新事务看到的正好是没有被删除的行
+        long xid = vm.begin(1);
+        assert alive.size() + deleted.size() == workers * rounds;
+        for(Map.Entry<Long, byte[]> e : alive.entrySet()) {
+            assert Arrays.equals(vm.read(xid, e.getKey()), e.getValue());
+        }
+        for(long uid : deleted.keySet()) {
+            assert vm.read(xid, uid) == null;
+        }
+        vm.commit(xid);
+
+        dm.close();
+        tm.close();
+        assert new File(path + ".db").delete();
+        assert new File(path + ".log").delete();
+        assert new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testActiveSetSnapshot() {
+        String path = "C:/Users/TDB/tmp/TestActiveSet";
+        TransactionManager tm = TransactionManager.create(path);
+        ActiveSet as = new ActiveSet(tm);
+        // 超过一块的槽位数，触发追加新块
+        int n = 100;
+        long[] xids = new long[n];
+        int[] slots = new int[n];
+        for(int i = 0; i < n; i ++) {
+            slots[i] = as.claim();
+            xids[i] = as.begin(slots[i]);
+        }
+        for(int i = 0; i < n; i += 2) {
+            as.remove(slots[i]);
+        }
+        assert as.xmin() == xids[1];
+
+        // 读写事务的快照以自己的 xid 为上界，只包含比它老的活跃事务，有序
+        Snapshot s = as.snapshot(xids[51]);
+        assert s.xmin == xids[1] && s.xmax == xids[51];
+        assert s.xip.length == 25;
+        for(int i = 0; i < s.xip.length; i ++) {
+            assert s.xip[i] == xids[2 * i + 1];
+        }
+        assert s.isInProgress(xids[1]) && !s.isInProgress(xids[2]) && s.isInProgress(xids[60]);
+
+        // 只读事务的快照包含所有活跃事务
+        assert as.snapshot().xip.length == n / 2;
+        for(int i = 1; i < n; i += 2) {
+            as.remove(slots[i]);
+        }
+        assert as.xmin() == tm.lastXid() + 1;
+        assert as.snapshot().xip.length == 0;
+
+        tm.close();
+        assert new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testActiveSetSnapshotUnderChurn() throws Exception {
+        String path = "C:/Users/TDB/tmp/TestActiveSetChurn";
+        TransactionManager tm = TransactionManager.create(path);
+        ActiveSet as = new ActiveSet(tm);
+        int held = as.claim();
+        long heldXid = as.begin(held);
+
+        // 其他线程不停地开启、结束事务，扫描几乎总会遇到事务结束，取快照仍然要完成，并且包含一直活跃的事务
+        AtomicBoolean stop = new AtomicBoolean(false);
+        List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < 4; t ++) {
+            threads.add(new Thread(() -> {
+                while(!stop.get()) {
+                    int slot = as.claim();
+                    as.begin(slot);
+                    as.remove(slot);
+                }
+            }));
+        }
+        for(Thread t : threads) {
+            t.start();
+        }
+        for(int i = 0; i < 2000; i ++) {
+            Snapshot s = as.snapshot();
+            assert s.isInProgress(heldXid);
+            for(int k = 1; k < s.xip.length; k ++) {
+                assert s.xip[k - 1] < s.xip[k];
+            }
+        }
+        stop.set(true);
+        for(Thread t : threads) {
+            t.join();
+        }
+        as.remove(held);
+        assert as.snapshot().xip.length == 0;
+
+        tm.close();
+        assert new File(path + ".xid").delete();
+    }
+}